@@ -0,0 +1,138 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Whole downloads from the real server over loopback. Each operation downloads the file
+ * over `concurrency` connections at once, one file per connection like myfileclient does,
+ * so the throughput score times concurrency is downloads per second, and the sample time
+ * score is the latency of a download while `concurrency` of them are running.
+ *
+ * myfileserver lives in the default package, so it is started through reflection, once per
+ * fork. JMH forks a new JVM for each combination of parameters.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class endToEndBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class server
+    {
+        @Param({"4096", "1048576", "16777216"})
+        public long file_size;          // Size of the downloaded file.
+
+        @Param({"1", "8", "32"})
+        public int concurrency;         // Downloads running at once.
+
+        @Param({"pool", "nio"})
+        public String engine;           // Server engine, see --engine.
+
+        int port;                       // Port the server listens on.
+        String filename;                // File downloaded by each connection.
+        ExecutorService clients;        // One thread per connection.
+
+        @Setup
+        public void setup() throws Exception
+        {
+            Path files = loopback.temporary_directory();
+            filename = "file-" + file_size + ".bin";
+            loopback.random_file(files, filename, file_size);
+            File log_file = files.resolve("server.log").toFile();
+            log_file.deleteOnExit();
+
+            try (ServerSocket free_port = new ServerSocket(0))
+            {   // Let the system pick a port nobody uses.
+                port = free_port.getLocalPort();
+            }
+            String[] args = {"--port=" + port, "--files=" + files, "--engine=" + engine,
+                "--log-level=error", "--log-file=" + log_file};
+            Class.forName("myfileserver").getMethod("main", String[].class).invoke(null, (Object) args);
+
+            for (int attempt = 0; ; attempt++)
+            {   // Wait for the server to listen.
+                try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port))
+                {
+                    break;
+                }
+                catch (IOException e)
+                {
+                    if (attempt >= 100) throw e;
+                    Thread.sleep(50);
+                }
+            }
+            clients = Executors.newFixedThreadPool(concurrency);
+        }
+
+        @TearDown
+        public void tear_down()
+        {
+            clients.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public long download(server s) throws Exception
+    {
+        List<Future<Long>> downloads = new ArrayList<Future<Long>>();
+        for (int i = 0; i < s.concurrency; i++)
+        {
+            downloads.add(s.clients.submit(() -> fetch(s.port, s.filename)));
+        }
+        long received = 0;
+        for (Future<Long> download : downloads) received += download.get();
+        return received;
+    }
+
+    /**
+     * Download a file the way myfileclient does, with an extended request (protocol version 2),
+     * throwing the data away. Returns the number of bytes received.
+     */
+    static long fetch(int port, String filename) throws IOException
+    {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            d_in.readUTF();                 // Greeting.
+            d_out.writeUTF("\u0000FDP");    // fileRequest.REQUEST_MAGIC
+            d_out.writeInt(2);
+            d_out.writeUTF("GET");
+            d_out.writeUTF(filename);
+            d_out.writeInt(0);              // No headers.
+            d_out.flush();
+
+            d_in.readUTF();                 // File found.
+            d_in.readUTF();                 // Server's request statistics.
+            if (!d_in.readBoolean()) throw new FileNotFoundException(filename);
+            d_in.readInt();                 // Status code.
+            int header_count = d_in.readInt();
+            for (int i = 0; i < header_count * 2; i++) d_in.readUTF();
+
+            d_in.readUTF();                 // Downloading file.
+            long filesize = d_in.readLong();
+            d_in.readInt();                 // Buffer size.
+            byte[] buffer_data_array = new byte[65536];
+            long left = filesize;
+            while (left > 0)
+            {
+                int bytes = d_in.read(buffer_data_array, 0, (int) Math.min(buffer_data_array.length, left));
+                if (bytes < 0) throw new EOFException("Lost connection to server");
+                left -= bytes;
+            }
+            d_in.readUTF();                 // Download complete.
+            d_in.readUTF();                 // Closing connection.
+            return filesize;
+        }
+    }
+}
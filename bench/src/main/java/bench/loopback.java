@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Loopback connections for the benchmarks. A sink reads and throws away everything sent
+ * to it, like a client that never waits on its disk. A source sends data forever, like
+ * a server that never waits on its disk. Both run on daemon threads.
+ */
+class loopback
+{
+    /**
+     * Start a sink, and return a connection to it.
+     */
+    static SocketChannel connect_to_sink() throws IOException
+    {
+        ServerSocketChannel server_channel = ServerSocketChannel.open();
+        server_channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        start_daemon("sink", () ->
+        {
+            try (SocketChannel client_channel = server_channel.accept())
+            {
+                server_channel.close();
+                ByteBuffer drain = ByteBuffer.allocateDirect(1 << 20);
+                while (client_channel.read(drain) >= 0) drain.clear();
+            }
+            catch (IOException e)
+            {   // The benchmark is over.
+            }
+        });
+        return SocketChannel.open(server_channel.getLocalAddress());
+    }
+
+    /**
+     * Start a source, and return a connection to it.
+     */
+    static SocketChannel connect_to_source() throws IOException
+    {
+        ServerSocketChannel server_channel = ServerSocketChannel.open();
+        server_channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        start_daemon("source", () ->
+        {
+            try (SocketChannel client_channel = server_channel.accept())
+            {
+                server_channel.close();
+                ByteBuffer data = ByteBuffer.allocateDirect(1 << 20);
+                while (true)
+                {
+                    data.clear();
+                    client_channel.write(data);
+                }
+            }
+            catch (IOException e)
+            {   // The benchmark is over.
+            }
+        });
+        return SocketChannel.open(server_channel.getLocalAddress());
+    }
+
+    /**
+     * A file of random bytes, deleted when the JVM exits.
+     */
+    static File random_file(Path directory, String name, long size) throws IOException
+    {
+        File file = directory.resolve(name).toFile();
+        file.deleteOnExit();
+        byte[] chunk = new byte[1 << 20];
+        Random random = new Random(size);
+        try (FileOutputStream f_out = new FileOutputStream(file))
+        {
+            for (long left = size; left > 0; left -= chunk.length)
+            {
+                random.nextBytes(chunk);
+                f_out.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+        }
+        return file;
+    }
+
+    static Path temporary_directory() throws IOException
+    {
+        Path directory = Files.createTempDirectory("file-download-bench");
+        directory.toFile().deleteOnExit();
+        return directory;
+    }
+
+    static void start_daemon(String name, Runnable body)
+    {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,111 @@
+package bench;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * The ways the client can receive a file, each one reading file_size bytes over loopback
+ * from a source that never runs dry, and writing them to a file:
+ *  - stream_receive is SocketHandling's receive loop, DataInputStream into a byte array
+ *    written to a FileOutputStream.
+ *  - channel_receive reads the socket's channel into a heap or direct ByteBuffer, written to a FileChannel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class receivePathBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class connection
+    {
+        @Param({"16777216"})
+        public long file_size;              // Bytes received by each operation.
+
+        File file;                          // File the bytes are written to.
+        SocketChannel socket_channel;       // Connection to the source.
+        DataInputStream d_in;               // The same connection, as SocketHandling uses it.
+
+        @Setup
+        public void setup() throws IOException
+        {
+            file = new File(loopback.temporary_directory().toFile(), "receive.bin");
+            file.deleteOnExit();
+            socket_channel = loopback.connect_to_source();
+            d_in = new DataInputStream(socket_channel.socket().getInputStream());
+        }
+
+        @TearDown
+        public void tear_down() throws IOException
+        {
+            socket_channel.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class stream_options
+    {
+        @Param({"4096", "65536", "1048576"})
+        public int buffer_size;             // Size of the chunks read from the socket.
+    }
+
+    @State(Scope.Benchmark)
+    public static class buffer_options
+    {
+        @Param({"4096", "65536", "1048576"})
+        public int buffer_size;             // Size of the buffer the socket is read into.
+
+        @Param({"false", "true"})
+        public boolean direct;              // Buffer outside of the Java heap.
+
+        ByteBuffer buffer;
+
+        @Setup
+        public void setup()
+        {
+            buffer = direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+        }
+    }
+
+    @Benchmark
+    public long stream_receive(connection c, stream_options options) throws IOException
+    {
+        long filesize = c.file_size;
+        int bytes;
+        byte[] buffer_data_array = new byte[options.buffer_size];
+        try (FileOutputStream f_out = new FileOutputStream(c.file))
+        {
+            while (filesize > 0 && (bytes = c.d_in.read(buffer_data_array,
+                0, (int) Math.min(buffer_data_array.length, filesize))) != -1)
+            {
+                f_out.write(buffer_data_array, 0, bytes);
+                filesize -= bytes;
+            }
+        }
+        return c.file_size - filesize;
+    }
+
+    @Benchmark
+    public long channel_receive(connection c, buffer_options options) throws IOException
+    {
+        ByteBuffer buffer = options.buffer;
+        long left = c.file_size;
+        try (FileChannel file_channel = new FileOutputStream(c.file).getChannel())
+        {
+            while (left > 0)
+            {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), left));
+                if (c.socket_channel.read(buffer) < 0) break;
+                buffer.flip();
+                while (buffer.hasRemaining()) left -= file_channel.write(buffer);
+            }
+        }
+        return c.file_size - left;
+    }
+}
@@ -0,0 +1,224 @@
+package bench;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * The ways the server can send a file to a client, each one sending the whole file
+ * over loopback to a sink that throws it away:
+ *  - stream_copy is ClientWorkerThread's copy loop, FileInputStream into a byte array
+ *    written to the socket's stream, with a flush after every chunk or only at the end.
+ *  - channel_copy reads the file into a heap or direct ByteBuffer and writes it to the socket's channel.
+ *  - checked_copy is channel_copy with the CRC32C of every chunk computed where it sits, 
+ *    like checkedBody sends files to clients asking for checksums.
+ *  - transfer_to lets the kernel copy the file to the socket (sendfile), like --zero-copy.
+ *  - read_ahead_copy is channel_copy with the next chunks read by an AsynchronousFileChannel while 
+ *    the current one is sent, like readAhead feeds the copy loop and the framed bodies.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class sendPathBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class connection
+    {
+        @Param({"16777216"})
+        public long file_size;              // Size of the file sent by each operation.
+
+        File file;                          // File sent to the sink.
+        SocketChannel socket_channel;       // Connection to the sink.
+        OutputStream socket_out;            // The same connection, as the worker threads use it.
+
+        @Setup
+        public void setup() throws IOException
+        {
+            file = loopback.random_file(loopback.temporary_directory(), "send.bin", file_size);
+            socket_channel = loopback.connect_to_sink();
+            socket_out = socket_channel.socket().getOutputStream();
+        }
+
+        @TearDown
+        public void tear_down() throws IOException
+        {
+            socket_channel.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class stream_options
+    {
+        @Param({"4096", "65536", "1048576"})
+        public int buffer_size;             // Size of the chunks read from the file.
+
+        @Param({"true", "false"})
+        public boolean flush_per_chunk;     // Flush after every chunk, like the copy loop used to.
+    }
+
+    @State(Scope.Benchmark)
+    public static class buffer_options
+    {
+        @Param({"4096", "65536", "1048576"})
+        public int buffer_size;             // Size of the buffer the file is read into.
+
+        @Param({"false", "true"})
+        public boolean direct;              // Buffer outside of the Java heap.
+
+        ByteBuffer buffer;
+
+        @Setup
+        public void setup()
+        {
+            buffer = direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class read_ahead_options
+    {
+        @Param({"0", "2", "8"})
+        public int depth;                   // Chunks read ahead of the one being sent, 0 reads when asked.
+
+        ExecutorService io;                 // Threads the reads run on.
+        ByteBuffer[] buffers;               // The chunk being sent, and the ones read ahead.
+
+        @Setup
+        public void setup()
+        {
+            io = Executors.newFixedThreadPool(4);
+            buffers = new ByteBuffer[depth + 1];
+            for (int i = 0; i < buffers.length; i++) buffers[i] = ByteBuffer.allocateDirect(256 << 10);
+        }
+
+        @TearDown
+        public void tear_down()
+        {
+            io.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long stream_copy(connection c, stream_options options) throws IOException
+    {
+        // A buffered stream as big as a chunk, so flushing is what decides when data goes out.
+        DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(c.socket_out, options.buffer_size));
+        byte[] buffer_data_array = new byte[options.buffer_size];
+        long sent = 0;
+        int bytes;
+        try (FileInputStream f_in = new FileInputStream(c.file))
+        {
+            while ((bytes = f_in.read(buffer_data_array)) != -1)
+            {
+                d_out.write(buffer_data_array, 0, bytes);
+                if (options.flush_per_chunk) d_out.flush();
+                sent += bytes;
+            }
+        }
+        d_out.flush();
+        return sent;
+    }
+
+    @Benchmark
+    public long channel_copy(connection c, buffer_options options) throws IOException
+    {
+        ByteBuffer buffer = options.buffer;
+        long sent = 0;
+        try (FileChannel file_channel = new FileInputStream(c.file).getChannel())
+        {
+            buffer.clear();
+            while (file_channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining()) sent += c.socket_channel.write(buffer);
+                buffer.clear();
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long checked_copy(connection c, buffer_options options, Blackhole blackhole) throws IOException
+    {
+        ByteBuffer buffer = options.buffer;
+        CRC32C checksum = new CRC32C();
+        long sent = 0;
+        try (FileChannel file_channel = new FileInputStream(c.file).getChannel())
+        {
+            buffer.clear();
+            while (file_channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                checksum.reset();
+                checksum.update(buffer.duplicate());
+                blackhole.consume(checksum.getValue());
+                while (buffer.hasRemaining()) sent += c.socket_channel.write(buffer);
+                buffer.clear();
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long transfer_to(connection c) throws IOException
+    {
+        long sent = 0;
+        try (FileChannel file_channel = new FileInputStream(c.file).getChannel())
+        {
+            long size = file_channel.size();
+            while (sent < size) sent += file_channel.transferTo(sent, size - sent, c.socket_channel);
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long read_ahead_copy(connection c, read_ahead_options options) throws Exception
+    {
+        ByteBuffer[] buffers = options.buffers;
+        int chunk_size = buffers[0].capacity();
+        long sent = 0;
+        try (AsynchronousFileChannel file_channel = AsynchronousFileChannel.open(c.file.toPath(), 
+            EnumSet.of(StandardOpenOption.READ), options.io))
+        {
+            long size = file_channel.size();
+            long chunks = (size + chunk_size - 1) / chunk_size;
+            // Chunk k is read into buffer k % buffers.length, as soon as the chunk before it in that buffer was sent.
+            List<Future<Integer>> reads = new ArrayList<Future<Integer>>();
+            for (int k = 0; k < buffers.length; k++) 
+                reads.add(k < chunks ? read(file_channel, buffers[k], k, chunk_size) : null);
+            for (long k = 0; k < chunks; k++)
+            {
+                int slot = (int) (k % buffers.length);
+                ByteBuffer buffer = buffers[slot];
+                int bytes = reads.get(slot).get();
+                while (bytes >= 0 && buffer.hasRemaining()) 
+                    bytes = file_channel.read(buffer, k * chunk_size + buffer.position()).get();
+                buffer.flip();
+                while (buffer.hasRemaining()) sent += c.socket_channel.write(buffer);
+                long next = k + buffers.length;
+                reads.set(slot, next < chunks ? read(file_channel, buffer, next, chunk_size) : null);
+            }
+        }
+        return sent;
+    }
+
+    // Start reading chunk k of the file into buffer.
+    private static Future<Integer> read(AsynchronousFileChannel file_channel, ByteBuffer buffer, long k, 
+        int chunk_size) throws IOException
+    {
+        buffer.clear();
+        long remaining = file_channel.size() - k * chunk_size;
+        if (remaining < chunk_size) buffer.limit((int) remaining);
+        return file_channel.read(buffer, k * chunk_size);
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Where the entries of an archive are unpacked, never outside of downloads.
+ */
+class archiveDownloadTest
+{
+    @TempDir
+    Path directory;
+
+    private Path downloads() throws IOException
+    {
+        return Files.createDirectories(directory.resolve("downloads")).toRealPath();
+    }
+
+    @Test
+    void unpacks_inside_downloads() throws IOException
+    {
+        Path downloads = downloads();
+        assertEquals(downloads.resolve("file.txt").toFile(), archiveDownload.target(downloads, "file.txt"));
+        assertEquals(downloads.resolve("a/b/c.txt").toFile(), archiveDownload.target(downloads, "a/b/c.txt"));
+        assertEquals(downloads.resolve("a/c.txt").toFile(), archiveDownload.target(downloads, "a/./c.txt"));
+    }
+
+    @Test
+    void refuses_names_going_outside() throws IOException
+    {
+        Path downloads = downloads();
+        assertNull(archiveDownload.target(downloads, "../file.txt"));
+        assertNull(archiveDownload.target(downloads, "a/../../file.txt"));
+        assertNull(archiveDownload.target(downloads, "a/../b.txt"));
+        assertNull(archiveDownload.target(downloads, "/etc/passwd"));
+        assertNull(archiveDownload.target(downloads, ""));
+        assertNull(archiveDownload.target(downloads, "."));
+    }
+
+    @Test
+    void refuses_names_it_would_trip_over() throws IOException
+    {
+        Path downloads = downloads();
+        assertNull(archiveDownload.target(downloads, "file\0.txt"));
+        // Files being written are named like this.
+        assertNull(archiveDownload.target(downloads, "file.txt.part"));
+    }
+
+    @Test
+    void refuses_links_leading_outside() throws IOException
+    {
+        Path downloads = downloads();
+        Path outside = Files.createDirectories(directory.resolve("outside"));
+        Files.createSymbolicLink(downloads.resolve("link"), outside);
+        assertNull(archiveDownload.target(downloads, "link/file.txt"));
+        assertNull(archiveDownload.target(downloads, "link/new/file.txt"));
+        // A link staying inside is fine.
+        Path inside = Files.createDirectories(downloads.resolve("inside"));
+        Files.createSymbolicLink(downloads.resolve("shortcut"), inside);
+        assertEquals(downloads.resolve("shortcut/file.txt").toFile(), archiveDownload.target(downloads, "shortcut/file.txt"));
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Files rebuilt from our copy and the instructions the server sends in answer to DELTA.
+ */
+class deltaPatchTest
+{
+    @TempDir
+    Path directory;
+
+    private File basis;
+    private byte[] basis_data;
+    private blockSignatures signatures;
+
+    // Our copy: 3 blocks of 1024 bytes and a last one of 500.
+    private void our_copy() throws IOException
+    {
+        basis_data = new byte[3 * 1024 + 500];
+        new Random(1).nextBytes(basis_data);
+        basis = Files.write(directory.resolve("basis.bin"), basis_data).toFile();
+        signatures = blockSignatures.of(basis);
+        assertEquals(1024, signatures.block_size);
+    }
+
+    // Instructions as the server writes them: blocks are {-(block + 1)}, new data is anything else.
+    private static DataInputStream instructions(byte[] md5, Object... parts) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Object part : parts)
+        {
+            if (part instanceof Integer)
+            {
+                out.writeInt(-((Integer) part + 1));
+            }
+            else
+            {
+                out.writeInt(((byte[]) part).length);
+                out.write((byte[]) part);
+            }
+        }
+        out.writeInt(0);
+        out.write(md5);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static byte[] md5(byte[] data) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    private byte[] block(int i)
+    {
+        return Arrays.copyOfRange(basis_data, i * 1024, Math.min(basis_data.length, (i + 1) * 1024));
+    }
+
+    @Test
+    void rebuilds_from_blocks_and_new_data() throws Exception
+    {
+        our_copy();
+        byte[] inserted = "new data between the blocks".getBytes("UTF-8");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] part : new byte[][] {block(3), inserted, block(0), block(0), block(2)}) expected.write(part);
+        byte[] file = expected.toByteArray();
+
+        File target = directory.resolve("target.bin").toFile();
+        assertTrue(deltaPatch.apply(instructions(md5(file), 3, inserted, 0, 0, 2), basis, signatures, target,
+            file.length));
+        assertArrayEquals(file, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void rebuilds_long_new_data_in_pieces() throws Exception
+    {
+        our_copy();
+        byte[] file = new byte[200000];
+        new Random(2).nextBytes(file);
+        File target = directory.resolve("target.bin").toFile();
+        assertTrue(deltaPatch.apply(instructions(md5(file), file), basis, signatures, target, file.length));
+        assertArrayEquals(file, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void rebuilds_an_empty_file() throws Exception
+    {
+        our_copy();
+        File target = directory.resolve("target.bin").toFile();
+        assertTrue(deltaPatch.apply(instructions(md5(new byte[0])), basis, signatures, target, 0));
+        assertEquals(0, target.length());
+    }
+
+    @Test
+    void tells_when_the_rebuilt_file_does_not_match() throws Exception
+    {
+        our_copy();
+        File target = directory.resolve("target.bin").toFile();
+        // The checksum is of other data.
+        assertFalse(deltaPatch.apply(instructions(md5(block(1)), 0), basis, signatures, target, 1024));
+        // The size is not the one the server announced.
+        assertFalse(deltaPatch.apply(instructions(md5(block(0)), 0), basis, signatures, target, 2048));
+    }
+
+    @Test
+    void refuses_blocks_we_do_not_have() throws Exception
+    {
+        our_copy();
+        File target = directory.resolve("target.bin").toFile();
+        assertThrows(IOException.class, () ->
+            deltaPatch.apply(instructions(new byte[16], 4), basis, signatures, target, 1024));
+    }
+
+    @Test
+    void fails_on_instructions_cut_short() throws Exception
+    {
+        our_copy();
+        DataInputStream cut = new DataInputStream(new ByteArrayInputStream(new byte[] {0, 0, 1, 0, 1, 2, 3}));
+        File target = directory.resolve("target.bin").toFile();
+        assertThrows(EOFException.class, () -> deltaPatch.apply(cut, basis, signatures, target, 256));
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The requests the client writes and the status it reads back, byte for byte as the
+ * servers read and write them.
+ */
+class fileRequestTest
+{
+    @TempDir
+    Path directory;
+
+    private static DataInputStream written(fileRequest request) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.write(new DataOutputStream(bytes));
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    void finds_the_server_version_in_its_greeting()
+    {
+        assertEquals(1, fileRequest.server_version("[10:00:00.000] Connection established."));
+        assertEquals(3, fileRequest.server_version("[10:00:00.000] Connection established. (FDP/3)"));
+    }
+
+    @Test
+    void writes_an_extended_request() throws IOException
+    {
+        fileRequest request = new fileRequest("dir/file.bin");
+        request.headers.put("Range", "bytes=100-");
+        DataInputStream in = written(request);
+        assertEquals(fileRequest.REQUEST_MAGIC, in.readUTF());
+        assertEquals(fileRequest.VERSION, in.readInt());
+        assertEquals(fileRequest.GET, in.readUTF());
+        assertEquals("dir/file.bin", in.readUTF());
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--) headers.put(in.readUTF(), in.readUTF());
+        assertEquals(0, in.available());
+        assertEquals(myfileclient.accept_encoding, headers.get("Accept-Encoding"));
+        assertEquals("crc32c", headers.get("Integrity"));
+        assertEquals("bytes=100-", headers.get("Range"));
+    }
+
+    @Test
+    void writes_a_catalog_request_without_download_headers() throws IOException
+    {
+        DataInputStream in = written(new fileRequest(fileRequest.LIST, "dir/"));
+        in.readUTF();
+        in.readInt();
+        assertEquals(fileRequest.LIST, in.readUTF());
+        assertEquals("dir/", in.readUTF());
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    void writes_the_signatures_after_a_delta() throws IOException
+    {
+        byte[] data = new byte[5000];
+        new Random(1).nextBytes(data);
+        File basis = Files.write(directory.resolve("basis.bin"), data).toFile();
+        fileRequest request = new fileRequest(fileRequest.DELTA, "basis.bin");
+        request.signatures = blockSignatures.of(basis);
+        assertEquals(blockSignatures.MIN_BLOCK_SIZE, request.signatures.block_size);
+        assertEquals(5, request.signatures.count());
+
+        DataInputStream in = written(request);
+        in.readUTF();
+        in.readInt();
+        assertEquals(fileRequest.DELTA, in.readUTF());
+        in.readUTF();
+        assertEquals(0, in.readInt());
+        assertEquals(1024, in.readInt());
+        assertEquals(5000, in.readLong());
+        assertEquals(5, in.readInt());
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(request.signatures.weak[i], in.readInt());
+            assertEquals(request.signatures.strong[i], in.readLong());
+        }
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    void picks_block_sizes_within_the_limits() throws IOException
+    {   // About the square root of the file, a multiple of 8.
+        File file = directory.resolve("sparse.bin").toFile();
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw"))
+        {
+            sparse.setLength(100000000);
+        }
+        blockSignatures signatures = blockSignatures.of(file);
+        assertEquals(10000, signatures.block_size);
+        assertEquals(10000, signatures.count());
+        File empty = Files.createFile(directory.resolve("empty.bin")).toFile();
+        assertEquals(0, blockSignatures.of(empty).count());
+    }
+
+    @Test
+    void reads_the_status_and_the_range() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(fileRequest.PARTIAL);
+        out.writeInt(2);
+        out.writeUTF("Content-Length");
+        out.writeUTF("90");
+        out.writeUTF("Content-Range");
+        out.writeUTF("bytes 10-99/100");
+        out.writeUTF("file data follows");
+
+        fileRequest request = new fileRequest("f");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(fileRequest.PARTIAL, request.read_status(in));
+        assertEquals("file data follows", in.readUTF());
+        assertEquals(10, request.range_start());
+        assertEquals(100, request.range_total());
+    }
+
+    @Test
+    void reads_a_range_not_satisfiable() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(fileRequest.RANGE_NOT_SATISFIABLE);
+        out.writeInt(1);
+        out.writeUTF("Content-Range");
+        out.writeUTF("bytes */100");
+
+        fileRequest request = new fileRequest("f");
+        assertEquals(fileRequest.RANGE_NOT_SATISFIABLE,
+            request.read_status(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        assertEquals(100, request.range_total());
+        assertEquals(-1, new fileRequest("f").range_total());
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Which mirror each file is asked from, and where to go when that one fails.
+ */
+class serverRingTest
+{
+    private static serverRing ring(String... addresses)
+    {
+        serverRing ring = new serverRing();
+        for (String address : addresses) ring.add(serverRing.server.parse(address));
+        return ring;
+    }
+
+    @Test
+    void parses_host_and_port()
+    {
+        serverRing.server s = serverRing.server.parse("files.example.com:8000");
+        assertEquals("files.example.com", s.host);
+        assertEquals(8000, s.port);
+        assertEquals("files.example.com:8000", s.toString());
+        assertEquals(s, serverRing.server.parse("files.example.com:8000"));
+        assertEquals("::1", serverRing.server.parse("::1:8000").host);
+        assertNull(serverRing.server.parse("files.example.com"));
+        assertNull(serverRing.server.parse(":8000"));
+        assertNull(serverRing.server.parse("files.example.com:http"));
+    }
+
+    @Test
+    void adds_each_server_once()
+    {
+        assertEquals(2, ring("a:1", "b:1", "a:1").size());
+    }
+
+    @Test
+    void lists_every_server_for_failover()
+    {
+        serverRing ring = ring("a:1", "b:1", "c:1");
+        for (int i = 0; i < 100; i++)
+        {
+            List<serverRing.server> replicas = ring.replicas("file-" + i);
+            assertEquals(3, replicas.size());
+            assertEquals(3, new HashSet<serverRing.server>(replicas).size());
+            // The same file always goes the same way.
+            assertEquals(replicas, ring.replicas("file-" + i));
+        }
+        assertEquals(Collections.singletonList(serverRing.server.parse("a:1")), ring("a:1").replicas("f"));
+    }
+
+    @Test
+    void spreads_the_files_over_the_servers()
+    {
+        serverRing ring = ring("a:1", "b:1", "c:1", "d:1");
+        Map<serverRing.server, Integer> first = new HashMap<serverRing.server, Integer>();
+        for (int i = 0; i < 4000; i++) first.merge(ring.replicas("dir/file-" + i).get(0), 1, Integer::sum);
+        assertEquals(4, first.size());
+        for (int files : first.values()) assertTrue(files > 500 && files < 1500, files + " files on one server");
+    }
+
+    @Test
+    void moves_only_the_files_of_a_new_server()
+    {   // Adding a mirror takes files away from the others, never moves them between the others.
+        serverRing before = ring("a:1", "b:1", "c:1");
+        serverRing after = ring("a:1", "b:1", "c:1", "d:1");
+        serverRing.server added = serverRing.server.parse("d:1");
+        int moved = 0;
+        for (int i = 0; i < 2000; i++)
+        {
+            List<serverRing.server> replicas = after.replicas("file-" + i);
+            List<serverRing.server> without = new ArrayList<serverRing.server>(replicas);
+            without.remove(added);
+            assertEquals(before.replicas("file-" + i), without);
+            if (replicas.get(0).equals(added)) moved++;
+        }
+        assertTrue(moved > 250 && moved < 750, moved + " files moved");
+    }
+}
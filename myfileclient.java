@@ -9,13 +9,85 @@
  * 
  *  FUNCTIONS :
  *      myfileclient.main()
+ *      myfileclient.backoff()
+ *      myfileclient.connect()
+ *      myfileclient.download_batch()
+ *      serverRing.replicas()
  *      SocketHandling.run()
+ *      SocketHandling.first_answer()
+ *      fileRequest.write()
+ *      fileRequest.read_status()
+ *      fileRequest.body()
+ *      checkedInputStream.read()
+ *      rangeRepair.repair()
+ *      blockSignatures.of()
+ *      deltaPatch.apply()
+ *      receivePipeline.write()
+ *      receivePipeline.close()
+ *      catalogQuery.list()
+ *      catalogQuery.stat()
+ *      archiveDownload.run()
+ *      archiveDownload.target()
+ *      loadGenerator.run()
+ *      loadGenerator.request()
+ *      segmentedDownload.run()
+ *      segmentedDownload.fetch()
+ *      batchDownload.run()
+ *      batchDownload.download_over_connection()
  *      clientTime.curent_time()
  *      fileLogging.log_exception()
  * 
  *  NOTES :
  *      - Version 0.0.1b had inconsistent issues with send/receive files over 1MB. Bytes_read variable did not
  *      match the file data array 'mybytearray' causing EOTF exceptions. Need to find a solution.
+ *      - When the server is overloaded it greets us with "Server busy, retry after N ms". We then try again
+ *      with an exponential backoff (never shorter than what the server asked for), up to --retries times.
+ *      - Files are downloaded to downloads/<filename>.part, and renamed once complete. When a .part file is 
+ *      already there and the server speaks protocol version 2, we only ask for the bytes we are missing.
+ *      - With --segments=n the file is split in byte ranges downloaded over n connections at once, each written
+ *      at its position in downloads/<filename>.segments. That file has holes until it is complete, so it is 
+ *      kept apart from the .part files that single connection downloads resume from.
+ *      - Several filenames (or @manifest, one filename per line) are downloaded over --connections connections 
+ *      kept open with "Connection: keep-alive", sending up to --pipeline requests ahead on each of them.
+ *      - Requests carry a "Receive-Buffer" header with the size of our socket receive buffer, set with 
+ *      --receive-buffer before connecting (the system picks it otherwise). The server keeps its chunks within it.
+ *      - Requests also list the codecs we can decompress (--accept-encoding, gzip and deflate by default). A file 
+ *      sent compressed comes in frames, fileRequest.body() gives it back decompressed to every download path.
+ *      - Files not compressed are asked for with a CRC32C checksum every chunk (--integrity, on by default). 
+ *      checkedInputStream checks each chunk as it is written, and rangeRepair downloads the chunks that failed 
+ *      again, with range requests, before the file is renamed. Interrupted downloads only keep checked bytes.
+ *      - When downloads/<filename> is already there and the server speaks protocol version 3, we send it the 
+ *      signatures of our copy's blocks with a DELTA request (--delta, on by default). The server answers with new 
+ *      data and blocks to copy from our copy, deltaPatch rebuilds the file in downloads/<filename>.delta and it 
+ *      replaces our copy in one rename if its MD5 matches the server's. Otherwise the whole file is downloaded.
+ *      - Files are written through receivePipeline: received data is copied into --write-buffers direct buffers 
+ *      of --write-buffer-size bytes, and a disk-writer thread writes the full ones with positional FileChannel 
+ *      writes while the next ones are received. The buffers are shared by every download, when the disk falls 
+ *      behind the reader waits for one, so memory stays the same whatever the size of the files. Lists of files 
+ *      start over every time, their .part files are given their full size first, and with --mapped-writes=on are 
+ *      written through memory mapped windows. Single downloads resume from the size of the .part file, so it 
+ *      only ever holds what was received.
+ *      - --list[=prefix] prints the files the server has (LIST, protocol version 3), streamed as they are read. 
+ *      --stat[=md5] prints the size, time and MD5 of the files given, without downloading them (STAT).
+ *      - --load=n turns the client into a load test of a server on this machine: n simulated clients (virtual 
+ *      threads on Java 21+) ask for the files given, picked by --weights, for --duration seconds. They speak the 
+ *      same protocol as SocketHandling but throw the bodies away, or check them against the server's MD5 with 
+ *      --verify=on. Without --rate each client waits for its file and thinks for about --think ms before the next 
+ *      one (closed loop). With --rate requests arrive on a schedule (open loop) and their latency counts from when 
+ *      they were due. Connection, first byte and transfer times go in latencyHistograms, reported as p50/p99/p999.
+ *      - A server that cannot be reached no longer ends the program with System.exit(), the client just returns.
+ *      - --servers=host:port,... adds mirrors of the server given first. serverRing hashes each server to 
+ *      VIRTUAL_NODES points on a ring (first 8 bytes of MD5) and a file to its own point, its replicas are the 
+ *      servers met going round the ring from there. SocketHandling asks them in that order, on its own thread 
+ *      each: one that refuses the connection, is busy or does not answer in --timeout ms hands over to the next 
+ *      right away, and with --hedge=ms the next one is also asked when no answer came in time. The first answer 
+ *      wins, the other connections are closed. Busy delays only count when no replica answered. Lists of files 
+ *      are split by replica, one batchDownload per server, and what a server could not send goes to the next 
+ *      replica. Segmented downloads, --list, --stat, --archive and --load only use one server.
+ *      - --archive=directory/ or --archive=glob downloads every file under the directory, or matching the glob, 
+ *      as one stream over one connection (ARCHIVE, protocol version 3). Entries are unpacked into downloads/ as 
+ *      they arrive, through receivePipeline and the .part files, and kept only when their CRC32C matches. Names 
+ *      that are absolute, go up with "..", or lead through a link out of downloads/ are read past and skipped.
  * 
  *  AUTHOR(S) : Noah Arcand Da Silva    START DATE : 2022.09.21 (YYYY.MM.DD)
  *
@@ -33,23 +105,440 @@
  */
 
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
 import java.text.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 
 
 public class myfileclient
 {
-    public static void main(String[] args)
+    public static int retries = 5;      // Number of times to try again when the server is busy.
+
+    public static int segments = 1;                 // Number of connections to download the file over.
+    public static long min_segment = 4 << 20;       // Smallest part of the file worth its own connection.
+    public static int segment_retries = 3;          // Number of times to try again a segment that failed.
+
+    public static int connections = 1;  // Number of connections to download a list of files over.
+    public static int pipeline = 8;     // Requests sent ahead on each connection, without waiting for the files.
+
+    public static int receive_buffer = 0;   // Socket receive buffer asked for, 0 leaves it to the system.
+    public static String accept_encoding = "gzip, deflate";     // Codecs the server may compress files with.
+    public static boolean integrity = true;     // Ask for files with a CRC32C checksum every chunk.
+    public static boolean delta = true;         // Only download what changed in files we already have.
+
+    public static int write_buffers = 8;                // Buffers of received data waiting for the disk, at most.
+    public static int write_buffer_size = 1 << 20;      // Size of each of them.
+    public static boolean mapped_writes = false;        // Write lists of files through memory mapped windows.
+
+    public static String list_prefix;   // List the server's files starting with this, instead of downloading.
+    public static String stat;          // Ask for the size and time of the files ("md5" adds their MD5).
+    public static String archive;       // Download the files under this directory, or matching this glob.
+
+    public static int load = 0;         // Simulated clients of a load test, 0 downloads the files instead.
+    public static double rate = 0;      // Requests a second sent by the load test, 0 for a closed loop.
+    public static int duration = 10;    // Length of the load test, in seconds.
+    public static long think_time = 0;  // Average pause of a simulated client between two requests, in ms.
+    public static List<Double> weights = new ArrayList<Double>();   // How often each file is asked for.
+    public static boolean verify = false;       // Check the bodies against the server's MD5.
+    public static boolean keep_alive = false;   // Simulated clients keep their connection between requests.
+
+    public static serverRing ring = new serverRing();   // Servers mirroring the files, and which one has which.
+    public static long hedge = 0;       // Also ask the next replica when a server has not answered in this many ms.
+    public static int timeout = 0;      // Give up on a server not connecting or answering in this many ms, 0 waits.
+
+    // Shown when the client is started with invalid arguments.
+    public static final String USAGE = 
+        "Usage: java myfileclient.java host port filename... [@manifest] [--retries=n]\n"
+        + "                               [--segments=n] [--min-segment=bytes] [--segment-retries=n]\n"
+        + "                               [--connections=n] [--pipeline=n] [--receive-buffer=bytes]\n"
+        + "                               [--accept-encoding=gzip,deflate] [--integrity=on|off] [--delta=on|off]\n"
+        + "                               [--write-buffers=n] [--write-buffer-size=bytes] [--mapped-writes=on|off]\n"
+        + "                               [--servers=host:port,...] [--hedge=ms] [--timeout=ms]\n"
+        + "       java myfileclient.java host port --list[=prefix]\n"
+        + "       java myfileclient.java host port filename... --stat[=md5]\n"
+        + "       java myfileclient.java host port --archive=directory|glob\n"
+        + "       java myfileclient.java host port filename... --load=clients [--rate=requests/s] [--duration=s]\n"
+        + "                               [--think=ms] [--weights=w,...] [--verify=on|off] [--keep-alive=on|off]";
+
+    public static void main(String[] args) throws InterruptedException
     {   
         // Initializing the arguments given when executing the program.
         String server_ip = args[0];
         int server_port = Integer.valueOf(args[1]);
-        String filename = args[2];
+        List<String> filenames = new ArrayList<String>();
+        ring.add(new serverRing.server(server_ip, server_port));
+
+        // Read the filenames and the options given after them, written as --name=value.
+        for (int i = 2; i < args.length; i++)
+        {
+            if (!args[i].startsWith("--"))
+            {
+                if (!add_filenames(args[i], filenames)) return;
+                continue;
+            }
+            int split = args[i].indexOf('=');
+            String name = (split < 0) ? args[i] : args[i].substring(0, split);
+            String value = (split < 0) ? "" : args[i].substring(split + 1);
+            try
+            {
+                switch (name)
+                {
+                    case "--retries":           retries = Integer.parseInt(value); break;
+                    case "--segments":          segments = Math.max(1, Integer.parseInt(value)); break;
+                    case "--min-segment":       min_segment = Math.max(1, Long.parseLong(value)); break;
+                    case "--segment-retries":   segment_retries = Integer.parseInt(value); break;
+                    case "--connections":       connections = Math.max(1, Integer.parseInt(value)); break;
+                    case "--pipeline":          pipeline = Math.max(1, Integer.parseInt(value)); break;
+                    case "--receive-buffer":    receive_buffer = Math.max(0, Integer.parseInt(value)); break;
+                    case "--accept-encoding":   accept_encoding = value; break;
+                    case "--write-buffers":     write_buffers = Math.max(2, Integer.parseInt(value)); break;
+                    case "--write-buffer-size": write_buffer_size = Math.max(4096, Integer.parseInt(value)); break;
+                    case "--list":              list_prefix = value; break;
+                    case "--stat":              stat = value; break;
+                    case "--archive":           archive = value; break;
+                    case "--load":              load = Math.max(1, Integer.parseInt(value)); break;
+                    case "--rate":              rate = Math.max(0, Double.parseDouble(value)); break;
+                    case "--duration":          duration = Math.max(1, Integer.parseInt(value)); break;
+                    case "--think":             think_time = Math.max(0, Long.parseLong(value)); break;
+                    case "--hedge":             hedge = Math.max(0, Long.parseLong(value)); break;
+                    case "--timeout":           timeout = Math.max(0, Integer.parseInt(value)); break;
+                    case "--servers":
+                        for (String mirror : value.split(","))
+                        {
+                            serverRing.server server = serverRing.server.parse(mirror);
+                            if (server == null)
+                            {
+                                System.out.println("Option " + name + " takes host:port,...\n" + USAGE);
+                                return;
+                            }
+                            ring.add(server);
+                        }
+                        break;
+                    case "--weights":
+                        for (String weight : value.split(",")) weights.add(Math.max(0, Double.parseDouble(weight)));
+                        break;
+                    case "--integrity":
+                        if (!value.equals("on") && !value.equals("off"))
+                        {
+                            System.out.println("Option " + name + " must be on or off\n" + USAGE);
+                            return;
+                        }
+                        integrity = value.equals("on");
+                        break;
+                    case "--delta":
+                        if (!value.equals("on") && !value.equals("off"))
+                        {
+                            System.out.println("Option " + name + " must be on or off\n" + USAGE);
+                            return;
+                        }
+                        delta = value.equals("on");
+                        break;
+                    case "--mapped-writes":
+                        if (!value.equals("on") && !value.equals("off"))
+                        {
+                            System.out.println("Option " + name + " must be on or off\n" + USAGE);
+                            return;
+                        }
+                        mapped_writes = value.equals("on");
+                        break;
+                    case "--verify":
+                    case "--keep-alive":
+                        if (!value.equals("on") && !value.equals("off"))
+                        {
+                            System.out.println("Option " + name + " must be on or off\n" + USAGE);
+                            return;
+                        }
+                        if (name.equals("--verify")) verify = value.equals("on");
+                        else keep_alive = value.equals("on");
+                        break;
+                    default:
+                        System.out.println("Unknown option " + args[i] + "\n" + USAGE);
+                        return;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Option " + name + " must be a number\n" + USAGE);
+                return;
+            }
+        }
+
+        if (list_prefix != null)
+        {   // Only list what the server has.
+            catalogQuery.list(server_ip, server_port, list_prefix);
+            return;
+        }
+        if (archive != null)
+        {   // Download a whole directory, or the files matching a pattern, over one connection.
+            archiveDownload.run(server_ip, server_port, archive);
+            return;
+        }
+        if (filenames.isEmpty())
+        {
+            System.out.println("No file to download\n" + USAGE);
+            return;
+        }
+        if (stat != null)
+        {   // Only ask about the files.
+            catalogQuery.stat(server_ip, server_port, filenames, stat.equals("md5"));
+            return;
+        }
+        if (load > 0)
+        {   // Ask for the files over and over, as many clients at once, and measure how the server does.
+            loadGenerator lg = new loadGenerator(server_ip, server_port, filenames);
+            lg.run();
+            return;
+        }
+        if (filenames.size() > 1)
+        {   // Download all the files over a few connections kept open, to each server.
+            download_batch(filenames);
+            return;
+        }
+        String filename = filenames.get(0);
+        List<serverRing.server> replicas = ring.replicas(filename);
+
+        if (segments > 1)
+        {   // Download the file over several connections at once, all of them to the file's first replica.
+            segmentedDownload sd = new segmentedDownload(replicas.get(0).host, replicas.get(0).port, filename);
+            sd.run();
+            return;
+        }
+
+        for (int attempt = 0; ; attempt++)
+        {   // Creating object of the SocketHandling class.
+            SocketHandling sh = new SocketHandling();
+            sh.run(replicas, filename);
+
+            // Start over right away if our partial download did not match the server's file.
+            if (sh.restart && attempt < retries) continue;
+            // Try again later if the server was too busy for us.
+            if (sh.retry_after < 0 || attempt >= retries) break;
+            long delay = backoff(sh.retry_after, attempt);
+            System.out.println(clientTime.current_time() + "Server busy, retrying in " + delay + " ms");
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Download a list of files from the servers of the ring. Each file goes to its first replica, 
+     * with a batchDownload for each server running at the same time. Files a server could not 
+     * send are asked for again from their next replica, until every replica was tried.
+     */
+    static void download_batch(List<String> filenames) throws InterruptedException
+    {
+        List<String> left = filenames;
+        for (int round = 0; round < ring.size() && !left.isEmpty(); round++)
+        {
+            if (round > 0)
+                System.out.println(clientTime.current_time() + left.size() + " files left, asking their next replica");
+            // Group the files by the server they go to this round.
+            Map<serverRing.server, List<String>> routes = new LinkedHashMap<serverRing.server, List<String>>();
+            for (String filename : left)
+            {
+                serverRing.server server = ring.replicas(filename).get(round);
+                routes.computeIfAbsent(server, s -> new ArrayList<String>()).add(filename);
+            }
+            List<batchDownload> batches = new ArrayList<batchDownload>();
+            List<Thread> batch_threads = new ArrayList<Thread>();
+            for (Map.Entry<serverRing.server, List<String>> route : routes.entrySet())
+            {
+                batchDownload bd = new batchDownload(route.getKey().host, route.getKey().port, route.getValue());
+                bd.failover = (round + 1 < ring.size());
+                Thread batch_thread = new Thread(() -> 
+                {
+                    try
+                    {
+                        bd.run();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                });
+                batches.add(bd);
+                batch_threads.add(batch_thread);
+                batch_thread.start();
+            }
+            for (Thread batch_thread : batch_threads) batch_thread.join();
+
+            left = new ArrayList<String>();
+            for (batchDownload bd : batches) left.addAll(bd.unfinished());
+        }
+    }
+
+    /**
+     * Add a filename to the list, or every filename listed in a manifest given as @path, 
+     * one per line. Blank lines and lines starting with # are skipped.
+     */
+    static boolean add_filenames(String arg, List<String> filenames)
+    {
+        if (!arg.startsWith("@"))
+        {
+            filenames.add(arg);
+            return true;
+        }
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1))))
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) filenames.add(line);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Cannot read manifest " + arg.substring(1) + "\n" + USAGE);
+            return false;
+        }
+    }
+
+    /**
+     * Open a connection to the server. The receive buffer has to be set before connecting, 
+     * it decides the largest window the connection can ever offer the server. With --timeout 
+     * a server that does not accept the connection in time is given up on.
+     */
+    static Socket connect(String server_ip, int server_port) throws IOException
+    {
+        Socket socket = new Socket();
+        if (receive_buffer > 0) socket.setReceiveBufferSize(receive_buffer);
+        socket.connect(new InetSocketAddress(server_ip, server_port), timeout);
+        return socket;
+    }
+
+    /**
+     * Exponential backoff with jitter, starting at the delay the server asked for.
+     * The jitter keeps clients turned away together from all coming back at once.
+     */
+    static long backoff(long retry_after, int attempt)
+    {
+        long delay = Math.max(retry_after, 100) << Math.min(attempt, 6);
+        return delay + (long) (Math.random() * delay / 2);
+    }
+}
+
+
+/**
+ * Servers mirroring the same files, placed on a ring by consistent hashing. Each server has 
+ * VIRTUAL_NODES points on the ring, and a file goes to the first server after its own point, 
+ * then to the next ones in ring order when that server cannot send it. Adding or removing a 
+ * server only moves the files next to its points, every other file keeps its server.
+ */
+class serverRing
+{
+    public static final int VIRTUAL_NODES = 64;     // Points of each server on the ring, spreads the files evenly.
+
+    private TreeMap<Long, server> points = new TreeMap<Long, server>();    // Position on the ring, server.
+    private List<server> servers = new ArrayList<server>();
+
+    /**
+     * A server of the ring.
+     */
+    static class server
+    {
+        final String host;
+        final int port;
+
+        server(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * The server written as host:port, or null if it is not.
+         */
+        static server parse(String address)
+        {
+            int split = address.lastIndexOf(':');
+            if (split <= 0) return null;
+            try
+            {
+                return new server(address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof server && ((server) other).host.equals(host) && ((server) other).port == port;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return host.hashCode() * 31 + port;
+        }
+
+        @Override
+        public String toString()
+        {
+            return host + ":" + port;
+        }
+    }
+
+    public void add(server s)
+    {
+        if (servers.contains(s)) return;
+        servers.add(s);
+        for (int i = 0; i < VIRTUAL_NODES; i++) points.put(hash(s + "#" + i), s);
+    }
+
+    public int size()
+    {
+        return servers.size();
+    }
+
+    /**
+     * Every server, in the order to ask them for the file.
+     */
+    public List<server> replicas(String filename)
+    {
+        List<server> replicas = new ArrayList<server>(servers.size());
+        if (servers.size() == 1)
+        {
+            replicas.add(servers.get(0));
+            return replicas;
+        }
+        long position = hash(filename);
+        // Go round the ring from the file's position, wrapping around at the end.
+        for (Collection<server> half : Arrays.asList(points.tailMap(position).values(), 
+            points.headMap(position).values()))
+        {
+            for (server s : half)
+            {
+                if (!replicas.contains(s)) replicas.add(s);
+                if (replicas.size() == servers.size()) return replicas;
+            }
+        }
+        return replicas;
+    }
 
-        // Creating object of the SocketHandling class.
-        SocketHandling sh = new SocketHandling();
-        sh.run(server_ip, server_port, filename);
+    /**
+     * Position on the ring, the first 8 bytes of the MD5 of the key. 
+     */
+    private static long hash(String key)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return ByteBuffer.wrap(digest).getLong();
+        }
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
     }
 }
 
@@ -63,7 +552,8 @@ class SocketHandling extends Thread
     // Initializing stream variables.
     private DataInputStream d_in;   //  Receive data from server.
     private DataOutputStream d_out; //  Send data to server.
-    private FileOutputStream f_out; //  Write to a file.
+    private FileChannel part_channel;   //  The file being downloaded.
+    private receivePipeline f_out;      //  Write to the file, while the next chunks are received.
 
     // Variables to receive from server.
     private boolean file_found = false; // Determine if file request by client exists.
@@ -72,67 +562,339 @@ class SocketHandling extends Thread
 
     private int bytes;                  // Size of file data chunks.
 
-    public void run(String server_ip, int server_port, String filename)
+    // Starts the greeting of a server too busy to serve us, followed by the delay in ms.
+    public static final String BUSY_MESSAGE = "Server busy, retry after ";
+    public long retry_after = -1;       // Delay asked by a busy server before trying again, in ms.
+    public boolean restart = false;     // Our partial download is no good, download the whole file again.
+
+    private int server_version = 1;     // Protocol version spoken by the server.
+    private long offset = 0;            // Bytes of the file we already have from an interrupted download.
+
+    /**
+     * Delay asked for by a busy server in its greeting, in ms, or -1 if the server is not busy.
+     */
+    public static long busy_delay(String greeting)
     {
-        try
+        if (!greeting.contains(BUSY_MESSAGE)) return -1;
+        String delay = greeting.substring(greeting.indexOf(BUSY_MESSAGE) + BUSY_MESSAGE.length());
+        return Long.parseLong(delay.substring(0, delay.indexOf(' ')));
+    }
+
+    /**
+     * Ask the replicas for the file, in ring order, until one answers. A replica that cannot be 
+     * reached, does not answer in myfileclient.timeout ms or is busy hands over to the next one 
+     * right away. With --hedge, when no answer came in myfileclient.hedge ms the next replica is 
+     * asked as well, and the first to answer is kept. The others are closed. Returns null when 
+     * none of them answered, with retry_after set to the shortest delay asked by a busy one.
+     */
+    private attempt first_answer(List<serverRing.server> replicas) throws InterruptedException
+    {
+        BlockingQueue<attempt> done = new LinkedBlockingQueue<attempt>();   // Attempts that are over.
+        List<attempt> started = new ArrayList<attempt>();
+        attempt winner = null;
+        int running = 0;
+        while (winner == null)
         {
-            System.out.println(clientTime.current_time() + "Connecting to " + server_ip + ":" + server_port);
-            
-            try
-            {   // Open a new socket session.
-                socket = new Socket(server_ip, server_port);
+            if (running == 0)
+            {   // Nothing left to wait for, move on to the next replica.
+                if (started.size() == replicas.size()) break;
+                start(replicas.get(started.size()), started, done);
+                running++;
+            }
+            boolean hedging = myfileclient.hedge > 0 && started.size() < replicas.size();
+            attempt over = hedging ? done.poll(myfileclient.hedge, TimeUnit.MILLISECONDS) : done.take();
+            if (over == null)
+            {   // Too slow, race it with the next replica.
+                System.out.println(clientTime.current_time() + "No answer after " + myfileclient.hedge 
+                    + " ms, also asking " + replicas.get(started.size()));
+                start(replicas.get(started.size()), started, done);
+                running++;
+                continue;
+            }
+            running--;
+            if (over.answer != null) winner = over;
+            else if (over.retry_after >= 0)
+            {   // Remember how long it wants us to wait, in case no other replica can send the file.
+                System.out.println(over.greeting);
+                if (retry_after < 0 || over.retry_after < retry_after) retry_after = over.retry_after;
+            }
+            else if (over.failure instanceof SocketTimeoutException)
+            {
+                System.out.println(clientTime.current_time() + "No answer from " + over.server + " in " 
+                    + myfileclient.timeout + " ms");
+                fileLogging.log_exception(over.failure);    // Write error to the log file.
+            }
+            else
+            {
+                System.out.println(clientTime.current_time() + "Cannot connect to the server " + over.server + "\n" 
+                    + "Either the given address/port is invalid or the server is closed.");
+                fileLogging.log_exception(over.failure);    // Write error to the log file.
             }
-            catch (ConnectException c_e)
-            {   // If the socket cannot establish a connection, close the client program.
-                System.out.println(clientTime.current_time() + "Cannot connect to the server "+ server_ip + ":" + 
-                    server_port + "\n" + "Either the given address/port is invalid or the server is closed.");
-                fileLogging.log_exception(c_e); // Write error to the log file.
-                System.exit(0);
+        }
+        for (attempt other : started) 
+            if (other != winner) other.close();
+        return winner;
+    }
+
+    private void start(serverRing.server server, List<attempt> started, BlockingQueue<attempt> done)
+    {
+        System.out.println(clientTime.current_time() + "Connecting to " + server);
+        attempt a = new attempt(server, done);
+        started.add(a);
+        Thread attempt_thread = new Thread(a);
+        attempt_thread.setDaemon(true);     // Nothing keeps the client running for a server that never answers.
+        attempt_thread.start();
+    }
+
+    /**
+     * The request for the file, as the server it goes to can understand it. Only asks for what we 
+     * are missing when we have part of the file, or what changed when we have all of it.
+     */
+    private synchronized fileRequest prepare_request(int version, Socket socket) throws IOException
+    {
+        fileRequest request = new fileRequest(filename);
+        request.advertise(socket);
+        if (version >= 3 && myfileclient.delta && !part_file.exists() && local_file.isFile())
+        {   // We have a copy of the file already, only ask for what changed.
+            if (signatures == null) signatures = blockSignatures.of(local_file);
+            request.command = fileRequest.DELTA;
+            request.signatures = signatures;
+        }
+        else if (version >= 2 && part_file.exists())
+        {   // An earlier download was interrupted, only ask for what is missing.
+            offset = part_file.length();
+            request.headers.put("Range", "bytes=" + offset + "-");
+        }
+        return request;
+    }
+
+    /**
+     * One replica asked for the file, up to the first line of its answer.
+     */
+    private class attempt implements Runnable
+    {
+        final serverRing.server server;     // Replica asked.
+        final BlockingQueue<attempt> done;  // Where to say it is over.
+
+        Socket socket;
+        DataInputStream d_in;
+        DataOutputStream d_out;
+        String greeting;
+        int server_version = 1;
+        fileRequest request;
+        String answer;                  // First line of the server's answer, null if it never came.
+        long retry_after = -1;          // Delay asked for by a busy server.
+        Exception failure;              // Why it did not answer.
+        private boolean closed = false; // Another replica answered first.
+
+        attempt(serverRing.server server, BlockingQueue<attempt> done)
+        {
+            this.server = server;
+            this.done = done;
+        }
+
+        public void run()
+        {
+            try
+            {
+                Socket connected = myfileclient.connect(server.host, server.port);
+                synchronized (this)
+                {
+                    socket = connected;
+                    if (closed) socket.close();
+                }
+                // Wait for the greeting and the answer no longer than --timeout.
+                socket.setSoTimeout(myfileclient.timeout);
+                // Start Data Types IO Streaming between the client and the server. 
+                d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                greeting = d_in.readUTF();
+                // If the server is busy, remember how long it wants us to wait.
+                retry_after = busy_delay(greeting);
+                if (retry_after >= 0)
+                {   // The server still expects a request, it answers it with nothing.
+                    d_out.writeUTF("");
+                    d_out.flush();
+                    close();
+                }
+                else
+                {   // Newer servers tell us which version of the protocol they speak at the end of the greeting.
+                    server_version = fileRequest.server_version(greeting);
+                    request = prepare_request(server_version, socket);
+                    // Send filename to the server, as an extended request if the server understands it.
+                    if (server_version >= 2) request.write(d_out);
+                    else d_out.writeUTF(filename);
+                    d_out.flush();
+                    answer = d_in.readUTF();
+                    socket.setSoTimeout(0);
+                }
             }
             catch (Exception e)
-            {   // If another type of error occured, write it to the log file.
+            {
+                answer = null;
+                failure = e;
+                close();
+            }
+            done.add(this);
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            try
+            {
+                if (socket != null) socket.close();
+            }
+            catch (IOException e)
+            {
                 fileLogging.log_exception(e);
             }
+        }
+    }
 
-            // Start Data Types IO Streaming between the client and the server. 
-            d_in = new DataInputStream(socket.getInputStream());
-            d_out = new DataOutputStream(socket.getOutputStream());
+    private String filename;            // File to download.
+    private File part_file;             // Where the file is downloaded, until it is complete.
+    private File local_file;            // Our copy of the file, once downloaded.
+    private blockSignatures signatures; // Blocks of our copy, computed once for every replica asked.
+
+    public void run(String server_ip, int server_port, String filename)
+    {
+        run(Collections.singletonList(new serverRing.server(server_ip, server_port)), filename);
+    }
+
+    /**
+     * Download the file from the first of its replicas to answer.
+     */
+    public void run(List<serverRing.server> replicas, String filename)
+    {
+        try
+        {
+            this.filename = filename;
+            java_file_path =    // Set the .java file's directory to the variable.
+                myfileclient.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+            // Remove the filename from the path.
+            java_file_path = java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1);
+            // The file is downloaded under a temporary name, and renamed once complete.
+            part_file = new File(java_file_path + "downloads/" + filename + ".part");
 
-            System.out.println(d_in.readUTF()); // Receive message from server, client is connected.
-            d_out.writeUTF(filename);   // Send filename to the server.
+            local_file = new File(java_file_path + "downloads/" + filename);
 
-            System.out.println(d_in.readUTF()); // Receive message from server, file [not] found.
+            attempt answered = first_answer(replicas);
+            // If no server can send the file, there is nothing left to do.
+            if (answered == null) return;
+            retry_after = -1;
+            socket = answered.socket;
+            d_in = answered.d_in;
+            d_out = answered.d_out;
+            server_version = answered.server_version;
+            fileRequest request = answered.request;
+            String server_ip = answered.server.host;
+            int server_port = answered.server.port;
+
+            System.out.println(answered.greeting);  // Receive message from server, client is connected.
+            if (request.command.equals(fileRequest.DELTA))
+                System.out.println(clientTime.current_time() + "Comparing " + filename + " with our copy, " 
+                    + request.signatures.count() + " blocks of " + request.signatures.block_size + " bytes");
+            else if (request.headers.containsKey("Range"))
+                System.out.println(clientTime.current_time() + "Resuming download of " + filename 
+                    + " from byte " + offset);
+            System.out.println(answered.answer); // Receive message from server, file [not] found.
             System.out.println(d_in.readUTF()); // Receive message from server, server's request statistics.
 
-            // If the server didn't find the file, end the client socket early.
             file_found = d_in.readBoolean();
+            int status = (server_version >= 2) ? request.read_status(d_in) : fileRequest.OK;
+            if (status == fileRequest.RANGE_NOT_SATISFIABLE)
+            {   // Our partial file is bigger than the server's file, it must have changed.
+                System.out.println(clientTime.current_time() + "Partial download does not match the "
+                    + "server's file, starting over");
+                part_file.delete();
+                restart = true;
+            }
+            // If the server didn't find the file, end the client socket early.
             if (!file_found) return;
 
             System.out.println(d_in.readUTF()); // Receive message from server, downloading file.
 
-            java_file_path =    // Set the .java file's directory to the variable.
-                myfileclient.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
-            // Remove the filename from the path.
-            java_file_path = java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1);
+            if (request.response_headers.containsKey("Delta"))
+            {   // Rebuild the file from our copy and what changed, then put it in its place.
+                filesize = d_in.readLong();
+                BUFFER = d_in.readInt();
+                File delta_file = new File(java_file_path + "downloads/" + filename + ".delta");
+                if (deltaPatch.apply(d_in, local_file, request.signatures, delta_file, filesize))
+                {
+                    Files.move(delta_file.toPath(), local_file.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                else
+                {   // Not what the server has, download the whole file instead.
+                    System.out.println(clientTime.current_time() + "Rebuilt " + filename 
+                        + " does not match the server's file, downloading all of it");
+                    delta_file.delete();
+                    myfileclient.delta = false;
+                    restart = true;
+                }
+                System.out.println(d_in.readUTF()); // Receive message from server, download is completed.
+                return;
+            }
 
-            // Getting ready to download the file.
-            f_out = new FileOutputStream(java_file_path + "downloads/" + filename);
+            // Getting ready to download the file. Only keep what we have if the server
+            // is sending the rest of it, otherwise start from the beginning.
+            boolean resuming = (status == fileRequest.PARTIAL && request.range_start() == offset);
+            part_channel = receivePipeline.open(part_file, !resuming);
             
             // Receive the file and buffer size from the server.
             filesize = d_in.readLong();
             BUFFER = d_in.readInt();
+            // Resuming goes by the size of the .part file, it only ever holds what we received.
+            f_out = new receivePipeline(part_channel, resuming ? offset : 0, filesize, false);
 
             bytes = 0;
             // Initialize a byte array same size as the buffer.
             byte[] buffer_data_array  = new byte[BUFFER];
-            // Downloading file, reading from data stream, one chunk at time, until we reach the end.
-            while (filesize > 0 && (bytes = d_in.read(buffer_data_array,
-                0, (int)Math.min(buffer_data_array.length, filesize))) != -1)
-            {   // Write chunks into the file stream.
-                f_out.write(buffer_data_array, 0, bytes);
-                filesize -= bytes;  // Decrease the size of the file, by the buffer chunk size.
+            // The file data, decompressed if the server compressed it.
+            InputStream body = request.body(d_in);
+            if (request.response_headers.containsKey("Content-Encoding"))
+                System.out.println(clientTime.current_time() + "Receiving " + filename + " compressed with " 
+                    + request.response_headers.get("Content-Encoding"));
+            try
+            {   // Downloading file, reading from data stream, one chunk at time, until we reach the end.
+                while (filesize > 0 && (bytes = body.read(buffer_data_array,
+                    0, (int)Math.min(buffer_data_array.length, filesize))) != -1)
+                {   // Write chunks into the file stream.
+                    f_out.write(buffer_data_array, 0, bytes);
+                    filesize -= bytes;  // Decrease the size of the file, by the buffer chunk size.
+                }
+                body.close();                   // Read up to the end of the file data.
+            }
+            catch (IOException e)
+            {   // Write out what was received, but only keep what passed its checksum, resuming carries on from there.
+                try
+                {
+                    f_out.close();
+                }
+                catch (IOException write_error)
+                {
+                    e.addSuppressed(write_error);
+                }
+                if (body instanceof checkedInputStream) 
+                    part_channel.truncate(((checkedInputStream) body).verified());
+                throw e;
+            }
+            f_out.close();                      // Wait for the disk to have all of the file.
+            part_channel.close();
+
+            if (filesize == 0 && !rangeRepair.repair(server_ip, server_port, filename, part_file, 
+                request.bad_ranges))
+            {   // Parts of the file are wrong and could not be downloaded again.
+                System.out.println(clientTime.current_time() + "Download of " + filename + " failed");
+                part_file.delete();
+            }
+            else if (filesize == 0)
+            {   // Everything is here, give the file its real name.
+                Files.move(part_file.toPath(), new File(java_file_path + "downloads/" + filename).toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING);
             }
-            f_out.close();                      // Close the file stream needed for the transfer.
 
             System.out.println(d_in.readUTF()); // Receive message from server, download is completed.
         }
@@ -154,11 +916,12 @@ class SocketHandling extends Thread
         {
             try
             {   // Attempt to close the socket and other tools.
-                System.out.println(d_in.readUTF());
+                if (d_in != null) System.out.println(d_in.readUTF());
                 if (d_in != null) d_in.close();
                 if (d_out != null) d_out.close();
                 if (f_out != null) f_out.close();
-                socket.close();
+                if (part_channel != null) part_channel.close();
+                if (socket != null) socket.close();
             }
             catch (SocketException e)
             {   // SocketException already catched above, no duplicates.
@@ -174,6 +937,2035 @@ class SocketHandling extends Thread
 }
 
 
+class fileRequest
+{
+    // Sent in place of the filename to servers speaking protocol version 2 or newer,
+    // followed by the extended request.
+    public static final String REQUEST_MAGIC = "\u0000FDP";
+    public static final int VERSION = 3;    // Newest version of the protocol the client speaks.
+    // Newer servers end their greeting with this, followed by their version and ')'.
+    public static final String VERSION_MARK = "(FDP/";
+
+    // Commands of the extended request.
+    public static final String GET = "GET";
+    public static final String DELTA = "DELTA";     // Only what changed since our copy (version 3).
+    public static final String LIST = "LIST";       // Files under a prefix, from the server's catalog (version 3).
+    public static final String STAT = "STAT";       // Size, time and MD5 of a file, from the catalog (version 3).
+    public static final String ARCHIVE = "ARCHIVE"; // Files under a directory or matching a glob, as one stream.
+
+    // Status codes sent by newer servers, borrowed from HTTP.
+    public static final int OK = 200;
+    public static final int PARTIAL = 206;
+    public static final int BAD_REQUEST = 400;
+    public static final int NOT_FOUND = 404;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
+
+    public String command = GET;        // What we are asking the server for.
+    public String filename;             // File the command applies to.
+    public Map<String, String> headers = new LinkedHashMap<String, String>();  // Options of the command.
+    public blockSignatures signatures;  // Blocks of our copy of the file, sent with DELTA.
+    public Map<String, String> response_headers = new LinkedHashMap<String, String>();  // Server's answer.
+    // Parts of the file that failed their checksum, each as {first byte, last byte}.
+    public List<long[]> bad_ranges = new ArrayList<long[]>();
+
+    public fileRequest(String filename)
+    {
+        this.filename = filename;
+        // Let the server compress the file, older servers skip headers they do not know.
+        if (!myfileclient.accept_encoding.isEmpty()) headers.put("Accept-Encoding", myfileclient.accept_encoding);
+        // Files not compressed come with a checksum every chunk.
+        if (myfileclient.integrity) headers.put("Integrity", "crc32c");
+    }
+
+    /**
+     * A request answered without sending a file, it has no use for the download headers.
+     */
+    public fileRequest(String command, String filename)
+    {
+        this.command = command;
+        this.filename = filename;
+    }
+
+    /**
+     * Protocol version spoken by the server, found at the end of its greeting. 
+     * Servers that do not say only understand plain filename requests (version 1).
+     */
+    public static int server_version(String greeting)
+    {
+        if (!greeting.contains(VERSION_MARK)) return 1;
+        String version = greeting.substring(greeting.lastIndexOf(VERSION_MARK) + VERSION_MARK.length());
+        return Integer.parseInt(version.substring(0, version.indexOf(')')));
+    }
+
+    /**
+     * Tell the server how big our socket receive buffer is, so it does not send chunks bigger 
+     * than what we can take in at once. Older servers skip headers they do not know.
+     */
+    public void advertise(Socket socket) throws SocketException
+    {
+        headers.put("Receive-Buffer", Integer.toString(socket.getReceiveBufferSize()));
+    }
+
+    /**
+     * Send the extended request: REQUEST_MAGIC, our version, the command, the filename, and the 
+     * number of headers followed by each header's name and value. DELTA requests end with the 
+     * signatures of our copy.
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeUTF(REQUEST_MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(command);
+        out.writeUTF(filename);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet())
+        {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+        if (signatures != null) signatures.write(out);
+    }
+
+    /**
+     * Read the status code and headers the server sends after the file found flag.
+     */
+    public int read_status(DataInputStream in) throws IOException
+    {
+        int status = in.readInt();
+        int header_count = in.readInt();
+        for (int i = 0; i < header_count; i++)
+        {
+            response_headers.put(in.readUTF(), in.readUTF());
+        }
+        return status;
+    }
+
+    /**
+     * The file data as it comes from the server. Compressed files (with a "Content-Encoding" header) 
+     * come in frames, each one an int length followed by that much data, and end with an empty 
+     * frame. They are decompressed here, so reading the stream always gives the file itself.
+     * Files sent with checksums ("Integrity: crc32c") are checked as they are read, the parts 
+     * that fail are added to bad_ranges once the stream is closed, to be downloaded again.
+     * Closing the stream reads up to the end of the data, the connection stays open.
+     */
+    public InputStream body(DataInputStream in) throws IOException
+    {
+        if ("crc32c".equalsIgnoreCase(response_headers.get("Integrity")))
+            return new checkedInputStream(in, range_start(), bad_ranges);
+        String encoding = response_headers.get("Content-Encoding");
+        if (encoding == null) return new FilterInputStream(in)
+        {   // Sent as is, there is nothing to close.
+            public void close() {}
+        };
+        contentCodec codec = contentCodecs.get(encoding);
+        if (codec == null) throw new IOException("Server sent the file with unknown encoding " + encoding);
+        return codec.decoder(new framedInputStream(in));
+    }
+
+    /**
+     * First byte of the part of the file the server is sending, from its 
+     * "Content-Range: bytes first-last/size" header.
+     */
+    public long range_start()
+    {
+        String range = response_headers.get("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) return 0;
+        return Long.parseLong(range.substring(6, range.indexOf('-')));
+    }
+
+    /**
+     * Size of the whole file, from the server's "Content-Range: bytes first-last/size" header, 
+     * or -1 if the server did not send one.
+     */
+    public long range_total()
+    {
+        String range = response_headers.get("Content-Range");
+        if (range == null) return -1;
+        return Long.parseLong(range.substring(range.lastIndexOf('/') + 1));
+    }
+}
+
+
+interface contentCodec
+{
+    /**
+     * Name of the codec, as written in the Accept-Encoding and Content-Encoding headers.
+     */
+    String name();
+
+    /**
+     * A stream giving back the data compressed in encoded.
+     */
+    InputStream decoder(InputStream encoded) throws IOException;
+}
+
+
+class contentCodecs
+{
+    // Codecs we can decompress, by name. Register a codec to accept it too.
+    private static final Map<String, contentCodec> codecs = new ConcurrentHashMap<String, contentCodec>();
+
+    static
+    {
+        register(new gzip());
+        register(new deflate());
+    }
+
+    public static void register(contentCodec codec)
+    {
+        codecs.put(codec.name(), codec);
+    }
+
+    public static contentCodec get(String name)
+    {
+        return codecs.get(name.trim().toLowerCase());
+    }
+
+    // The gzip format (RFC 1952), deflate with a header and a CRC32 of the data.
+    static class gzip implements contentCodec
+    {
+        public String name()
+        {
+            return "gzip";
+        }
+
+        public InputStream decoder(InputStream encoded) throws IOException
+        {
+            return new GZIPInputStream(encoded, 65536);
+        }
+    }
+
+    // The zlib format (RFC 1950), what HTTP calls deflate.
+    static class deflate implements contentCodec
+    {
+        public String name()
+        {
+            return "deflate";
+        }
+
+        public InputStream decoder(InputStream encoded) throws IOException
+        {
+            return new InflaterInputStream(encoded, new Inflater(), 65536)
+            {   // The Inflater is ours, it has to be ended with the stream.
+                public void close() throws IOException
+                {
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+    }
+}
+
+
+class framedInputStream extends InputStream
+{
+    private DataInputStream in;     // Connection to the server.
+    private int left = 0;           // Bytes left in the current frame.
+    private boolean ended = false;  // The empty frame marking the end was read.
+
+    public framedInputStream(DataInputStream in)
+    {
+        this.in = in;
+    }
+
+    // Move to the next frame when the current one is used up, returns false at the end.
+    private boolean next_frame() throws IOException
+    {
+        while (left == 0 && !ended)
+        {
+            left = in.readInt();
+            if (left < 0) throw new IOException("Invalid frame length " + left);
+            if (left == 0) ended = true;
+        }
+        return !ended || left > 0;
+    }
+
+    public int read() throws IOException
+    {
+        if (!next_frame()) return -1;
+        int b = in.read();
+        if (b < 0) throw new EOFException("Lost connection to server");
+        left--;
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if (!next_frame()) return -1;
+        int bytes = in.read(b, off, Math.min(len, left));
+        if (bytes < 0) throw new EOFException("Lost connection to server");
+        left -= bytes;
+        return bytes;
+    }
+
+    public int available()
+    {
+        return left;
+    }
+
+    /**
+     * Skip whatever the decoder did not read, up to the end mark. 
+     * The connection is left open for the messages after the file.
+     */
+    public void close() throws IOException
+    {
+        while (next_frame())
+        {
+            int skipped = in.skipBytes(left);
+            if (skipped == 0)
+            {   // Nothing could be skipped, a read tells us if the connection is gone.
+                in.readByte();
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+}
+
+
+class checkedInputStream extends InputStream
+{
+    private DataInputStream in;     // Connection to the server.
+    private long first;             // Offset in the file of the first byte sent.
+    private long position;          // Offset in the file of the next byte to read.
+    private long frame_start;       // Offset in the file of the current frame's first byte.
+    private long verified;          // Offset up to which every byte passed its checksum.
+    private int left = 0;           // Bytes left in the current frame.
+    private boolean in_frame = false;   // A frame was started, its checksum is still to come.
+    private boolean ended = false;  // The end mark and the digest were read.
+    private CRC32C checksum = new CRC32C();     // Checksum of the current frame's data.
+    private CRC32C digest = new CRC32C();       // Checksum of all the frames' checksums.
+    private List<long[]> bad_ranges;            // Where the frames that failed are added.
+
+    /**
+     * Read the file sent in checked frames from in, the first byte being at offset first 
+     * in the file. Each frame is an int length, the data, and the CRC32C of the data.
+     */
+    public checkedInputStream(DataInputStream in, long first, List<long[]> bad_ranges)
+    {
+        this.in = in;
+        this.first = first;
+        position = first;
+        verified = first;
+        this.bad_ranges = bad_ranges;
+    }
+
+    /**
+     * Offset in the file up to which the data read passed its checksums.
+     */
+    public long verified()
+    {
+        return verified;
+    }
+
+    // Move to the next frame when the current one is used up, returns false at the end.
+    private boolean next_frame() throws IOException
+    {
+        while (left == 0 && !ended)
+        {
+            if (in_frame) check_frame();
+            left = in.readInt();
+            if (left < 0) throw new IOException("Invalid frame length " + left);
+            if (left == 0)
+            {   // End mark, followed by the digest. If it does not match while every frame did, 
+                // frames went missing and nothing we received can be trusted.
+                ended = true;
+                if (in.readInt() != (int) digest.getValue() && bad_ranges.isEmpty() && position > first) 
+                    bad_ranges.add(new long[] {first, position - 1});
+            }
+            else
+            {
+                in_frame = true;
+                frame_start = position;
+                checksum.reset();
+            }
+        }
+        return !ended;
+    }
+
+    // Compare the frame's checksum with the data we read, and remember the frame if it failed.
+    private void check_frame() throws IOException
+    {
+        int expected = in.readInt();
+        int crc = (int) checksum.getValue();
+        digest.update(crc >>> 24);
+        digest.update(crc >>> 16);
+        digest.update(crc >>> 8);
+        digest.update(crc);
+        in_frame = false;
+        if (crc == expected)
+        {
+            if (bad_ranges.isEmpty()) verified = position;
+            return;
+        }
+        long[] last = bad_ranges.isEmpty() ? null : bad_ranges.get(bad_ranges.size() - 1);
+        if (last != null && last[1] == frame_start - 1) last[1] = position - 1;
+        else bad_ranges.add(new long[] {frame_start, position - 1});
+    }
+
+    public int read() throws IOException
+    {
+        if (!next_frame()) return -1;
+        int b = in.read();
+        if (b < 0) throw new EOFException("Lost connection to server");
+        checksum.update(b);
+        left--;
+        position++;
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if (!next_frame()) return -1;
+        int bytes = in.read(b, off, Math.min(len, left));
+        if (bytes < 0) throw new EOFException("Lost connection to server");
+        checksum.update(b, off, bytes);
+        left -= bytes;
+        position += bytes;
+        return bytes;
+    }
+
+    public int available()
+    {
+        return left;
+    }
+
+    /**
+     * Read up to the end mark, checking the last frame and the digest. 
+     * The connection is left open for the messages after the file.
+     */
+    public void close() throws IOException
+    {
+        byte[] rest = new byte[8192];
+        while (read(rest, 0, rest.length) >= 0);
+    }
+}
+
+
+class rangeRepair
+{
+    /**
+     * Download again the parts of the file that failed their checksum, and write them over 
+     * the bad bytes of file. Returns false if a part could not be had, the file is no good then.
+     */
+    public static boolean repair(String server_ip, int server_port, String filename, File file, 
+        Collection<long[]> ranges)
+    {
+        if (ranges.isEmpty()) return true;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            return repair(server_ip, server_port, filename, channel, ranges);
+        }
+        catch (IOException e)
+        {
+            fileLogging.log_exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Download again each part with a range request, checked like the first time, 
+     * trying up to myfileclient.segment_retries more times when it fails again.
+     */
+    public static boolean repair(String server_ip, int server_port, String filename, FileChannel channel, 
+        Collection<long[]> ranges)
+    {
+        for (long[] range : ranges)
+        {
+            System.out.println(clientTime.current_time() + "Bytes " + range[0] + "-" + range[1] + " of " 
+                + filename + " failed their checksum, downloading them again");
+            for (int attempt = 0; ; attempt++)
+            {
+                try
+                {
+                    if (fetch(server_ip, server_port, filename, channel, range)) break;
+                    throw new IOException("checksum failed again");
+                }
+                catch (FileNotFoundException e)
+                {   // No point trying again.
+                    return false;
+                }
+                catch (IOException e)
+                {
+                    if (attempt >= myfileclient.segment_retries)
+                    {
+                        fileLogging.log_exception(e);
+                        return false;
+                    }
+                    long delay = myfileclient.backoff(0, attempt);
+                    System.out.println(clientTime.current_time() + "Bytes " + range[0] + "-" + range[1] 
+                        + " not repaired (" + e.getMessage() + "), retrying in " + delay + " ms");
+                    try
+                    {
+                        Thread.sleep(delay);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ask the server for bytes range[0] to range[1] of the file, not compressed so they can 
+     * be checked, and write them at their position. Returns whether they passed their checksums.
+     */
+    private static boolean fetch(String server_ip, int server_port, String filename, FileChannel channel, 
+        long[] range) throws IOException
+    {
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            // Start Data Types IO Streaming between the client and the server. 
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            String greeting = d_in.readUTF();
+            if (SocketHandling.busy_delay(greeting) >= 0)
+            {   // The server still expects a request, it answers it with nothing.
+                d_out.writeUTF("");
+                d_out.flush();
+                throw new IOException("server busy");
+            }
+
+            fileRequest request = new fileRequest(filename);
+            request.headers.remove("Accept-Encoding");
+            request.headers.put("Range", "bytes=" + range[0] + "-" + range[1]);
+            request.advertise(socket);
+            request.write(d_out);
+            d_out.flush();
+
+            String found_message = d_in.readUTF();  // Receive message from server, file [not] found.
+            d_in.readUTF();                         // Receive message from server, server's request statistics.
+            boolean file_found = d_in.readBoolean();
+            request.read_status(d_in);
+            if (!file_found)
+            {
+                System.out.println(found_message);
+                throw new FileNotFoundException(found_message);
+            }
+
+            d_in.readUTF();                     // Receive message from server, downloading file.
+            long length = d_in.readLong();      // Receive the size of the range and buffer size from the server.
+            int BUFFER = d_in.readInt();
+            long position = request.range_start();
+
+            byte[] buffer_data_array = new byte[BUFFER];
+            ByteBuffer chunk = ByteBuffer.wrap(buffer_data_array);
+            InputStream body = request.body(d_in);
+            while (length > 0)
+            {
+                int bytes = body.read(buffer_data_array, 0, (int) Math.min(BUFFER, length));
+                if (bytes < 0) throw new EOFException("Lost connection to server");
+                chunk.clear().limit(bytes);
+                while (chunk.hasRemaining()) position += channel.write(chunk, position);
+                length -= bytes;
+            }
+            body.close();               // Read up to the end of the range's data, checking it.
+            d_in.readUTF();             // Receive message from server, download is completed.
+            return request.bad_ranges.isEmpty();
+        }
+    }
+}
+
+class blockSignatures
+{
+    public static final int MAX_BLOCKS = 1 << 16;  // Most blocks servers take signatures for.
+    public static final int MIN_BLOCK_SIZE = 1024;  // Smaller blocks cost more in signatures than they save.
+
+    public int block_size;              // Bytes in each block of our copy, the last one may have less.
+    public long basis_size;             // Size of our copy.
+    public int[] weak;                  // Rolling checksum of each block.
+    public long[] strong;               // First 8 bytes of the MD5 of each block.
+
+    /**
+     * Signatures of every block of file. Blocks are about the square root of the file's size, 
+     * as rsync picks them, and big enough to stay within MAX_BLOCKS.
+     */
+    public static blockSignatures of(File file) throws IOException
+    {
+        blockSignatures signatures = new blockSignatures();
+        signatures.basis_size = file.length();
+        long block_size = Math.max(MIN_BLOCK_SIZE, ((long) Math.sqrt(signatures.basis_size) + 7) & ~7);
+        signatures.block_size = (int) Math.max(block_size, (signatures.basis_size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        int count = (int) ((signatures.basis_size + signatures.block_size - 1) / signatures.block_size);
+        signatures.weak = new int[count];
+        signatures.strong = new long[count];
+
+        MessageDigest md5 = md5();
+        byte[] block = new byte[signatures.block_size];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20)))
+        {
+            for (int i = 0; i < count; i++)
+            {
+                int length = (int) Math.min(signatures.block_size, signatures.basis_size - (long) i * signatures.block_size);
+                in.readFully(block, 0, length);
+                int a = 0, b = 0;
+                for (int j = 0; j < length; j++)
+                {
+                    a += block[j] & 0xff;
+                    b += a;
+                }
+                signatures.weak[i] = (a & 0xffff) | (b << 16);
+                md5.update(block, 0, length);
+                signatures.strong[i] = ByteBuffer.wrap(md5.digest()).getLong();
+            }
+        }
+        return signatures;
+    }
+
+    public static MessageDigest md5() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {   // Every Java platform has MD5.
+            throw new IOException(e);
+        }
+    }
+
+    public int count()
+    {
+        return weak.length;
+    }
+
+    /**
+     * Send the signatures after a DELTA request: the block size, the size of our copy, 
+     * the number of blocks, then each block's rolling checksum and MD5.
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(block_size);
+        out.writeLong(basis_size);
+        out.writeInt(count());
+        for (int i = 0; i < count(); i++)
+        {
+            out.writeInt(weak[i]);
+            out.writeLong(strong[i]);
+        }
+    }
+}
+
+
+class deltaPatch
+{
+    /**
+     * Rebuild the server's file (filesize bytes) into target, from the instructions the server 
+     * sends in answer to DELTA and the blocks of basis, our copy. Each instruction starts with 
+     * an int: n > 0 is followed by n bytes of new data, n < 0 copies block -n - 1 of basis, and 
+     * 0 ends the file, followed by the MD5 of the server's file. Returns whether the file we 
+     * rebuilt has the same MD5.
+     */
+    public static boolean apply(DataInputStream in, File basis, blockSignatures signatures, File target, 
+        long filesize) throws IOException
+    {
+        MessageDigest md5 = blockSignatures.md5();
+        byte[] data = new byte[Math.max(65536, signatures.block_size)];
+        long written = 0;       // Bytes of the file rebuilt so far.
+        long copied = 0;        // Of those, bytes copied from our copy.
+        try (FileChannel basis_channel = FileChannel.open(basis.toPath(), StandardOpenOption.READ);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 20))
+        {
+            int instruction;
+            while ((instruction = in.readInt()) != 0)
+            {
+                int length;
+                if (instruction > 0)
+                {   // New data, in pieces as big as our buffer.
+                    for (int left = instruction; left > 0; left -= length)
+                    {
+                        length = Math.min(left, data.length);
+                        in.readFully(data, 0, length);
+                        out.write(data, 0, length);
+                        md5.update(data, 0, length);
+                        written += length;
+                    }
+                    continue;
+                }
+                int block = -(instruction + 1);
+                if (block >= signatures.count()) throw new IOException("Invalid block " + block);
+                long position = (long) block * signatures.block_size;
+                length = (int) Math.min(signatures.block_size, signatures.basis_size - position);
+                ByteBuffer block_data = ByteBuffer.wrap(data, 0, length);
+                while (block_data.hasRemaining())
+                {
+                    if (basis_channel.read(block_data, position + block_data.position()) < 0) 
+                        throw new EOFException("Our copy of the file shrunk");
+                }
+                out.write(data, 0, length);
+                md5.update(data, 0, length);
+                written += length;
+                copied += length;
+            }
+        }
+        byte[] expected = new byte[16];
+        in.readFully(expected);
+        System.out.println(clientTime.current_time() + "Rebuilt " + basis.getName() + " from " + (written - copied) 
+            + " bytes of new data and " + copied + " bytes of our copy");
+        return written == filesize && MessageDigest.isEqual(md5.digest(), expected);
+    }
+}
+
+class receivePipeline extends OutputStream
+{
+    // Buffers shared by every download, so memory stays the same whatever the size of the files.
+    private static ArrayBlockingQueue<ByteBuffer> pool;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);   // Tells the writer there is no more.
+    private static final long MAP_WINDOW = 64 << 20;    // Most of the file mapped at once.
+
+    private FileChannel channel;        // File the data goes to.
+    private long position;              // Where the writer puts the next byte in the file.
+    private long end;                   // Where the file ends once all the data is there.
+    private boolean mapped;             // Write through memory mapped windows of the file.
+    private MappedByteBuffer window;    // Part of the file mapped now.
+    private boolean extended = false;   // The file was made longer than what was written so far.
+
+    private ByteBuffer filling;         // Buffer being filled with received data.
+    private LinkedBlockingQueue<ByteBuffer> full = new LinkedBlockingQueue<ByteBuffer>();   // Waiting for the writer.
+    private Thread writer;              // Writes the full buffers, started once the first one is full.
+    private volatile IOException failure;   // What stopped the writer.
+    private boolean closed = false;
+
+    /**
+     * Write the data received to channel, from position on. length is how much data is coming. 
+     * With preallocate the file is given its full size now, and mapped writes may be used 
+     * (myfileclient.mapped_writes, the channel must be open for reading too). Either one makes the 
+     * file longer than the data in it until close(), so it is only for files never resumed from.
+     */
+    public receivePipeline(FileChannel channel, long position, long length, boolean preallocate) throws IOException
+    {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+        this.mapped = preallocate && myfileclient.mapped_writes && length > myfileclient.write_buffer_size;
+        if (preallocate && channel.size() < end)
+        {   // Size the file once, instead of growing it with every write.
+            channel.write(ByteBuffer.allocate(1), end - 1);
+            extended = true;
+        }
+        synchronized (receivePipeline.class)
+        {
+            if (pool == null)
+            {
+                pool = new ArrayBlockingQueue<ByteBuffer>(myfileclient.write_buffers);
+                for (int i = 0; i < myfileclient.write_buffers; i++) 
+                    pool.add(ByteBuffer.allocateDirect(myfileclient.write_buffer_size));
+            }
+        }
+    }
+
+    /**
+     * Open the file of a download, truncated unless we carry on from its end.
+     */
+    public static FileChannel open(File file, boolean truncate) throws IOException
+    {
+        Set<OpenOption> options = new HashSet<OpenOption>();
+        options.add(StandardOpenOption.WRITE);
+        options.add(StandardOpenOption.CREATE);
+        if (truncate) options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        if (myfileclient.mapped_writes) options.add(StandardOpenOption.READ);
+        return FileChannel.open(file.toPath(), options);
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Copy the data into a buffer, and hand the buffer to the writer once it is full. Waits 
+     * for a free buffer when the disk is behind, so no more than the pool is ever held.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (failure != null) throw failure;
+            if (filling == null) filling = take();
+            int bytes = Math.min(length, filling.remaining());
+            filling.put(data, offset, bytes);
+            offset += bytes;
+            length -= bytes;
+            if (!filling.hasRemaining()) hand_off();
+        }
+    }
+
+    /**
+     * Wait for the writer to write everything received, then put the file back to the size 
+     * of what was written. Throws what stopped the writer, if it failed.
+     */
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try
+        {
+            if (writer == null && filling != null)
+            {   // Small enough to fit in one buffer, no need for another thread.
+                filling.flip();
+                write_out(filling);
+            }
+            else if (writer != null)
+            {
+                if (filling != null && filling.position() > 0) hand_off();
+                full.put(END);
+                writer.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while writing " + position + " bytes");
+        }
+        finally
+        {
+            if (filling != null) give_back(filling);
+            filling = null;
+            window = null;
+        }
+        if (extended && position < end) channel.truncate(position);
+        if (failure != null) throw failure;
+    }
+
+    private ByteBuffer take() throws IOException
+    {
+        try
+        {
+            return pool.take();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+
+    private void give_back(ByteBuffer buffer)
+    {
+        buffer.clear();
+        pool.add(buffer);
+    }
+
+    private void hand_off() throws IOException
+    {
+        if (writer == null)
+        {
+            writer = new Thread(this::drain, "disk-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        filling.flip();
+        full.add(filling);
+        filling = null;
+    }
+
+    /**
+     * The writer: write the buffers in the order they were filled. Once it fails it keeps 
+     * giving the buffers back, so the reader never waits for one that is not coming.
+     */
+    private void drain()
+    {
+        try
+        {
+            ByteBuffer buffer;
+            while ((buffer = full.take()) != END)
+            {
+                try
+                {
+                    if (failure == null) write_out(buffer);
+                }
+                catch (IOException e)
+                {
+                    failure = e;
+                }
+                give_back(buffer);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            failure = new InterruptedIOException("Disk writer interrupted");
+        }
+    }
+
+    private void write_out(ByteBuffer buffer) throws IOException
+    {
+        if (!mapped)
+        {
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            return;
+        }
+        while (buffer.hasRemaining())
+        {
+            if (window == null || !window.hasRemaining())
+            {   // Mapping makes the file as long as the window.
+                window = channel.map(FileChannel.MapMode.READ_WRITE, position, 
+                    Math.max(Math.min(MAP_WINDOW, end - position), buffer.remaining()));
+                extended = true;
+            }
+            int bytes = Math.min(buffer.remaining(), window.remaining());
+            ByteBuffer piece = buffer.duplicate();
+            piece.limit(piece.position() + bytes);
+            window.put(piece);
+            buffer.position(buffer.position() + bytes);
+            position += bytes;
+        }
+    }
+}
+
+
+class segmentedDownload
+{
+    private String server_ip;           // Server to download from.
+    private int server_port;
+    private String filename;            // File to download.
+
+    private String java_file_path;      // Initialize the variable to store the .java file's directory.
+    private FileChannel part_channel;   // The file being downloaded, written to by all segments.
+
+    // Parts of the file still to download, each as {next byte, last byte}. A segment that fails
+    // keeps its progress, so a retry only asks for what is still missing.
+    private Queue<long[]> pending_segments = new ConcurrentLinkedQueue<long[]>();
+    private AtomicBoolean failed = new AtomicBoolean(false);
+    private boolean ranges_supported = true;    // Older servers always send the whole file.
+    // Parts of complete segments that failed their checksum, downloaded again at the end.
+    private Queue<long[]> bad_ranges = new ConcurrentLinkedQueue<long[]>();
+
+    public segmentedDownload(String server_ip, int server_port, String filename)
+    {
+        this.server_ip = server_ip;
+        this.server_port = server_port;
+        this.filename = filename;
+    }
+
+    /**
+     * Download the file over several connections at once, each one asking the server for its 
+     * own range of bytes and writing them at their position in the file. The first segment 
+     * also tells us how big the file is, the rest of the file is then split between 
+     * myfileclient.segments connections. The file is written to downloads/<filename>.segments 
+     * and renamed once every segment is complete.
+     */
+    public void run()
+    {
+        File segments_file = null;
+        try
+        {
+            java_file_path =    // Set the .java file's directory to the variable.
+                myfileclient.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+            // Remove the filename from the path.
+            java_file_path = java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1);
+            segments_file = new File(java_file_path + "downloads/" + filename + ".segments");
+
+            try (RandomAccessFile part = new RandomAccessFile(segments_file, "rw"))
+            {
+                part_channel = part.getChannel();
+                System.out.println(clientTime.current_time() + "Downloading file " + filename 
+                    + " over up to " + myfileclient.segments + " connections");
+
+                // The first segment also tells us the size of the file.
+                long[] first_segment = {0, myfileclient.min_segment - 1};
+                long filesize = fetch_with_retries(first_segment);
+                if (filesize < 0) failed.set(true);
+                else part.setLength(filesize);
+
+                // Split what is left between the connections, each segment at least min_segment long.
+                long left = filesize - myfileclient.min_segment;
+                if (!failed.get() && ranges_supported && left > 0)
+                {
+                    long segment_size = Math.max(myfileclient.min_segment, 
+                        (left + myfileclient.segments - 1) / myfileclient.segments);
+                    for (long first = myfileclient.min_segment; first < filesize; first += segment_size)
+                    {
+                        pending_segments.add(new long[] {first, Math.min(first + segment_size, filesize) - 1});
+                    }
+
+                    // One thread per connection, taking segments until there are none left.
+                    Thread[] connections = new Thread[Math.min(myfileclient.segments, pending_segments.size())];
+                    for (int i = 0; i < connections.length; i++)
+                    {
+                        connections[i] = new Thread(() -> 
+                        {
+                            long[] segment;
+                            while (!failed.get() && (segment = pending_segments.poll()) != null)
+                            {
+                                if (fetch_with_retries(segment) < 0) failed.set(true);
+                            }
+                        });
+                        connections[i].start();
+                    }
+                    for (Thread connection : connections) connection.join();
+                }
+                if (!failed.get() && !rangeRepair.repair(server_ip, server_port, filename, part_channel, 
+                    bad_ranges)) failed.set(true);
+                part_channel.force(false);
+            }
+
+            if (failed.get())
+            {
+                System.out.println(clientTime.current_time() + "Download of " + filename + " failed");
+                segments_file.delete();
+                return;
+            }
+            // Everything is here, give the file its real name.
+            Files.move(segments_file.toPath(), new File(java_file_path + "downloads/" + filename).toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
+            System.out.println(clientTime.current_time() + "Download complete");
+        }
+        catch (Exception e)
+        {   // If the program fails, write it to the log file.
+            fileLogging.log_exception(e);
+            if (segments_file != null) segments_file.delete();
+        }
+    }
+
+    /**
+     * Download a segment, trying again from where it stopped if the connection fails or the 
+     * server is busy. Returns the size of the whole file, or -1 when the segment cannot be had.
+     */
+    private long fetch_with_retries(long[] segment)
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return fetch(segment);
+            }
+            catch (FileNotFoundException e)
+            {   // No point trying again.
+                return -1;
+            }
+            catch (Exception e)
+            {
+                if (attempt >= myfileclient.segment_retries)
+                {
+                    fileLogging.log_exception(e);
+                    return -1;
+                }
+                long delay = myfileclient.backoff(0, attempt);
+                System.out.println(clientTime.current_time() + "Segment " + segment[0] + "-" + segment[1] 
+                    + " interrupted (" + e.getMessage() + "), retrying in " + delay + " ms");
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException ie)
+                {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask the server for bytes segment[0] to segment[1] of the file, and write them at their 
+     * position. segment[0] moves forward as the bytes are written. Servers that do not speak 
+     * protocol version 2 send the whole file instead, which is then the only segment.
+     * Returns the size of the whole file.
+     */
+    private long fetch(long[] segment) throws IOException
+    {
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            // Start Data Types IO Streaming between the client and the server. 
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            String greeting = d_in.readUTF();
+            long retry_after = SocketHandling.busy_delay(greeting);
+            boolean extended = fileRequest.server_version(greeting) >= 2;
+
+            // Ask for the segment, as an extended request if the server understands it.
+            fileRequest request = new fileRequest(filename);
+            request.headers.put("Range", "bytes=" + segment[0] + "-" + segment[1]);
+            request.advertise(socket);
+            if (extended) request.write(d_out);
+            else d_out.writeUTF(filename);
+            d_out.flush();
+
+            String found_message = d_in.readUTF();  // Receive message from server, file [not] found.
+            d_in.readUTF();                         // Receive message from server, server's request statistics.
+            boolean file_found = d_in.readBoolean();
+            if (extended) request.read_status(d_in);
+            if (retry_after >= 0) throw new IOException("server busy");
+            if (!file_found)
+            {
+                System.out.println(found_message);
+                throw new FileNotFoundException(found_message);
+            }
+
+            d_in.readUTF();                     // Receive message from server, downloading file.
+            long length = d_in.readLong();      // Receive the size of the segment and buffer size from the server.
+            int BUFFER = d_in.readInt();
+            long position = extended ? request.range_start() : 0;
+            long first = position;
+            long filesize = extended ? request.range_total() : length;
+            if (!extended)
+            {   // The whole file is coming.
+                segment[1] = length - 1;
+                ranges_supported = false;
+            }
+
+            // Downloading the segment, one chunk at time, writing each one at its place in the file.
+            byte[] buffer_data_array = new byte[BUFFER];
+            ByteBuffer chunk = ByteBuffer.wrap(buffer_data_array);
+            InputStream body = request.body(d_in);     // Decompressed if the server compressed it.
+            while (length > 0)
+            {
+                int bytes = body.read(buffer_data_array, 0, (int) Math.min(BUFFER, length));
+                if (bytes < 0) throw new EOFException("Lost connection to server");
+                chunk.clear().limit(bytes);
+                while (chunk.hasRemaining()) position += part_channel.write(chunk, position);
+                length -= bytes;
+                // Remember our progress, in case we need to try again. With checksums, 
+                // only what passed them counts.
+                segment[0] = (body instanceof checkedInputStream) 
+                    ? ((checkedInputStream) body).verified() : position;
+            }
+            body.close();               // Read up to the end of the segment's data.
+            segment[0] = position;
+            bad_ranges.addAll(request.bad_ranges);
+            d_in.readUTF();             // Receive message from server, download is completed.
+            System.out.println(clientTime.current_time() + "Bytes " + first + "-" + (position - 1) 
+                + " of " + filename + " complete");
+            return filesize;
+        }
+    }
+}
+
+
+class batchDownload
+{
+    private String server_ip;           // Server to download from.
+    private int server_port;
+
+    private String java_file_path;      // Initialize the variable to store the .java file's directory.
+
+    // Files still to download, shared by the connections.
+    private Queue<String> pending_files = new ConcurrentLinkedQueue<String>();
+    private AtomicInteger downloaded = new AtomicInteger();     // Files downloaded so far.
+    private AtomicInteger failed = new AtomicInteger();         // Files the server could not send.
+    private int total;                                          // Files asked for.
+    public boolean failover = false;    // The files have another replica, give up on a dead server right away.
+
+    public batchDownload(String server_ip, int server_port, List<String> filenames)
+    {
+        this.server_ip = server_ip;
+        this.server_port = server_port;
+        pending_files.addAll(filenames);
+        total = filenames.size();
+    }
+
+    /**
+     * Download every file over myfileclient.connections connections. Each connection is kept 
+     * open for as long as there are files left, and sends up to myfileclient.pipeline 
+     * requests ahead of the files it is receiving, so the server never waits on us between 
+     * two files. Servers that do not keep connections open get one connection per file.
+     */
+    public void run() throws InterruptedException
+    {
+        try
+        {
+            java_file_path =    // Set the .java file's directory to the variable.
+                myfileclient.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+            // Remove the filename from the path.
+            java_file_path = java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1);
+        }
+        catch (URISyntaxException e)
+        {
+            fileLogging.log_exception(e);
+            return;
+        }
+        System.out.println(clientTime.current_time() + "Downloading " + total + " files from " + server_ip + ":" 
+            + server_port + " over up to " + myfileclient.connections + " connections");
+
+        Thread[] connection_threads = new Thread[Math.min(myfileclient.connections, total)];
+        for (int i = 0; i < connection_threads.length; i++)
+        {
+            connection_threads[i] = new Thread(this::download_files);
+            connection_threads[i].start();
+        }
+        for (Thread connection : connection_threads) connection.join();
+
+        System.out.println(clientTime.current_time() + downloaded.get() + " of " + total 
+            + " files downloaded from " + server_ip + ":" + server_port + ", " + failed.get() + " not found");
+    }
+
+    /**
+     * Files left to download when the server gave out, for another replica to send.
+     */
+    public List<String> unfinished()
+    {
+        return new ArrayList<String>(pending_files);
+    }
+
+    /**
+     * Keep a connection busy until there are no files left. A connection that fails is opened 
+     * again, with a backoff, and the files it had asked for are asked for again.
+     */
+    private void download_files()
+    {
+        int attempt = 0;
+        while (!pending_files.isEmpty())
+        {
+            long retry_after;
+            try
+            {
+                retry_after = download_over_connection();
+                if (retry_after < 0) attempt = 0;   // The connection did its share, start counting again.
+            }
+            catch (IOException e)
+            {
+                retry_after = 0;
+                fileLogging.log_exception(e);
+                // Nothing to wait for on a server that is not there, when the files can come from another.
+                if (failover && (e instanceof ConnectException || e instanceof SocketTimeoutException)) 
+                    attempt = myfileclient.retries;
+            }
+            if (retry_after < 0) continue;
+            if (attempt >= myfileclient.retries)
+            {
+                System.out.println(clientTime.current_time() + "Giving up, server " + server_ip + ":" 
+                    + server_port + " unavailable");
+                return;
+            }
+            long delay = myfileclient.backoff(retry_after, attempt++);
+            System.out.println(clientTime.current_time() + "Connection failed, retrying in " + delay + " ms");
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Open a connection and download files over it until there are none left, or the server 
+     * closes it. Returns -1 when the connection was useful, or the delay a busy server asked for.
+     */
+    private long download_over_connection() throws IOException
+    {
+        Deque<fileRequest> in_flight = new ArrayDeque<fileRequest>();   // Requests sent, files not received yet.
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            // Start Data Types IO Streaming between the client and the server. 
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            String greeting = d_in.readUTF();
+            long retry_after = SocketHandling.busy_delay(greeting);
+            boolean extended = fileRequest.server_version(greeting) >= 2;
+            if (retry_after >= 0)
+            {   // The server still expects a request, it answers it with nothing.
+                d_out.writeUTF("");
+                d_out.flush();
+                return retry_after;
+            }
+
+            // Only one request until the server says it keeps the connection open, 
+            // older servers close it after the first file without reading the rest.
+            boolean keep_alive = false;
+            while (true)
+            {   // Keep the pipeline full, only newer servers can take more than one request.
+                String filename;
+                while (in_flight.size() < (keep_alive ? myfileclient.pipeline : 1) 
+                    && (filename = pending_files.poll()) != null)
+                {
+                    fileRequest request = new fileRequest(filename);
+                    if (extended) 
+                    {
+                        request.headers.put("Connection", "keep-alive");
+                        request.advertise(socket);
+                        request.write(d_out);
+                    }
+                    else d_out.writeUTF(filename);
+                    in_flight.add(request);
+                }
+                d_out.flush();
+                if (in_flight.isEmpty()) return -1;    // Nothing left, closing the connection says we are done.
+
+                fileRequest request = in_flight.peek();
+                receive_file(d_in, request, extended);
+                in_flight.poll();
+                keep_alive = extended && "keep-alive".equalsIgnoreCase(request.response_headers.get("Connection"));
+                if (!keep_alive)
+                {   // The server closes the connection after each file, open another one for the rest.
+                    d_in.readUTF();     // Receive message from server, closing connection.
+                    return -1;
+                }
+            }
+        }
+        catch (IOException e)
+        {   // Whatever was not received yet is asked for again.
+            for (fileRequest request : in_flight) pending_files.add(request.filename);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the server's answer to one request, and the file if it was found. The file is 
+     * written to downloads/<filename>.part and renamed once complete.
+     */
+    private void receive_file(DataInputStream d_in, fileRequest request, boolean extended) throws IOException
+    {
+        String found_message = d_in.readUTF();  // Receive message from server, file [not] found.
+        d_in.readUTF();                         // Receive message from server, server's request statistics.
+        boolean file_found = d_in.readBoolean();
+        if (extended) request.read_status(d_in);
+        if (!file_found)
+        {
+            System.out.println(found_message);
+            failed.incrementAndGet();
+            return;
+        }
+
+        d_in.readUTF();                     // Receive message from server, downloading file.
+        long filesize = d_in.readLong();    // Receive the file and buffer size from the server.
+        int BUFFER = d_in.readInt();
+
+        File part_file = new File(java_file_path + "downloads/" + request.filename + ".part");
+        part_file.getParentFile().mkdirs();     // Files can be in folders on the server.
+        // Lists of files always start over, so the .part file can be given its full size now.
+        try (FileChannel part_channel = receivePipeline.open(part_file, true);
+            receivePipeline f_out = new receivePipeline(part_channel, 0, filesize, true))
+        {
+            byte[] buffer_data_array = new byte[BUFFER];
+            InputStream body = request.body(d_in);     // Decompressed if the server compressed it.
+            long left = filesize;
+            while (left > 0)
+            {   // Write chunks into the file stream, one at a time until the file is complete.
+                int bytes = body.read(buffer_data_array, 0, (int) Math.min(BUFFER, left));
+                if (bytes < 0) throw new EOFException("Lost connection to server");
+                f_out.write(buffer_data_array, 0, bytes);
+                left -= bytes;
+            }
+            body.close();                   // Read up to the end of the file data.
+        }
+        d_in.readUTF();                     // Receive message from server, download is completed.
+        if (!rangeRepair.repair(server_ip, server_port, request.filename, part_file, request.bad_ranges))
+        {   // Parts of the file are wrong and could not be downloaded again.
+            System.out.println(clientTime.current_time() + "Download of " + request.filename + " failed");
+            part_file.delete();
+            return;
+        }
+        // Everything is here, give the file its real name.
+        Files.move(part_file.toPath(), new File(java_file_path + "downloads/" + request.filename).toPath(), 
+            StandardCopyOption.REPLACE_EXISTING);
+        System.out.println(clientTime.current_time() + "Downloaded " + request.filename 
+            + " (" + filesize + " bytes), " + downloaded.incrementAndGet() + " of " + total);
+    }
+}
+
+
+class catalogQuery
+{
+    /**
+     * Print the server's files whose name starts with prefix, with their size and last 
+     * modification time. The server streams its catalog, each entry a name written with 
+     * writeUTF() followed by the size and time as longs, until an empty name.
+     */
+    public static void list(String server_ip, int server_port, String prefix)
+    {
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!greeted(d_in, d_out) || !ask(d_in, d_out, new fileRequest(fileRequest.LIST, prefix))) return;
+
+            // Hundreds of thousands of lines, printed through one buffer rather than one println each.
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+            SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            long files = 0;
+            long bytes = 0;
+            long last_modified = Long.MIN_VALUE;    // Files are often written together, format each time once.
+            String last_date = null;
+            String name;
+            while (!(name = d_in.readUTF()).isEmpty())
+            {
+                long size = d_in.readLong();
+                long modified = d_in.readLong();
+                if (modified != last_modified) last_date = date.format(new Date(last_modified = modified));
+                String size_text = Long.toString(size);
+                for (int pad = size_text.length(); pad < 14; pad++) out.print(' ');
+                out.print(size_text);
+                out.print("  ");
+                out.print(last_date);
+                out.print("  ");
+                out.println(name);
+                files++;
+                bytes += size;
+            }
+            out.flush();
+            System.out.println(clientTime.current_time() + files + " files, " + bytes + " bytes");
+            System.out.println(d_in.readUTF());     // Receive message from server, listing is complete.
+            System.out.println(d_in.readUTF());     // Receive message from server, closing connection.
+        }
+        catch (IOException e)
+        {
+            System.out.println(clientTime.current_time() + "Listing failed: " + e.getMessage());
+            fileLogging.log_exception(e);
+        }
+    }
+
+    /**
+     * Print the size and last modification time of each file, and its MD5 when asked for, 
+     * all asked for over one connection kept open.
+     */
+    public static void stat(String server_ip, int server_port, List<String> filenames, boolean md5)
+    {
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            if (!greeted(d_in, d_out)) return;
+            for (int i = 0; i < filenames.size(); i++)
+            {
+                fileRequest request = new fileRequest(fileRequest.STAT, filenames.get(i));
+                if (md5) request.headers.put("Hash", "md5");
+                if (i < filenames.size() - 1) request.headers.put("Connection", "keep-alive");
+                if (ask(d_in, d_out, request))
+                {
+                    System.out.println(request.filename + ": " + request.response_headers.get("Content-Length") 
+                        + " bytes, modified " + date.format(new Date(
+                        Long.parseLong(request.response_headers.get("Last-Modified"))))
+                        + (md5 ? ", MD5 " + request.response_headers.get("MD5") : ""));
+                }
+            }
+            System.out.println(d_in.readUTF());     // Receive message from server, closing connection.
+        }
+        catch (IOException e)
+        {
+            System.out.println(clientTime.current_time() + "Stat failed: " + e.getMessage());
+            fileLogging.log_exception(e);
+        }
+    }
+
+    /**
+     * Read the server's greeting. Returns false, having said why, when the server is busy or 
+     * too old to answer from its catalog (protocol version 3). It is sent an empty request then, 
+     * which is what it expects before closing the connection.
+     */
+    static boolean greeted(DataInputStream d_in, DataOutputStream d_out) throws IOException
+    {
+        String greeting = d_in.readUTF();
+        System.out.println(greeting);   // Receive message from server, client is connected.
+        int server_version = fileRequest.server_version(greeting);
+        if (SocketHandling.busy_delay(greeting) < 0 && server_version >= 3) return true;
+        if (SocketHandling.busy_delay(greeting) < 0)
+            System.out.println(clientTime.current_time() + "Server speaks protocol version " + server_version 
+                + ", it cannot list its files");
+        d_out.writeUTF("");
+        d_out.flush();
+        return false;
+    }
+
+    /**
+     * Send a LIST, STAT or ARCHIVE request, and read the server's answer up to its headers. 
+     * Returns whether the server found what we asked about, saying so when it did not.
+     */
+    static boolean ask(DataInputStream d_in, DataOutputStream d_out, fileRequest request) 
+        throws IOException
+    {
+        request.write(d_out);
+        d_out.flush();
+        String found_message = d_in.readUTF();  // Receive message from server, file [not] found.
+        d_in.readUTF();                         // Receive message from server, server's request statistics.
+        boolean found = d_in.readBoolean();
+        request.read_status(d_in);
+        if (!found) System.out.println(found_message);
+        return found;
+    }
+}
+
+
+/**
+ * Download the files under a directory, or matching a glob, as one archive over one connection 
+ * (ARCHIVE, protocol version 3). Each entry is the file's name, size and modification time, its 
+ * data, then its CRC32C, and an empty name ends the archive. Entries are unpacked as they arrive: 
+ * the data goes through a receivePipeline into downloads/<name>.part, and once its checksum 
+ * matches the file gets its real name and the server's modification time. Nothing is kept in 
+ * memory but the buffers, whatever the size of the tree.
+ */
+class archiveDownload
+{
+    public static void run(String server_ip, int server_port, String pattern)
+    {
+        Path downloads;
+        try
+        {
+            String java_file_path =     // Set the .java file's directory to the variable.
+                myfileclient.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+            // Remove the filename from the path.
+            File directory = new File(java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1) + "downloads");
+            directory.mkdirs();
+            downloads = directory.toPath().toRealPath();
+        }
+        catch (URISyntaxException | IOException e)
+        {
+            System.out.println(clientTime.current_time() + "No downloads directory: " + e.getMessage());
+            fileLogging.log_exception(e);
+            return;
+        }
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            fileRequest request = new fileRequest(fileRequest.ARCHIVE, pattern);
+            request.advertise(socket);
+            if (!catalogQuery.greeted(d_in, d_out) || !catalogQuery.ask(d_in, d_out, request)) return;
+            System.out.println(clientTime.current_time() + "Receiving " + request.response_headers.get("Archive-Files") 
+                + " files, " + request.response_headers.get("Archive-Length") + " bytes");
+
+            long started = System.nanoTime();
+            byte[] buffer_data_array = new byte[1 << 16];
+            CRC32C checksum = new CRC32C();
+            int files = 0;                  // Files unpacked.
+            int failed = 0;                 // Files that did not match their checksum.
+            int skipped = 0;                // Files that would have been written outside of downloads/.
+            long bytes = 0;
+            String name;
+            while (!(name = d_in.readUTF()).isEmpty())
+            {
+                long size = d_in.readLong();
+                long modified = d_in.readLong();
+                File target = target(downloads, name);
+                checksum.reset();
+                if (target == null)
+                {   // Read past it, the next entry comes right after.
+                    System.out.println(clientTime.current_time() + "Skipping " + name 
+                        + ", it would be written outside of downloads");
+                    for (long left = size; left > 0; )
+                    {
+                        int read = d_in.read(buffer_data_array, 0, (int) Math.min(buffer_data_array.length, left));
+                        if (read < 0) throw new EOFException("Archive ended in the middle of " + name);
+                        left -= read;
+                    }
+                    d_in.readInt();
+                    skipped++;
+                    continue;
+                }
+                target.getParentFile().mkdirs();
+                File part_file = new File(target.getPath() + ".part");
+                // Never write through a link someone left in our place.
+                Files.deleteIfExists(part_file.toPath());
+                try (FileChannel part_channel = receivePipeline.open(part_file, true))
+                {
+                    receivePipeline f_out = new receivePipeline(part_channel, 0, size, true);
+                    try
+                    {
+                        for (long left = size; left > 0; )
+                        {
+                            int read = d_in.read(buffer_data_array, 0, (int) Math.min(buffer_data_array.length, left));
+                            if (read < 0) throw new EOFException("Archive ended in the middle of " + name);
+                            checksum.update(buffer_data_array, 0, read);
+                            f_out.write(buffer_data_array, 0, read);
+                            left -= read;
+                        }
+                    }
+                    finally
+                    {
+                        f_out.close();      // Wait for the disk to have all of the file.
+                    }
+                }
+                if ((int) checksum.getValue() != d_in.readInt())
+                {
+                    System.out.println(clientTime.current_time() + name + " does not match its checksum");
+                    part_file.delete();
+                    failed++;
+                    continue;
+                }
+                Files.move(part_file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                target.setLastModified(modified);
+                files++;
+                bytes += size;
+            }
+            long elapsed = Math.max(1, (System.nanoTime() - started) / 1000000);
+            System.out.println(clientTime.current_time() + files + " files, " + bytes + " bytes unpacked in " 
+                + elapsed + " ms (" + bytes / 1000 / elapsed + " MB/s)" + (failed > 0 ? ", " + failed + " failed" : "") 
+                + (skipped > 0 ? ", " + skipped + " skipped" : ""));
+            System.out.println(d_in.readUTF());     // Receive message from server, archive is complete.
+            System.out.println(d_in.readUTF());     // Receive message from server, closing connection.
+        }
+        catch (IOException e)
+        {
+            System.out.println(clientTime.current_time() + "Archive download failed: " + e.getMessage());
+            fileLogging.log_exception(e);
+        }
+    }
+
+    /**
+     * Where an entry goes in downloads, or null when it would land anywhere else: names that are 
+     * absolute, go up with "..", or lead through a link to outside of downloads.
+     * downloads is the real path of the directory.
+     */
+    static File target(Path downloads, String name)
+    {
+        if (name.indexOf('\0') >= 0 || name.endsWith(".part")) return null;
+        Path entry;
+        try
+        {
+            entry = Paths.get(name);
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+        if (entry.isAbsolute() || entry.getRoot() != null) return null;
+        for (Path part : entry)
+            if (part.toString().equals("..")) return null;
+        try
+        {
+            Path resolved = downloads.resolve(entry).normalize();
+            if (!resolved.startsWith(downloads) || resolved.equals(downloads)) return null;
+            // The deepest directory already there must really be inside downloads, links followed.
+            Path existing = resolved.getParent();
+            while (!Files.exists(existing)) existing = existing.getParent();
+            if (!existing.toRealPath().startsWith(downloads)) return null;
+            return resolved.toFile();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+}
+
+
+class loadGenerator
+{
+    private String server_ip;           // Server under test, on this machine.
+    private int server_port;
+    private String[] files;             // Files the simulated clients ask for.
+    private double[] cumulative;        // Running total of the files' weights, to pick them by.
+    private Map<String, String> expected_md5 = new HashMap<String, String>();  // From STAT, when verifying.
+
+    private long deadline;              // When the simulated clients stop sending requests (System.nanoTime).
+
+    // What happened to the requests, added to by every simulated client without locks.
+    private LongAdder completed = new LongAdder();
+    private LongAdder failed = new LongAdder();         // Connection lost, or the file was not there.
+    private LongAdder busy = new LongAdder();           // Turned away with "Server busy".
+    private LongAdder mismatched = new LongAdder();     // Bodies that were not the server's file.
+    private LongAdder dropped = new LongAdder();        // Open loop arrivals with every client busy.
+    private LongAdder bytes = new LongAdder();          // File data received.
+    private latencyHistogram connect_time = new latencyHistogram();     // Connection and greeting.
+    // From when the request was due, connecting included, to the file's first and last byte.
+    private latencyHistogram first_byte_time = new latencyHistogram();
+    private latencyHistogram transfer_time = new latencyHistogram();
+
+    public loadGenerator(String server_ip, int server_port, List<String> filenames)
+    {
+        this.server_ip = server_ip;
+        this.server_port = server_port;
+        files = filenames.toArray(new String[0]);
+        cumulative = new double[files.length];
+        double total = 0;
+        for (int i = 0; i < files.length; i++)
+        {   // Files without a weight of their own weigh 1.
+            total += (i < myfileclient.weights.size()) ? myfileclient.weights.get(i) : 1;
+            cumulative[i] = total;
+        }
+    }
+
+    /**
+     * Run myfileclient.load simulated clients for myfileclient.duration seconds, then print what 
+     * they measured. Without --rate each client sends its next request once the last one is done 
+     * and it has thought for a while (closed loop). With --rate requests arrive on a schedule, 
+     * whether the server keeps up or not (open loop), and their latency is counted from when they 
+     * were due, so a slow server cannot hide it by slowing the requests down. The clients run on 
+     * virtual threads when there are some (Java 21+).
+     */
+    public void run() throws InterruptedException
+    {
+        try
+        {
+            if (!InetAddress.getByName(server_ip).isLoopbackAddress())
+            {
+                System.out.println(clientTime.current_time() + "Load tests only run against a server on this "
+                    + "machine, " + server_ip + " is not a loopback address");
+                return;
+            }
+            if (myfileclient.verify && !read_expected_md5()) return;
+        }
+        catch (IOException e)
+        {
+            System.out.println(clientTime.current_time() + "Cannot reach " + server_ip + ":" + server_port 
+                + " (" + e.getMessage() + ")");
+            return;
+        }
+
+        System.out.println(clientTime.current_time() + "Load test of " + server_ip + ":" + server_port + ", " 
+            + myfileclient.load + " clients, " + (myfileclient.rate > 0 ? "open loop at " + myfileclient.rate 
+            + " requests/s" : "closed loop, " + myfileclient.think_time + " ms think time") + ", " 
+            + files.length + " files, " + myfileclient.duration + " s");
+        ExecutorService clients = new_executor();
+        long start = System.nanoTime();
+        deadline = start + myfileclient.duration * 1000000000L;
+        if (myfileclient.rate > 0) open_loop(clients);
+        else for (int i = 0; i < myfileclient.load; i++) clients.execute(this::closed_loop);
+
+        long reported = completed.sum();
+        long reported_bytes = bytes.sum();
+        while (System.nanoTime() < deadline)
+        {   // A line a second, to see the server warm up or fall behind.
+            Thread.sleep(1000);
+            long now_completed = completed.sum();
+            long now_bytes = bytes.sum();
+            System.out.println(clientTime.current_time() + (now_completed - reported) + " requests/s, " 
+                + String.format("%.1f", (now_bytes - reported_bytes) / 1e6) + " MB/s, " 
+                + failed.sum() + " failed, " + busy.sum() + " busy");
+            reported = now_completed;
+            reported_bytes = now_bytes;
+        }
+        clients.shutdown();
+        if (!clients.awaitTermination(30, TimeUnit.SECONDS))
+            System.out.println(clientTime.current_time() + "Some requests were still running after 30 s");
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Send requests at myfileclient.rate a second, the time between two of them drawn at random 
+     * (Poisson arrivals). No more than myfileclient.load are running at once, arrivals finding 
+     * them all busy are counted as dropped.
+     */
+    private void open_loop(ExecutorService clients) throws InterruptedException
+    {
+        Semaphore running = new Semaphore(myfileclient.load);
+        long due = System.nanoTime();
+        while (due < deadline)
+        {
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            long scheduled = due;
+            if (running.tryAcquire())
+            {
+                clients.execute(() -> {
+                    try
+                    {
+                        request(null, pick(), scheduled, false);
+                    }
+                    finally
+                    {
+                        running.release();
+                    }
+                });
+            }
+            else dropped.increment();
+            due += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * 1e9 / myfileclient.rate);
+        }
+    }
+
+    /**
+     * One simulated client: a request, some thinking, and again until the test is over. 
+     * With --keep-alive=on the connection is kept for the next request.
+     */
+    private void closed_loop()
+    {
+        connection kept = null;
+        try
+        {
+            while (System.nanoTime() < deadline)
+            {
+                kept = request(kept, pick(), System.nanoTime(), true);
+                if (myfileclient.think_time > 0)
+                {   // Exponentially distributed, around the think time asked for.
+                    Thread.sleep((long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) 
+                        * myfileclient.think_time));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            return;
+        }
+        finally
+        {
+            if (kept != null) kept.close();
+        }
+    }
+
+    // A connection kept open between requests.
+    private static class connection
+    {
+        Socket socket;
+        DataInputStream d_in;
+        DataOutputStream d_out;
+        int server_version;
+
+        void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Download one file the way SocketHandling does, but without writing it anywhere. The body 
+     * is thrown away, or checked against the server's MD5 with --verify=on. Closed loop clients 
+     * wait as long as a busy server asks, and may keep the connection. Returns the connection 
+     * when it can be used again, null otherwise.
+     */
+    private connection request(connection kept, String filename, long scheduled, boolean closed_loop)
+    {
+        connection c = kept;
+        boolean keep_alive = closed_loop && myfileclient.keep_alive;
+        try
+        {
+            if (c == null)
+            {
+                long connecting = System.nanoTime();
+                c = new connection();
+                c.socket = myfileclient.connect(server_ip, server_port);
+                c.d_in = new DataInputStream(new BufferedInputStream(c.socket.getInputStream()));
+                c.d_out = new DataOutputStream(new BufferedOutputStream(c.socket.getOutputStream()));
+                String greeting = c.d_in.readUTF();
+                connect_time.record(System.nanoTime() - connecting);
+                long retry_after = SocketHandling.busy_delay(greeting);
+                if (retry_after >= 0)
+                {   // The server still expects a request, it answers it with nothing.
+                    busy.increment();
+                    c.d_out.writeUTF("");
+                    c.d_out.flush();
+                    c.close();
+                    if (closed_loop) Thread.sleep(retry_after);
+                    return null;
+                }
+                c.server_version = fileRequest.server_version(greeting);
+            }
+            keep_alive = keep_alive && c.server_version >= 2;
+
+            fileRequest request = new fileRequest(filename);
+            request.advertise(c.socket);
+            if (keep_alive) request.headers.put("Connection", "keep-alive");
+            if (c.server_version >= 2) request.write(c.d_out);
+            else c.d_out.writeUTF(filename);
+            c.d_out.flush();
+
+            c.d_in.readUTF();                   // Receive message from server, file [not] found.
+            c.d_in.readUTF();                   // Receive message from server, server's request statistics.
+            boolean file_found = c.d_in.readBoolean();
+            if (c.server_version >= 2) request.read_status(c.d_in);
+            if (!file_found)
+            {
+                failed.increment();
+                if (!keep_alive) c.d_in.readUTF();  // Receive message from server, closing connection.
+                return finish(c, keep_alive);
+            }
+
+            c.d_in.readUTF();                   // Receive message from server, downloading file.
+            long filesize = c.d_in.readLong();
+            c.d_in.readInt();                   // The server's first chunk size, we read what comes.
+            InputStream body = request.body(c.d_in);
+            MessageDigest md5 = myfileclient.verify ? blockSignatures.md5() : null;
+            byte[] buffer_data_array = new byte[65536];
+            long left = filesize;
+            boolean first = true;
+            while (left > 0 || first)
+            {
+                int bytes_read = (left > 0) ? body.read(buffer_data_array, 0, 
+                    (int) Math.min(buffer_data_array.length, left)) : 0;
+                if (bytes_read < 0) throw new EOFException("Lost connection to server");
+                if (first) first_byte_time.record(System.nanoTime() - scheduled);
+                first = false;
+                if (md5 != null) md5.update(buffer_data_array, 0, bytes_read);
+                left -= bytes_read;
+            }
+            body.close();                       // Read up to the end of the file data.
+            c.d_in.readUTF();                   // Receive message from server, download is completed.
+            transfer_time.record(System.nanoTime() - scheduled);
+            bytes.add(filesize);
+            completed.increment();
+            if (!request.bad_ranges.isEmpty() || (md5 != null && !hex(md5.digest()).equals(expected_md5.get(filename))))
+                mismatched.increment();
+
+            if (!keep_alive) c.d_in.readUTF();  // Receive message from server, closing connection.
+            return finish(c, keep_alive);
+        }
+        catch (IOException e)
+        {
+            failed.increment();
+            if (c != null && c.socket != null) c.close();
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private connection finish(connection c, boolean keep_alive)
+    {
+        if (keep_alive) return c;
+        c.close();
+        return null;
+    }
+
+    /**
+     * A file from the mix, picked at random by weight.
+     */
+    private String pick()
+    {
+        double at = ThreadLocalRandom.current().nextDouble() * cumulative[cumulative.length - 1];
+        for (int i = 0; i < cumulative.length; i++)
+        {
+            if (at < cumulative[i]) return files[i];
+        }
+        return files[files.length - 1];
+    }
+
+    /**
+     * Ask the server for the MD5 of every file of the mix (STAT, protocol version 3), 
+     * to check the bodies against. Returns false, having said why, if it cannot.
+     */
+    private boolean read_expected_md5() throws IOException
+    {
+        try (Socket socket = myfileclient.connect(server_ip, server_port))
+        {
+            DataInputStream d_in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!catalogQuery.greeted(d_in, d_out)) return false;
+            for (int i = 0; i < files.length; i++)
+            {
+                fileRequest request = new fileRequest(fileRequest.STAT, files[i]);
+                request.headers.put("Hash", "md5");
+                if (i < files.length - 1) request.headers.put("Connection", "keep-alive");
+                if (!catalogQuery.ask(d_in, d_out, request)) return false;
+                expected_md5.put(files[i], request.response_headers.get("MD5"));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Print the totals, and the latency percentiles in ms.
+     */
+    private void report(long elapsed)
+    {
+        double seconds = elapsed / 1e9;
+        System.out.println(clientTime.current_time() + "Requests: " + completed.sum() + " completed (" 
+            + String.format("%.1f", completed.sum() / seconds) + "/s), " + failed.sum() + " failed, " 
+            + busy.sum() + " busy" + (myfileclient.rate > 0 ? ", " + dropped.sum() + " dropped" : "") 
+            + (myfileclient.verify || mismatched.sum() > 0 ? ", " + mismatched.sum() + " not matching" : ""));
+        System.out.println(clientTime.current_time() + "Throughput: " + String.format("%.1f", bytes.sum() / 1e6 / seconds) 
+            + " MB/s, " + bytes.sum() + " bytes in " + String.format("%.1f", seconds) + " s");
+        System.out.println(clientTime.current_time() + "Latency (ms)          p50        p99       p999        max");
+        print_latency("connect", connect_time);
+        print_latency("first byte", first_byte_time);
+        print_latency("transfer", transfer_time);
+    }
+
+    private void print_latency(String name, latencyHistogram histogram)
+    {
+        System.out.println(clientTime.current_time() + String.format("%-14s %10.3f %10.3f %10.3f %10.3f", name, 
+            histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6, 
+            histogram.max() / 1e6));
+    }
+
+    private static String hex(byte[] digest)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * A virtual thread per simulated client on Java 21 or newer. Older versions get platform 
+     * threads with small stacks, so a few thousand of them still fit.
+     */
+    private static ExecutorService new_executor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            System.out.println(clientTime.current_time() 
+                + "Virtual threads need Java 21 or newer, using platform threads instead");
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, "load-client", 256 << 10);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+
+class latencyHistogram
+{
+    // Values below SUB_BUCKETS each have their own bucket. Above that, every power of two is split 
+    // into SUB_BUCKETS buckets, so a bucket is never wider than 1/8 of its values (like HdrHistogram).
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Recording only adds to these, so clients never wait on each other, or allocate anything.
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {}
+    }
+
+    /**
+     * Value under which the given fraction of the recorded values fall, 
+     * accurate to the width of its bucket. Returns 0 when nothing was recorded.
+     */
+    public long percentile(double fraction)
+    {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) total += (snapshot[i] = counts.get(i));
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) return Math.min(bucket_top(i), max.get());
+        }
+        return 0;
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub_bucket;
+    }
+
+    // Largest value that falls in the bucket.
+    private static long bucket_top(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub_bucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + sub_bucket * width + width - 1;
+    }
+}
+
+
 class clientTime
 {   // Setting up variables to show time of ouputs.
     private static Date sys_time;
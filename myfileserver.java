@@ -10,14 +10,138 @@
  *  FUNCTIONS :
  *      myfileserver.main()
  *      multiThreadingServer.multiThreadingServer()
+ *      multiThreadingServer.run()
+ *      multiThreadingServer.admit_virtual()
+ *      multiThreadingServer.new_virtual_executor()
  *      ClientWorkerThread.ClientWorkerThread()
  *      ClientWorkerThread.run()
+ *      ClientWorkerThread.serve_request()
+ *      ClientWorkerThread.serve_catalog_request()
+ *      serverBusyResponse.run()
+ *      ClientWorkerThread.send_file_body()
+ *      ClientWorkerThread.throttle()
+ *      fileRequest.read()
+ *      fileRequest.range()
+ *      fileRequest.write_status()
+ *      fileCache.get()
+ *      fileCache.load()
+ *      fileCache.invalidate()
+ *      fileCatalog.build()
+ *      fileCatalog.refresh()
+ *      fileCatalog.answer()
+ *      fileCatalog.match()
+ *      catalogListing.next()
+ *      archiveBody.next()
+ *      filesWatcher.run()
+ *      serverConsole.run()
+ *      serverStatistics.prometheus()
+ *      latencyHistogram.record()
+ *      latencyHistogram.percentile()
+ *      metricsExporter.run()
+ *      selectorServer.run()
+ *      selectorLoop.run()
+ *      nioConnection.handle()
+ *      serverConfig.parse()
  *      serverTime.current_time()
+ *      fileLogging.start()
  *      fileLogging.log_exception()
+ *      logRing.offer()
+ *      adaptiveTransfer.start()
+ *      adaptiveTransfer.sent()
+ *      bandwidthShaper.start()
+ *      bandwidthShaper.transfer.sent()
+ *      tokenBucket.take()
+ *      compressionCache.open()
+ *      encodedBody.next()
+ *      checkedBody.next()
+ *      readAhead.next()
+ *      readAhead.close()
+ *      blockSignatures.read()
+ *      deltaBody.next()
  * 
  *  NOTES :
  *      - In the ThreadPoolExecutor, core pool size is the minimum number of threads to keep alive, while 
  *      the max pool size is the maximum number of threads to be run at once. Our pool is too small for it to matter.
+ *      - The server socket is opened through a ServerSocketChannel so that accepted sockets have a channel.
+ *      This is what lets FileChannel.transferTo() use sendfile and skip the copy through the heap.
+ *      - With --engine=nio the thread pool is replaced by a few selector loops (one per core by default).
+ *      Each connection is a small state machine that only works when its socket is ready, so the number
+ *      of clients served at once is limited by file descriptors instead of threads. It speaks the same
+ *      protocol as ClientWorkerThread, message for message. Answers that read files (loading one into memory, 
+ *      sampling or compressing it, hashing it, scanning directories) are prepared on the disk work threads 
+ *      while the connection's socket is not watched, so a cold file never holds up the loop.
+ *      - With --engine=virtual every connection runs ClientWorkerThread on its own virtual thread (Java 21+),
+ *      and --max-concurrent caps how many are served at once. Blocking code is cheap on a virtual thread.
+ *      - Accepting now happens on the multiThreadServer thread only, the workers are handed an accepted socket.
+ *      The queue is bounded by --queue-depth and each client has --queue-timeout ms to reach a worker.
+ *      Clients that do not make it are told "Server busy, retry after N ms" instead of waiting forever.
+ *      - Protocol version 2 (FDP/2, announced at the end of the greeting). Instead of the filename, newer clients 
+ *      send fileRequest.REQUEST_MAGIC, their version, a command, the filename and headers. The response is the 
+ *      same as before, with a status code and headers after the file found flag. A "Range: bytes=first-last" 
+ *      header asks for part of the file only, so an interrupted download can be resumed.
+ *      - Files up to --cache-max-entry bytes are kept in memory (direct buffers) up to --cache-size bytes in total, 
+ *      least recently sent files are dropped first. A WatchService on files/ drops a file as soon as it changes.
+ *      Typing "stats" in the server's console shows the hit, miss and eviction counters.
+ *      - A request with a "Connection: keep-alive" header leaves the connection open, the response says so with 
+ *      the same header and skips "Closing connection...". Requests are answered in order, so clients may send 
+ *      several ahead (pipelining). A kept open connection ends when the client closes it, sends a request 
+ *      without the header, or stays quiet for --keep-alive-timeout ms (thread engines only).
+ *      - serverStatistics counters are LongAdders, and latencyHistogram only does atomic adds, so workers 
+ *      record their metrics without locks. Metrics are exported in the Prometheus text format to 
+ *      --metrics-file every --metrics-interval ms, and/or at http://host:--metrics-port/metrics.
+ *      - Workers do not print anything themselves. They put log events in logRing (lock-free, never waits, 
+ *      drops events when full) and the log-writer thread writes them in batches to the console and to 
+ *      server.log, which is appended to and rotated at --log-max-size. --log-level=error silences the 
+ *      per-request lines, --log-level=debug adds how each file is sent.
+ *      - The Maven build compiles this file as it is (server module), --port and --files let the server run 
+ *      from its jar, or from the benchmarks in the bench module.
+ *      - Messages are gathered in a buffer and flushed once per response instead of after every message and 
+ *      4KB chunk. adaptiveTransfer sets TCP_NODELAY for files up to --small-file bytes (sent with their messages 
+ *      in one write), and a bigger send buffer for the rest. The copy loop starts with the largest chunk the 
+ *      client's "Receive-Buffer" header and --max-chunk allow, then halves or doubles it as long as the send 
+ *      rate improves, measured over windows of a few round trips (timed between the greeting and the request).
+ *      - Clients listing codecs in an "Accept-Encoding" header get the file compressed with the first one we know 
+ *      (contentCodecs, gzip and deflate), answered with "Content-Encoding". The compressed data is sent in frames 
+ *      (int length, data, and an empty frame at the end) since its size is only known at the end. A whole file 
+ *      compressed once is kept on disk in --compression-cache, and sent from there until the file changes. 
+ *      Samples of each file are compressed first, files that do not shrink (images, archives) are sent as is.
+ *      - Clients sending "Integrity: crc32c" get files that are not compressed in frames of --integrity-chunk bytes 
+ *      (checkedBody), each one followed by the CRC32C of its data, and an empty frame followed by a digest (the 
+ *      CRC32C of the frames' checksums) at the end. The checksums are computed where the data sits, the client 
+ *      asks again for the byte ranges of the frames that fail. Compressed files already carry a checksum.
+ *      - Protocol version 3 adds the DELTA command, for clients that already have a copy of the file. The request 
+ *      ends with blockSignatures, a rolling checksum and an MD5 for each block of the client's copy. deltaBody 
+ *      rolls the same checksum along our file a byte at a time, looking the blocks up by it, and sends new data 
+ *      and the numbers of the blocks the client can copy instead, then the MD5 of the whole file (like rsync).
+ *      - fileCatalog knows every file under files/ (name, size, modification time, and MD5 once asked for). It is 
+ *      scanned at startup, a directory per ForkJoin task, and kept current by the WatchService, so requests are 
+ *      looked up in a ConcurrentHashMap without touching the disk, misses included. Names leading outside of 
+ *      files/ are never found. Without a watcher every lookup reads the file's attributes instead.
+ *      - LIST (protocol version 3) streams the catalog entries under a prefix, each one a name, a size and a time, 
+ *      ending with an empty name and "Listing complete". STAT answers with a file's size and time as headers, 
+ *      and its MD5 with a "Hash: md5" header. Typing "stats" also shows the number of files in the catalog.
+ *      - bandwidthShaper keeps transfers within --max-egress (all clients), --client-rate (each client IP) and 
+ *      --connection-rate (each transfer), in bytes per second. Each cap is a tokenBucket kept as the time its 
+ *      debt is paid back (GCRA), taken from with one compareAndSet per chunk and no lock. Under the egress cap 
+ *      each transfer paces itself to its weighted share, files up to --priority-size get --priority-weight 
+ *      shares and bigger ones one. Files up to --small-file are counted but never wait, so they stay fast. 
+ *      Paused nio transfers stop watching their socket until the selector loop resumes them, thread engines 
+ *      park (a virtual thread gives its carrier back meanwhile, a platform thread stays taken for the wait).
+ *      - Sends that copy the file through our memory (the copy loop, checkedBody and encodedBody) read it with 
+ *      readAhead: an AsynchronousFileChannel on --read-ahead-threads I/O threads reads the next chunks of 
+ *      --read-ahead-chunk bytes while the current one is sent, into --read-ahead-buffers direct buffers shared by 
+ *      every transfer. Each transfer keeps 2 chunks in flight, one more each time it has to wait for the disk (up 
+ *      to --read-ahead), and one less while all of them are already read, so slow clients give buffers back. A 
+ *      transfer finding no free buffer goes on with what it has, or reads into the heap. Sendfile, cached files 
+ *      and deltaBody are left as they were. "stats" shows how often sends still waited for the disk. With 
+ *      --engine=nio the copy loop reads through readAhead too, and when the next chunk is not read yet the 
+ *      connection stops watching its socket until the read completes, the loop never waits for the disk. 
+ *      Frames that read files (checked from the disk, compressed, delta, archives) are made on the disk work threads.
+ *      - ARCHIVE (protocol version 3) sends every catalog file under a directory, or matching a glob, as one 
+ *      stream: for each file its name, size and time, its data and its CRC32C, then an empty name and "Archive 
+ *      complete". archiveBody keeps FILES_AHEAD files open with their readAhead started, so the next files are 
+ *      read while the current one is sent. Small files are packed together into frames, big ones go out a chunk 
+ *      at a time. Files that vanished since they were listed are skipped. The archive is shaped like a file.
  * 
  *  AUTHOR(S) : Noah Arcand Da Silva    START DATE : 2022.09.21 (YYYY.MM.DD)
  *
@@ -35,18 +159,103 @@
  */
 
 import java.net.*;
-import java.text.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
 import java.io.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
 import java.util.*;
+import com.sun.net.httpserver.*;
 
 
 public class myfileserver 
 {
     public static void main(String[] args)
     {
-        Thread mts = new multiThreadServer();
-        mts.start();
+        serverConfig config;
+        try
+        {   // Read the server options given when executing the program.
+            config = serverConfig.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {   // If an option is invalid, tell the user how to start the server.
+            System.out.println(e.getMessage() + "\n" + serverConfig.USAGE);
+            return;
+        }
+        // Write the log from its own thread, so the workers never wait on it.
+        fileLogging.start(config);
+
+        // Keep the popular files in memory, dropping them as soon as they change on disk.
+        fileCache cache = new fileCache(config);
+        // Compress files for the clients that accept it, keeping the compressed files on disk.
+        compressionCache compressed = new compressionCache(config);
+        // Know every file clients can download, so requests are answered without asking the disk.
+        fileCatalog catalog = new fileCatalog(config);
+        // Keep transfers within the bandwidth caps, if there are any.
+        bandwidthShaper shaper = new bandwidthShaper(config);
+        // Read files ahead of the sends that copy them, from a few I/O threads.
+        readAhead.configure(config);
+        boolean watched = false;
+        try
+        {
+            filesWatcher watcher = new filesWatcher(Paths.get(config.files_path));
+            watcher.add_listener(cache::invalidate);
+            watcher.add_listener(compressed::invalidate);
+            watcher.add_listener(catalog::refresh);
+            watcher.start();
+            watched = true;
+        }
+        catch (IOException e)
+        {   // Without a watcher we cannot tell when a file changes, so we cannot cache it.
+            System.out.println(serverTime.current_time() + "Cannot watch " + config.files_path 
+                + " for changes, file cache and catalog disabled");
+            cache = new fileCache(null);
+        }
+        // The watcher is running first, and the catalog replays what changes while it scans.
+        long scan_start = System.nanoTime();
+        catalog.build(watched);
+        System.out.println(serverTime.current_time() + "Catalog of " + catalog.count() + " files built in " 
+            + (System.nanoTime() - scan_start) / 1000000 + " ms");
+
+        // Export the metrics to a file, an HTTP endpoint, or both.
+        metricsExporter exporter = new metricsExporter(config, cache);
+        if (config.metrics_file != null) exporter.start();
+        if (config.metrics_port > 0)
+        {
+            try
+            {
+                exporter.start_endpoint();
+            }
+            catch (IOException e)
+            {
+                System.out.println(serverTime.current_time() + "Cannot serve metrics on port " 
+                    + config.metrics_port);
+                fileLogging.log_exception(e);
+            }
+        }
+
+        // Let the server answer commands typed in its console.
+        Thread console = new serverConsole(cache, catalog);
+        console.start();
+
+        if (config.engine.equals("nio"))
+        {   // Serve the clients from a few non-blocking selector loops.
+            Thread ss = new selectorServer(config, cache, compressed, catalog, shaper);
+            ss.start();
+        }
+        else
+        {   // Serve the clients from the pool of worker threads, or from virtual threads.
+            Thread mts = new multiThreadServer(config, cache, compressed, catalog, shaper);
+            mts.start();
+        }
     }
 }
 
@@ -54,61 +263,203 @@ public class myfileserver
 class multiThreadServer extends Thread
 {   
     public static ServerSocket server_socket;       // Initialize the Server Socket.
+    private serverConfig config;                    // Options the server was started with.
+    private fileCache cache;                        // Popular files kept in memory.
+    private compressionCache compressed;            // Compressed files kept on disk.
+    private fileCatalog catalog;                    // Every file clients can download.
+    private bandwidthShaper shaper;                 // Bandwidth caps shared by every transfer.
 
-    private ThreadPoolExecutor executor;            // Initialize the thread pool for multi-tasking and queuing.
+    private ExecutorService executor;               // Initialize the thread pool for multi-tasking and queuing.
     private BlockingQueue<Runnable> blocking_queue; // Initialize the thread queue to store incoming requests.
+    private Semaphore concurrency_limit;            // Caps the number of virtual threads serving clients.
+    private AtomicInteger waiting_clients;          // Clients waiting for a virtual thread slot.
+    private Semaphore admission_limit;              // Caps the clients being served or waiting in the queue.
+    private ThreadPoolExecutor busy_responder;      // Tells clients turned away that the server is busy.
 
-    public final int PORT = 8000;       // Set the port number of the server.
     int nThreads = 10;                  // Set the max number of simultaneous working threads.
 
-    Scanner sc = new Scanner(System.in);    // Enable server to listen to keyboard inputs.
-
     /**
      *  Create a pool of threads when the server launches, store incoming connections 
      *  in a queue, and have the threads in the pool progressively remove connections 
-     *  from the queue and process them. This is particularly simple since the operating 
-     *  system does in fact store the incoming connections in a queue.
+     *  from the queue and process them. The queue holds at most --queue-depth clients, 
+     *  anyone arriving while it is full is told to come back later.
+     * 
+     *  With --engine=virtual, each connection gets its own virtual thread instead, and a 
+     *  semaphore limits how many run at once. At most --queue-depth clients wait for a slot.
      */
-    public multiThreadServer()
+    public multiThreadServer(serverConfig config, fileCache cache, compressionCache compressed, 
+        fileCatalog catalog, bandwidthShaper shaper)
     {
+        this.config = config;
+        this.cache = cache;
+        this.compressed = compressed;
+        this.catalog = catalog;
+        this.shaper = shaper;
         try
-        {   // Starting the server socket on designated port.
-            server_socket = new ServerSocket(PORT);
+        {   // Starting the server socket on designated port. The socket is opened from a channel,
+            // so the sockets it accepts also have a channel we can use for zero-copy transfers.
+            server_socket = ServerSocketChannel.open().socket();
+            server_socket.bind(new InetSocketAddress(config.port));
             System.out.println(serverTime.current_time() + "Listening on " 
                 + "127.0.0.1" + ":" + server_socket.getLocalPort());
-            // Setting up the thread queue, using a
-            // runnable (used by class intended to be executed by a thread).
-            blocking_queue =  new LinkedBlockingQueue<Runnable>();
-            // Setting up an thread pool with a max size of 10 threads.
-            // Sending requests to queue when all threads are busy.
-            executor = new ThreadPoolExecutor(
-                nThreads, nThreads, 5, TimeUnit.SECONDS, blocking_queue, 
-                new ThreadPoolExecutor.AbortPolicy());
-                // Set a timeout of 5 seconds, but it is being used in this case, since it is 
-                // using a fixed pool of threads, thread pool size: core pool = max pool.
-
-            // We need to start all core threads when starting the server.
-            executor.prestartAllCoreThreads();
 
+            if (config.engine.equals("virtual"))
+            {   // One virtual thread per client, up to the concurrency limit.
+                executor = new_virtual_executor();
+                concurrency_limit = new Semaphore(config.max_concurrent);
+                waiting_clients = new AtomicInteger();
+            }
+            else
+            {   // Setting up the thread queue, bounded so a connection storm cannot
+                // fill up the memory. Using a runnable (used by class intended to be executed by a thread).
+                // The admission limit is what decides who gets in, counting the clients being served 
+                // as well, so a burst cannot be turned away while some threads are still idle.
+                admission_limit = new Semaphore(nThreads + config.queue_depth);
+                blocking_queue =  new ArrayBlockingQueue<Runnable>(nThreads + config.queue_depth);
+                // Setting up an thread pool with a max size of 10 threads.
+                // Sending requests to queue when all threads are busy.
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    nThreads, nThreads, 5, TimeUnit.SECONDS, blocking_queue, 
+                    new ThreadPoolExecutor.AbortPolicy());
+                    // Set a timeout of 5 seconds, but it is being used in this case, since it is 
+                    // using a fixed pool of threads, thread pool size: core pool = max pool.
+                executor = pool;
+
+                // We need to start all core threads when starting the server.
+                pool.prestartAllCoreThreads();
+            }
+
+            // A single thread answers the clients we turn away, so the accepting thread never 
+            // waits on them. If even its queue is full, the connection is simply closed.
+            busy_responder = new ThreadPoolExecutor(
+                1, 1, 5, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(config.queue_depth), 
+                (task, pool) -> ((serverBusyResponse) task).close());
+        }
+        catch (Exception e)
+        {   // If an error occured, attempt to properly close the socket and executor.
+            shutdown(e);
+        }
+    }
+
+    /**
+     *  The accepting thread. Connections are accepted here and handed to the workers, 
+     *  the workers never touch the server socket.
+     */
+    public void run()
+    {
+        if (executor == null) return;   // The server did not start.
+        try
+        {
             while(true)
             {
-                // If a client want to connect, add it to queue.
-                blocking_queue.offer(new ClientWorkerThread());
+                Socket client_socket = server_socket.accept();
+                if (concurrency_limit != null)
+                {
+                    admit_virtual(new ClientWorkerThread(client_socket, config, cache, compressed, catalog, shaper));
+                }
+                else if (admission_limit.tryAcquire())
+                {   // If a client want to connect, add it to queue.
+                    ClientWorkerThread worker = new ClientWorkerThread(client_socket, config, cache, compressed, catalog, shaper);
+                    executor.execute(() -> 
+                    {
+                        try
+                        {
+                            worker.run();
+                        }
+                        finally
+                        {   // Make room in the queue for the next client.
+                            admission_limit.release();
+                        }
+                    });
+                }
+                else
+                {   // The queue is full, tell the client to retry later.
+                    busy_responder.execute(new serverBusyResponse(client_socket, config.retry_after));
+                }
             }
         }
         catch (Exception e)
         {   // If an error occured, attempt to properly close the socket and executor.
+            shutdown(e);
+        }
+    }
+
+    /**
+     *  Start a virtual thread for the client, which waits for a free slot until its queue 
+     *  deadline. If too many clients are already waiting, it is turned away right away.
+     */
+    private void admit_virtual(ClientWorkerThread worker)
+    {
+        if (waiting_clients.incrementAndGet() > config.queue_depth)
+        {
+            waiting_clients.decrementAndGet();
+            busy_responder.execute(worker.busy_response());
+            return;
+        }
+        executor.execute(() -> 
+        {
+            boolean admitted = false;
+            try
+            {   // Wait for a free slot, but no longer than the queue deadline.
+                admitted = concurrency_limit.tryAcquire(worker.queue_time_left(), TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {}
+            waiting_clients.decrementAndGet();
+
+            if (!admitted)
+            {
+                worker.busy_response().run();
+                return;
+            }
             try
             {
-                server_socket.close();
+                worker.run();
+            }
+            finally
+            {   // Give the slot to the next client.
+                concurrency_limit.release();
+            }
+        });
+    }
+
+    /**
+     * Attempt to properly close the socket and executors, and log what stopped the server.
+     */
+    private void shutdown(Exception e)
+    {
+        try
+        {
+            if (server_socket != null) server_socket.close();
+            if (busy_responder != null) busy_responder.shutdown();
+            if (executor != null)
+            {
                 executor.shutdown();
                 executor.awaitTermination(500, TimeUnit.MILLISECONDS);
-                fileLogging.log_exception(e);   // Write the error to the log file.
-            }
-            catch (Exception ee)
-            {   // If an error occured while trying to close the application, write it to the log file.
-                fileLogging.log_exception(ee);
             }
+            fileLogging.log_exception(e);   // Write the error to the log file.
+        }
+        catch (Exception ee)
+        {   // If an error occured while trying to close the application, write it to the log file.
+            fileLogging.log_exception(ee);
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21, so it is looked up 
+     * when the server starts. On older versions of Java we fall back to a cached pool of 
+     * platform threads, which still gives each client its own thread, but with a full stack.
+     */
+    static ExecutorService new_virtual_executor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            System.out.println(serverTime.current_time() 
+                + "Virtual threads need Java 21 or newer, using platform threads instead");
+            return Executors.newCachedThreadPool();
         }
     }
 }
@@ -116,7 +467,6 @@ class multiThreadServer extends Thread
 
 class ClientWorkerThread implements Runnable
 {
-    private String java_file_path;      // Initialize the variable to store the .java file's directory.
 
     private Socket client_socket;       // Setting up socket variables.
     private String client_ip;           // Client's ip address.
@@ -125,138 +475,155 @@ class ClientWorkerThread implements Runnable
     private DataInputStream d_in;       // Receive data from client.
     private DataOutputStream d_out;     // Send data to client.
     private FileInputStream f_in;       // Read from a file.
+    private framedBody framed;          // File data sent compressed or with checksums, in frames.
+    private int integrity_chunk;        // Bytes covered by each checksum, for clients that ask for them.
 
+    private fileRequest request;        // Request received from client.
     private String filename;            // Variable to receive from client.
 
     // Variables to send to client.
     private File server_file;           // Initialize the file variable to read from
     private boolean file_found = false; // Determine if file request by client exists.
-    private int BUFFER = 4096;          // Setting up buffer size of 4KB.
+    private adaptiveTransfer transfer;  // Picks the chunk size and socket options for each file.
 
     private int bytes = 0;              // Size of file data chunks.
 
+    private boolean zero_copy;          // Send the file with FileChannel.transferTo instead of the copy loop.
+    private long zero_copy_threshold;   // Files smaller than this are always sent with the copy loop.
+
+    private long accepted_at;           // When the client was accepted, in System.nanoTime().
+    private long request_id;            // Number of the request being answered, for the console.
+    private long queue_timeout;         // How long the client may wait in the queue, in nanoseconds.
+    private long retry_after;           // Delay suggested to the client when the server is busy, in ms.
+
+    private fileCache cache;            // Popular files kept in memory.
+    private compressionCache compressed;    // Compressed files kept on disk.
+    private fileCatalog catalog;        // Every file clients can download.
+    private bandwidthShaper shaper;     // Bandwidth caps shared by every transfer.
+    private bandwidthShaper.transfer shaped;    // Caps of the file being sent, null when there are none.
+
+    private int keep_alive_timeout;     // How long a kept open connection may wait for its next request, in ms.
+    private boolean client_left = false;    // The client closed a kept open connection.
+    private long small_file;            // Files up to this size go out with their messages, in one write.
+    private byte[] small_body;          // Reused to copy small files in memory in with the messages.
+
 
     /**
      * Constructor function for ClientWorker Thread.
-     * Establishing a socket connection between server and client.
+     * Takes the socket connection between server and client, accepted by the server.
      */
-    public ClientWorkerThread()
+    public ClientWorkerThread(Socket client_socket, serverConfig config, fileCache cache, 
+        compressionCache compressed, fileCatalog catalog, bandwidthShaper shaper)
     {
-        try
-        {   // Once the client passed the queue, connect it to the sever.
-            client_socket = multiThreadServer.server_socket.accept();
-            // Save the client's ip address.
-            client_ip = client_socket.getInetAddress().toString();
-        }
-        catch (IOException e)
-        {   // If an error occured when trying to connect to client.
-            System.out.println(serverTime.current_time()
-                + "An error occurred while trying to connect to client");
-        }
-        catch (Exception e)
-        {   // If another type of error occured, write it to the log file.
-            fileLogging.log_exception(e);
-        }
-        
+        this.cache = cache;
+        this.compressed = compressed;
+        this.catalog = catalog;
+        this.shaper = shaper;
+        this.client_socket = client_socket;
+        // Save the client's ip address.
+        client_ip = client_socket.getInetAddress().toString();
+
+        zero_copy = config.zero_copy;
+        zero_copy_threshold = config.zero_copy_threshold;
+
+        accepted_at = System.nanoTime();
+        queue_timeout = TimeUnit.MILLISECONDS.toNanos(config.queue_timeout);
+        retry_after = config.retry_after;
+        keep_alive_timeout = (int) Math.min(config.keep_alive_timeout, Integer.MAX_VALUE);
+        small_file = config.small_file;
+        integrity_chunk = config.integrity_chunk;
+        transfer = new adaptiveTransfer(config);
     }
+
+    /**
+     * Time left before the client's queue deadline, in nanoseconds.
+     */
+    public long queue_time_left()
+    {
+        return queue_timeout - (System.nanoTime() - accepted_at);
+    }
+
+    /**
+     * The reply for when the client cannot be served in time.
+     */
+    public serverBusyResponse busy_response()
+    {
+        return new serverBusyResponse(client_socket, retry_after);
+    }
+
     /**
      * Works with client (Allows to download files)
      */
     public void run()
     {
+        if (queue_time_left() < 0)
+        {   // The client waited in the queue past its deadline, tell it to retry later.
+            busy_response().run();
+            return;
+        }
+        serverStatistics.queue_time.record(System.nanoTime() - accepted_at);
         try
-        {   // Start Data Types IO Streaming between the client and the server. 
-            d_in = new DataInputStream(client_socket.getInputStream());
-            d_out = new DataOutputStream(client_socket.getOutputStream());
+        {   // Start Data Types IO Streaming between the client and the server. Messages are 
+            // gathered in a buffer and sent together, the stream is only flushed when the client 
+            // needs what we wrote to go on, instead of once for each message or chunk.
+            client_socket.setTcpNoDelay(true);
+            d_in = new DataInputStream(new BufferedInputStream(client_socket.getInputStream()));
+            d_out = new DataOutputStream(new BufferedOutputStream(client_socket.getOutputStream(), 65536));
 
             // Notify the server when the client connects.
-            System.out.println(serverTime.current_time() + "Client " + client_ip + " connected to server");
-            // Send message to client saying he is connected to server.
-            d_out.writeUTF(serverTime.current_time() + "Connection established.");
-            filename = d_in.readUTF();  // Receive requested filename from client.
-
-            // Updating server statistics for file request.
-            serverStatistics.tReq++;
-            System.out.println(serverTime.current_time() + "REQ " + serverStatistics.tReq
-                + ": File " + filename + " requested from " + client_ip);
-            
-            java_file_path =    // Set the .java file's directory to the variable.
-                myfileserver.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
-            // Remove the filename from the path.
-            java_file_path = java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1);
-            
-            server_file = new File(java_file_path + "files/" + filename);  // Import file data.
-            if (server_file.exists())
-            {   // Update the client, file found.
-                d_out.writeUTF(serverTime.current_time() +"File " + filename + " found at server");
-                file_found = true;
-                // Updating server statistics for file lookup request.
-                serverStatistics.sReq++;
-                System.out.println(serverTime.current_time() + "REQ " + serverStatistics.tReq 
-                    + ": Successful");
-                System.out.println(serverTime.current_time() + "REQ " + serverStatistics.tReq 
-                    + ": Total Successful requests so far = " + serverStatistics.sReq);
-                
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("Client " + client_ip + " connected to server");
             }
-            else
-            {   // Update the client, file not found.
-                d_out.writeUTF(serverTime.current_time() + "File " + filename 
-                    + " not found at server");
-                file_found = false;
-                // Updating server statistics for file lookup request.
-                System.out.println(serverTime.current_time() + "REQ "
-                    + serverStatistics.tReq + ": Not Successful");
-            }
-
-            // Send out the request statistics to the client
-            d_out.writeUTF(serverTime.current_time() + "Server handled " + serverStatistics.tReq
-                + " requests, " + serverStatistics.sReq + " requests were successful");
-             
-            d_out.writeBoolean(file_found); // Tell the client if file exists.
-            // If the file is not found, we can skip to closing the client socket and thread.
-            if (!file_found) return;
-
-            // Telling the client we are starting the process of downloading the file.
-            d_out.writeUTF(serverTime.current_time() + "Downloading file " + filename);
-
-            // Start the File and Buffered Streams needed for file transfers.
-            f_in = new FileInputStream(server_file);
-
-            d_out.writeLong(server_file.length());  // Send filesize to client.
-            d_out.writeInt(BUFFER);                 // Send buffer size to client.
-            
-            bytes = 0;
-            // Initialize a byte array same size as the buffer.
-            byte[] buffer_data_array  = new byte[BUFFER];
-            // Read file input data, breaking it into chunks.
-            while ((bytes = f_in.read(buffer_data_array)) != -1)
-            {   // Write chunks into data stream for client to download.
-                d_out.write(buffer_data_array, 0, bytes);
-                d_out.flush();  // Clear the stream for next chunk.
+            // Send message to client saying he is connected to server.
+            d_out.writeUTF(serverTime.current_time() + fileRequest.GREETING);
+            d_out.flush();
+            transfer.greeting_sent();
+            // Receive requested filename from client, newer clients send an extended request.
+            // Clients asking to keep the connection open send their next request after each file.
+            for (int served = 0; served == 0 || request.keep_alive(); served++)
+            {
+                if (served > 0) client_socket.setSoTimeout(keep_alive_timeout);
+                try
+                {
+                    request = fileRequest.read(d_in);
+                    transfer.request_received();
+                }
+                catch (EOFException | SocketTimeoutException e)
+                {   // A client keeping the connection open may leave, or go quiet, at any time.
+                    if (served == 0) throw e;
+                    client_left = true;
+                    return;
+                }
+                if (request.catalog()) serve_catalog_request();
+                else serve_request();
+                // The answer to this request goes out now, when the connection is closed 
+                // the closing message goes out with it.
+                if (request.keep_alive()) d_out.flush();
             }
-            f_in.close();   // Close the streams needed for the transfer.
-
-            d_out.writeUTF(serverTime.current_time() + "Download complete");
-
-            System.out.println(serverTime.current_time() + "REQ " + serverStatistics.tReq 
-                + ": File transfer complete");
-            
         }
         catch (Exception e)
         {   // If the program fails, write it to the log file.
+            serverStatistics.errors.increment();
             fileLogging.log_exception(e);
         }
         finally 
         {
             try 
             {   // Attempt to close the socket and other tools.
-                d_out.writeUTF(serverTime.current_time() + "Closing connection...");
+                if (!client_left) d_out.writeUTF(serverTime.current_time() + "Closing connection...");
+                d_out.flush();
                 if (d_in != null) d_in.close();
                 if (d_out != null) d_out.close();
                 if (f_in != null) f_in.close();
+                if (framed != null) framed.close();
+                if (shaped != null) shaped.finish();
                 client_socket.close();
                 // Notify the server when the client disconnects.
-                System.out.println(serverTime.current_time() + "Client " + client_ip + " disconnected");
+                if (fileLogging.enabled(fileLogging.INFO))
+                {
+                    fileLogging.info("Client " + client_ip + " disconnected");
+                }
             }
             catch (Exception e)
             {   // If an error occured while trying to close the application, write it to the log file.
@@ -264,69 +631,4734 @@ class ClientWorkerThread implements Runnable
             }
         }
     }
-}
 
+    /**
+     * Answer one request: look up the file, send the messages, status and headers, 
+     * then the file data if it was found.
+     */
+    private void serve_request() throws Exception
+    {
+        long received_at = System.nanoTime();
+        filename = request.filename;
+        file_found = false;
+        server_file = null;
+
+        // Updating server statistics for file request.
+        request_id = serverStatistics.tReq.incrementAndGet();
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id
+                + ": File " + filename + " requested from " + client_ip);
+        }
+        
+        int status;                 // Status code for clients with an extended request.
+        long[] range = null;        // Part of the file to send, first byte and length.
+        long filesize = -1;         // Size of the file, -1 while not found.
+        fileCache.entry cached = null;  // The file's data, if it is in memory.
+        if (request.sends_file())
+        {   // Look in memory first, then in the catalog.
+            cached = cache.get(filename);
+            if (cached == null)
+            {
+                fileCatalog.entry listed = catalog.get(filename);
+                if (listed != null)
+                {
+                    server_file = listed.file;
+                    filesize = listed.size;
+                    cached = cache.load(filename, server_file);
+                }
+            }
+            if (cached != null) filesize = cached.size;
+        }
 
-class serverStatistics
-{
-    public static int tReq; // Maintains count of total requests.
-    public static int sReq; // Maintains count of successful requests.
-}
+        if (!request.sends_file())
+        {   // Update the client, we do not know what it is asking for.
+            d_out.writeUTF(serverTime.current_time() + "Command " + request.command 
+                + " not supported by server");
+            status = fileRequest.BAD_REQUEST;
+        }
+        else if (filesize >= 0 && (range = request.range(filesize)) != null)
+        {   // Update the client, file found.
+            d_out.writeUTF(serverTime.current_time() +"File " + filename + " found at server");
+            status = request.headers.containsKey("Range") ? fileRequest.PARTIAL : fileRequest.OK;
+            // Updating server statistics for file lookup request.
+            serverStatistics.sReq.increment();
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ " + request_id
+                    + ": Successful");
+            }
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id
+                    + ": Total Successful requests so far = " + serverStatistics.sReq.sum());
+            }
+            
+        }
+        else if (filesize >= 0)
+        {   // Update the client, the file is there but smaller than the range asked for.
+            d_out.writeUTF(serverTime.current_time() + "Requested range of file " + filename 
+                + " not satisfiable");
+            status = fileRequest.RANGE_NOT_SATISFIABLE;
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ "
+                    + request_id + ": Not Successful, range not satisfiable");
+            }
+        }
+        else
+        {   // Update the client, file not found.
+            d_out.writeUTF(serverTime.current_time() + "File " + filename 
+                + " not found at server");
+            status = fileRequest.NOT_FOUND;
+            // Updating server statistics for file lookup request.
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ "
+                    + request_id + ": Not Successful");
+            }
+        }
+        file_found = (range != null);
 
+        // Clients with a copy of the file get what changed. Clients that accept compressed data 
+        // get it, when the file is worth compressing. Otherwise clients asking for checksums 
+        // get the file in checked frames.
+        if (file_found && request.signatures != null)
+        {
+            framed = new deltaBody(cached, server_file, filesize, request.signatures);
+        }
+        else if (file_found && request.extended())
+        {
+            framed = compressed.open(filename, server_file != null ? server_file : cached.file, range, 
+                contentCodecs.negotiate(request.headers.get("Accept-Encoding")));
+            if (framed == null && request.integrity())
+                framed = new checkedBody(cached, server_file, range[0], range[1], integrity_chunk);
+        }
 
-class serverTime
-{   // Setting up variables to show time of ouputs.
-    private static Date sys_time;
-    private static SimpleDateFormat time_format = 
-        new SimpleDateFormat("[HH:mm:ss.SSS] ");
+        // Send out the request statistics to the client
+        d_out.writeUTF(serverTime.current_time() + "Server handled " + serverStatistics.tReq.get()
+            + " requests, " + serverStatistics.sReq.sum() + " requests were successful");
+         
+        d_out.writeBoolean(file_found); // Tell the client if file exists.
+        if (request.extended())
+        {   // Newer clients also get a status code, and which part of the file is coming.
+            request.write_status(d_out, status, range, filesize, framed != null ? framed.headers() : null);
+        }
+        // If the file is not found, we can skip to closing the client socket and thread.
+        if (!file_found) return;
 
-    public static String current_time()
+        // Telling the client we are starting the process of downloading the file.
+        d_out.writeUTF(serverTime.current_time() + "Downloading file " + filename);
+        d_out.writeLong(range[1]);  // Send filesize to client, or the size of the part asked for.
+        // Send buffer size to client, the size of our first chunk.
+        d_out.writeInt(transfer.start(client_socket, range[1], request.receive_buffer()));
+        serverStatistics.first_byte_time.record(System.nanoTime() - received_at);
+        shaped = shaper.start(client_ip, range[1]);
+
+        long sent = range[1];       // Bytes sent for the file data, frames included.
+        String sent_as = null;      // How the frames were made, if the file was sent in frames.
+        if (framed != null)
+        {   // Send the file compressed or checked, in frames.
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id + ": Sending with " + framed);
+            }
+            send_framed_body();
+            sent = framed.sent();
+            sent_as = framed.name();
+            framed.close();
+            framed = null;
+        }
+        else if (cached != null && range[1] <= small_file)
+        {   // A small file in memory goes into the buffer with the messages, all sent in one write.
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id + ": Sending from memory with the messages");
+            }
+            ByteBuffer data = cached.data.duplicate();
+            data.limit((int) (range[0] + range[1])).position((int) range[0]);
+            if (small_body == null) small_body = new byte[(int) Math.max(1, Math.min(small_file, 65536))];
+            while (data.hasRemaining())
+            {
+                int piece = Math.min(data.remaining(), small_body.length);
+                data.get(small_body, 0, piece);
+                d_out.write(small_body, 0, piece);
+            }
+            throttle(range[1]);     // Counted, small files do not wait.
+        }
+        else if (cached != null && client_socket.getChannel() != null)
+        {   // The file is in memory, write it straight to the socket.
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id + ": Sending from memory");
+            }
+            send_cached_body(cached, range[0], range[1]);
+        }
+        else
+        {   // Start the File and Buffered Streams needed for file transfers.
+            File source = (server_file != null) ? server_file : cached.file;
+            f_in = new FileInputStream(source);
+            send_file_body(source, range[0], range[1]);     // Send the file data itself.
+            f_in.close();                       // Close the streams needed for the transfer.
+        }
+        if (range[1] > small_file)
+        {   // Push out the end of a big file now, a small one goes out with the messages after it.
+            d_out.flush();
+            transfer.finish(client_socket);
+        }
+
+        if (shaped != null) shaped.finish();
+        shaped = null;
+        d_out.writeUTF(serverTime.current_time() + "Download complete");
+        long elapsed = System.nanoTime() - received_at;
+        serverStatistics.transfer_complete(sent, elapsed);
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id + ": File transfer complete, " + range[1] + " bytes"
+                + (sent_as != null ? " (" + sent + " sent with " + sent_as + ")" : "") + " in " + elapsed / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Answer a LIST, STAT or ARCHIVE request from the catalog. A listing or an archive follows 
+     * the headers, with no size ahead of it, its entries end with an empty name.
+     */
+    private void serve_catalog_request() throws Exception
     {
-        sys_time = new Date();
-        return time_format.format(sys_time);
+        long received_at = System.nanoTime();
+        request_id = serverStatistics.tReq.incrementAndGet();
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id + ": " + request.command + " \"" + request.filename
+                + "\" requested from " + client_ip);
+        }
+
+        framed = catalog.answer(request, d_out, request_id);
+        if (framed == null) return;
+        boolean archive = (framed instanceof archiveBody);
+        if (archive)
+        {   // As much data as a big file, sent like one and within the same caps.
+            long length = ((archiveBody) framed).length();
+            transfer.start(client_socket, length, request.receive_buffer());
+            shaped = shaper.start(client_ip, length);
+        }
+        send_framed_body();
+        long sent = framed.sent();
+        long elapsed = System.nanoTime() - received_at;
+        if (archive)
+        {
+            d_out.flush();
+            transfer.finish(client_socket);
+            if (shaped != null) shaped.finish();
+            shaped = null;
+            serverStatistics.transfer_complete(sent, elapsed);
+        }
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id + ": Sent " + framed + ", " + sent + " bytes in "
+                + elapsed / 1000000 + " ms");
+        }
+        framed.close();
+        framed = null;
+        d_out.writeUTF(serverTime.current_time() + request.catalog_complete());
     }
-}
 
+    /**
+     * Send the file in the frames made by framedBody. Frames in the Java heap go through the 
+     * stream's buffer, frames outside of it are written straight to the socket.
+     */
+    private void send_framed_body() throws IOException
+    {
+        ByteBuffer frame;
+        byte[] frame_bytes = null;      // Copy of frames outside of the heap, for sockets without a channel.
+        while ((frame = framed.next(chunk())) != null)
+        {
+            int frame_size = frame.remaining();
+            transfer.sent(frame_size);
+            if (frame.hasArray())
+            {
+                d_out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            else if (client_socket.getChannel() != null)
+            {   // Make sure what is in the stream's buffer is out before the frame.
+                d_out.flush();
+                while (frame.hasRemaining()) client_socket.getChannel().write(frame);
+            }
+            else
+            {
+                if (frame_bytes == null || frame_bytes.length < frame.remaining()) 
+                    frame_bytes = new byte[frame.remaining()];
+                int length = frame.remaining();
+                frame.get(frame_bytes, 0, length);
+                d_out.write(frame_bytes, 0, length);
+            }
+            throttle(frame_size);
+        }
+    }
 
-class fileLogging
-{
-    private static File log_file;           // File to store log of exception information.
-    private static PrintStream ps;          // Setting up print stream for the error output stream.
-    private static FileOutputStream fos;    // Initializing FOS to write to the log file.
+    /**
+     * Send part of a file kept in memory by the cache. The data is written to the socket 
+     * from where it sits, nothing is read from the disk or copied.
+     */
+    private void send_cached_body(fileCache.entry cached, long start, long length) throws IOException
+    {
+        d_out.flush();  // Make sure the headers are out before the file data.
+        // A view of the cached data, so other clients sending the same file are not disturbed.
+        ByteBuffer data = cached.data.duplicate();
+        data.limit((int) (start + length)).position((int) start);
+        while (data.hasRemaining())
+        {   // Within the bandwidth caps, a chunk at a time.
+            ByteBuffer piece = data.slice();
+            if (shaped != null) piece.limit(Math.min(piece.limit(), chunk()));
+            int sent = client_socket.getChannel().write(piece);
+            data.position(data.position() + sent);
+            throttle(sent);
+        }
+    }
 
-    private static PrintWriter pw;          // Turns stack trace object to a text-output.
-    private static StringWriter sw;         // Character stream to convert exception stack trace to string.
+    /**
+     * Largest chunk to send at once, the adaptive chunk size within the bandwidth caps.
+     */
+    private int chunk()
+    {
+        return (shaped == null) ? transfer.chunk() : Math.min(transfer.chunk(), shaped.chunk_limit());
+    }
 
-    /*
-     * Function to print the stack trace from exceptions into a log file,
-     * instead of printing it to the screen.
+    /**
+     * Count bytes just sent against the bandwidth caps, and wait when we are ahead of them. The 
+     * thread parks: a virtual thread gives its carrier thread back meanwhile, but a pool worker 
+     * (or the platform threads virtual falls back to before Java 21) stays taken for the wait. 
+     * Only the nio engine throttles without holding a thread.
      */
-    public static void log_exception(Exception ex)
+    private void throttle(long sent) throws IOException
     {
-        try
+        if (shaped == null) return;
+        long wait = shaped.sent(sent);
+        if (wait < bandwidthShaper.MIN_WAIT) return;
+        d_out.flush();  // What was gathered goes out before the wait, not after it.
+        long resume_at = System.nanoTime() + wait;
+        while ((wait = resume_at - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+    }
+
+    /**
+     * Send the file data to the client, starting at the given position. When zero-copy is enabled 
+     * the file goes straight from its FileChannel to the socket's channel (sendfile), without 
+     * passing through our buffer. Small files, sockets without a channel, or platforms where 
+     * transferTo() cannot be used fall back to the chunked copy loop, which sends each chunk 
+     * while readAhead reads the next ones. The client receives the same bytes either way.
+     */
+    private void send_file_body(File file, long start, long length) throws IOException
+    {
+        FileChannel file_channel = f_in.getChannel();
+        SocketChannel socket_channel = client_socket.getChannel();
+        long position = start;          // Position of the next byte of the file to send.
+        long end = start + length;      // Position right after the last byte to send.
+
+        if (zero_copy && socket_channel != null && length >= zero_copy_threshold)
         {
-            // Open file named server.log
-            log_file = new File("server.log");
-            fos = new FileOutputStream(log_file);   // Start file output stream to write the logs to.
-            ps = new PrintStream(fos);              // Start a print stream pointing to the file output.
-            System.setErr(ps);                      // Set the system error output stream to our file.
-            
-            // Turn the exception stack trace into a string.
-            sw = new StringWriter();    // Start character stream.
-            pw = new PrintWriter(sw);   // Write the text-output to the String Writer.
-            ex.printStackTrace(pw);     // Send the esception's stack trace to the Print Writer.
-            // Finally, get the string from the String Writer, and print it to the log file.
-            System.err.println(sw.toString());
-            
-            // Close the opened streams if opened.
-            if (pw != null) pw.close();
-            if (sw != null) sw.close();
-            if (ps != null) ps.close();
-            if (fos != null) fos.close();
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id + ": Sending with zero-copy");
+            }
+            d_out.flush();  // Make sure the headers are out before the file data.
+            try
+            {   // Let the kernel copy the file to the socket, the call can send less than asked.
+                while (position < end)
+                {
+                    long count = (shaped == null) ? end - position : Math.min(end - position, chunk());
+                    long sent = file_channel.transferTo(position, count, socket_channel);
+                    if (sent <= 0) break;   // File shrunk while sending, let the copy loop finish up.
+                    position += sent;
+                    throttle(sent);
+                }
+            }
+            catch (IOException e)
+            {   // If nothing was sent yet, transferTo() is not usable here and we can still copy.
+                // Otherwise the client already has part of the file and the transfer failed.
+                if (position > start) throw e;
+            }
+            if (position >= end) return;
         }
-        catch (Exception e)
+        if (fileLogging.enabled(fileLogging.DEBUG))
         {
-            e.printStackTrace();
+            fileLogging.debug("REQ " + request_id + ": Sending with the copy loop from byte " + position);
+        }
+
+        bytes = 0;
+        // Big files go from the chunks read ahead straight to the socket's channel. Small ones, 
+        // or sockets without a channel, are copied into the stream so they go out with the messages.
+        boolean direct = (socket_channel != null && length > small_file);
+        if (direct) d_out.flush();  // Make sure the headers are out before the file data.
+        byte[] buffer_data_array = direct ? null : new byte[transfer.chunk()];
+        // Read file input data, breaking it into chunks, until the end of the part asked for, 
+        // the disk reading the next chunks while this one is sent.
+        try (readAhead ahead = new readAhead(file, position, end - position))
+        {
+            ByteBuffer piece;
+            while (position < end && (piece = ahead.next(chunk())) != null)
+            {   // Write chunks into data stream for client to download.
+                bytes = piece.remaining();
+                if (direct)
+                {
+                    while (piece.hasRemaining()) socket_channel.write(piece);
+                }
+                else
+                {
+                    if (buffer_data_array.length < bytes) buffer_data_array = new byte[bytes];
+                    piece.get(buffer_data_array, 0, bytes);
+                    d_out.write(buffer_data_array, 0, bytes);
+                }
+                position += bytes;
+                transfer.sent(bytes);
+                throttle(bytes);
+            }
+        }
+        if (fileLogging.enabled(fileLogging.DEBUG))
+        {
+            fileLogging.debug("REQ " + request_id + ": Copy loop ended with chunks of " + transfer.chunk() + " bytes");
+        }
+    }
+}
+
+
+class fileRequest
+{
+    // Sent by newer clients in place of the filename, followed by the extended request.
+    // A filename cannot contain the NUL character, so an older client never sends it by accident.
+    public static final String REQUEST_MAGIC = "\u0000FDP";
+    public static final int VERSION = 3;    // Newest version of the protocol the server speaks.
+    // Greeting sent to clients, newer clients look for the protocol version at the end.
+    public static final String GREETING = "Connection established. (FDP/" + VERSION + ")";
+
+    // Commands of the extended request.
+    public static final String GET = "GET";
+    public static final String DELTA = "DELTA";     // Only what changed since the client's copy (version 3).
+    public static final String LIST = "LIST";       // Files under a prefix, from the catalog (version 3).
+    public static final String STAT = "STAT";       // Size, time and MD5 of a file, from the catalog (version 3).
+    public static final String ARCHIVE = "ARCHIVE"; // Files under a directory or matching a glob, as one stream.
+
+    // Status codes sent to newer clients, borrowed from HTTP.
+    public static final int OK = 200;
+    public static final int PARTIAL = 206;
+    public static final int BAD_REQUEST = 400;
+    public static final int NOT_FOUND = 404;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
+
+    public int version = 1;             // Protocol version of the client, 1 when it only sent a filename.
+    public String command = GET;        // What the client is asking for.
+    public String filename;             // File the command applies to.
+    public Map<String, String> headers = new LinkedHashMap<String, String>();  // Options of the command.
+    public blockSignatures signatures;  // Blocks of the client's copy of the file, for DELTA.
+
+    /**
+     * Read a request from the client. Older clients only send the filename with writeUTF(), 
+     * newer ones send REQUEST_MAGIC, then their version, the command, the filename, and the 
+     * number of headers followed by each header's name and value, all written with 
+     * writeInt() and writeUTF(). A DELTA request ends with the signatures of the client's copy.
+     */
+    public static fileRequest read(DataInput in) throws IOException
+    {
+        fileRequest request = new fileRequest();
+        String first = in.readUTF();
+        if (!first.equals(REQUEST_MAGIC))
+        {   // Plain filename request.
+            request.filename = first;
+            return request;
         }
+
+        request.version = in.readInt();
+        request.command = in.readUTF();
+        request.filename = in.readUTF();
+        int header_count = in.readInt();
+        if (header_count < 0 || header_count > 64) throw new IOException("Invalid number of request headers");
+        for (int i = 0; i < header_count; i++)
+        {
+            request.headers.put(in.readUTF(), in.readUTF());
+        }
+        if (request.command.equals(DELTA)) request.signatures = blockSignatures.read(in);
+        return request;
+    }
+
+    public boolean extended()
+    {
+        return version >= 2;
+    }
+
+    /**
+     * Whether the command is answered from the catalog, without sending a single file. 
+     * An archive sends the files it finds there, one after the other.
+     */
+    public boolean catalog()
+    {
+        return command.equals(LIST) || command.equals(STAT) || command.equals(ARCHIVE);
+    }
+
+    /**
+     * Message ending the body of a catalog answer.
+     */
+    public String catalog_complete()
+    {
+        return command.equals(ARCHIVE) ? "Archive complete" : "Listing complete";
+    }
+
+    /**
+     * Whether the command is answered with the file, whole or as a delta.
+     */
+    public boolean sends_file()
+    {
+        return command.equals(GET) || command.equals(DELTA);
+    }
+
+    /**
+     * Whether the client asked to keep the connection open for more requests, 
+     * with a "Connection: keep-alive" header.
+     */
+    public boolean keep_alive()
+    {
+        return extended() && "keep-alive".equalsIgnoreCase(headers.get("Connection"));
+    }
+
+    /**
+     * Whether the client asked for the file with CRC32C checksums, 
+     * with an "Integrity: crc32c" header.
+     */
+    public boolean integrity()
+    {
+        return extended() && "crc32c".equalsIgnoreCase(headers.get("Integrity"));
+    }
+
+    /**
+     * Size of the client's socket receive buffer, from its "Receive-Buffer" header, 
+     * or 0 when the client did not say.
+     */
+    public int receive_buffer()
+    {
+        try
+        {
+            return Math.max(0, Integer.parseInt(headers.getOrDefault("Receive-Buffer", "0")));
+        }
+        catch (NumberFormatException e)
+        {   // Badly written size, do as if the client did not say.
+            return 0;
+        }
+    }
+
+    /**
+     * Work out which part of the file to send from the Range header, written like in HTTP:
+     * "bytes=first-last" with the last byte included, or "bytes=first-" for the rest of the file.
+     * Returns the first byte and the length, or null when the range is outside of the file.
+     * A range starting right at the end of the file is valid and empty, which is what a client 
+     * resuming a download that was already complete asks for.
+     */
+    public long[] range(long filesize)
+    {
+        String range = headers.get("Range");
+        if (range == null) return new long[] {0, filesize};
+        try
+        {
+            if (!range.startsWith("bytes=")) return null;
+            String[] bounds = range.substring(6).split("-", -1);
+            long first = Long.parseLong(bounds[0]);
+            long last = bounds[1].isEmpty() ? filesize - 1 : Math.min(Long.parseLong(bounds[1]), filesize - 1);
+            if (first < 0 || first > filesize || last < first - 1) return null;
+            return new long[] {first, last - first + 1};
+        }
+        catch (RuntimeException e)
+        {   // Badly written range.
+            return null;
+        }
+    }
+
+    /**
+     * Send the status code and headers of the response to a newer client, right after the 
+     * file found flag. Found files come with their size and the part of the file being sent.
+     * When the connection stays open the client is told so, older servers always close it.
+     */
+    public void write_status(DataOutput out, int status, long[] range, long filesize, 
+        Map<String, String> body_headers) throws IOException
+    {
+        Map<String, String> response_headers = new LinkedHashMap<String, String>();
+        if (keep_alive()) response_headers.put("Connection", "keep-alive");
+        if (range != null)
+        {
+            response_headers.put("Content-Length", Long.toString(range[1]));
+            response_headers.put("Content-Range", "bytes " + range[0] + "-" + (range[0] + range[1] - 1) 
+                + "/" + filesize);
+        }
+        else if (status == RANGE_NOT_SATISFIABLE)
+        {
+            response_headers.put("Content-Range", "bytes */" + filesize);
+        }
+        // The file data comes in frames, these say how they are made.
+        if (body_headers != null) response_headers.putAll(body_headers);
+
+        out.writeInt(status);
+        out.writeInt(response_headers.size());
+        for (Map.Entry<String, String> header : response_headers.entrySet())
+        {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+    }
+}
+
+
+class serverBusyResponse implements Runnable
+{
+    // Starts the greeting sent to clients we cannot serve, followed by the delay in ms.
+    public static final String BUSY_MESSAGE = "Server busy, retry after ";
+
+    private Socket client_socket;   // Connection of the client turned away.
+    private long retry_after;       // Delay suggested to the client, in ms.
+
+    public serverBusyResponse(Socket client_socket, long retry_after)
+    {
+        this.client_socket = client_socket;
+        this.retry_after = retry_after;
+    }
+
+    /**
+     * Go through the usual conversation, but say the server is busy instead of greeting 
+     * the client, and answer the request with file not found. Older clients simply end 
+     * there, newer ones read the delay from the greeting and try again later.
+     */
+    public void run()
+    {
+        try
+        {   // Do not let a slow client hold up the other busy responses.
+            client_socket.setSoTimeout(2000);
+            DataInputStream d_in = new DataInputStream(client_socket.getInputStream());
+            DataOutputStream d_out = new DataOutputStream(client_socket.getOutputStream());
+
+            d_out.writeUTF(serverTime.current_time() + BUSY_MESSAGE + retry_after + " ms");
+            String filename = d_in.readUTF();   // Receive requested filename from client.
+
+            serverStatistics.bReq.increment();
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("Client " + client_socket.getInetAddress() + " turned away, server busy");
+            }
+
+            d_out.writeUTF(serverTime.current_time() + "File " + filename + " not sent, server busy");
+            d_out.writeUTF(serverTime.current_time() + "Server handled " + serverStatistics.tReq.get()
+                + " requests, " + serverStatistics.sReq.sum() + " requests were successful");
+            d_out.writeBoolean(false);  // Tell the client there is no file coming.
+            d_out.writeUTF(serverTime.current_time() + "Closing connection...");
+        }
+        catch (Exception e)
+        {   // The client is gone or too slow, there is nothing more to tell it.
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            client_socket.close();
+        }
+        catch (IOException e)
+        {   // If an error occured while trying to close the socket, write it to the log file.
+            fileLogging.log_exception(e);
+        }
+    }
+}
+
+
+class selectorServer extends Thread
+{
+    private ServerSocketChannel server_channel;     // Initialize the Server Socket channel.
+    private serverConfig config;                    // Options the server was started with.
+    private selectorLoop[] loops;                   // Event loops sharing the client connections.
+    private fileCache cache;                        // Popular files kept in memory.
+    private compressionCache compressed;            // Compressed files kept on disk.
+    private fileCatalog catalog;                    // Every file clients can download.
+    private bandwidthShaper shaper;                 // Bandwidth caps shared by every transfer.
+
+    public selectorServer(serverConfig config, fileCache cache, compressionCache compressed, 
+        fileCatalog catalog, bandwidthShaper shaper)
+    {
+        this.config = config;
+        this.cache = cache;
+        this.compressed = compressed;
+        this.catalog = catalog;
+        this.shaper = shaper;
+    }
+
+    /**
+     *  Start the selector loops, then accept incoming connections and hand them out to 
+     *  the loops in turn. Accepting is the only blocking work this thread does, 
+     *  everything else happens in the loops.
+     */
+    public void run()
+    {
+        try
+        {   // Starting the server socket on designated port.
+            server_channel = ServerSocketChannel.open();
+            server_channel.bind(new InetSocketAddress(config.port));
+            System.out.println(serverTime.current_time() + "Listening on " 
+                + "127.0.0.1" + ":" + config.port + " with " + config.event_loops + " selector loop(s)");
+
+            // Start one loop per core, each with its own selector.
+            loops = new selectorLoop[config.event_loops];
+            for (int i = 0; i < loops.length; i++)
+            {
+                loops[i] = new selectorLoop(config, cache, compressed, catalog, shaper);
+                loops[i].setName("selector-loop-" + i);
+                loops[i].start();
+            }
+
+            int next_loop = 0;
+            while (true)
+            {   // Give each new client to the next loop.
+                SocketChannel client_channel = server_channel.accept();
+                loops[next_loop].add_connection(client_channel);
+                next_loop = (next_loop + 1) % loops.length;
+            }
+        }
+        catch (Exception e)
+        {   // If an error occured, attempt to properly close the socket.
+            try
+            {
+                if (server_channel != null) server_channel.close();
+                fileLogging.log_exception(e);   // Write the error to the log file.
+            }
+            catch (Exception ee)
+            {   // If an error occured while trying to close the application, write it to the log file.
+                fileLogging.log_exception(ee);
+            }
+        }
+    }
+}
+
+
+class selectorLoop extends Thread
+{
+    private Selector selector;      // Tells us which of our connections are ready.
+    private serverConfig config;    // Options the server was started with.
+    private fileCache cache;        // Popular files kept in memory.
+    private compressionCache compressed;    // Compressed files kept on disk.
+    private fileCatalog catalog;    // Every file clients can download.
+    private bandwidthShaper shaper; // Bandwidth caps shared by every transfer.
+
+    // Connections accepted by the server, waiting to be registered with our selector.
+    private Queue<nioConnection> new_connections = new ConcurrentLinkedQueue<nioConnection>();
+    // Transfers waiting for the bandwidth caps, the first one to resume first. Only this loop uses it.
+    private PriorityQueue<nioConnection> paused = 
+        new PriorityQueue<nioConnection>(Comparator.comparingLong(connection -> connection.resume_at));
+
+    public selectorLoop(serverConfig config, fileCache cache, compressionCache compressed, 
+        fileCatalog catalog, bandwidthShaper shaper) throws IOException
+    {
+        this.config = config;
+        this.cache = cache;
+        this.compressed = compressed;
+        this.catalog = catalog;
+        this.shaper = shaper;
+        selector = Selector.open();
+    }
+
+    /**
+     * Called from the accepting thread, the selector is woken up so the 
+     * connection gets registered right away.
+     */
+    public void add_connection(SocketChannel client_channel)
+    {
+        new_connections.add(new nioConnection(client_channel, config, cache, compressed, catalog, shaper));
+        selector.wakeup();
+    }
+
+    /**
+     * Wait for connections to be ready, then let each of them do as much work 
+     * as it can without blocking.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {   // Wake up in time for the first paused transfer, if there is one.
+                if (paused.isEmpty()) selector.select();
+                else
+                {
+                    long wait = paused.peek().resume_at - System.nanoTime();
+                    if (wait > 0) selector.select((wait + 999999) / 1000000);
+                    else selector.selectNow();
+                }
+
+                // Register the connections accepted since the last time around.
+                nioConnection connection;
+                while ((connection = new_connections.poll()) != null)
+                {
+                    connection.start(selector);
+                }
+
+                // Work on the connections that are ready.
+                Iterator<SelectionKey> ready_keys = selector.selectedKeys().iterator();
+                while (ready_keys.hasNext())
+                {
+                    SelectionKey key = ready_keys.next();
+                    ready_keys.remove();
+                    if (!key.isValid()) continue;
+                    connection = (nioConnection) key.attachment();
+                    connection.handle(key);
+                    if (connection.resume_at != 0) paused.add(connection);
+                }
+
+                // Transfers done waiting for the caps go on.
+                long now = System.nanoTime();
+                while (!paused.isEmpty() && paused.peek().resume_at - now <= 0) paused.poll().resume();
+            }
+            catch (Exception e)
+            {   // If the loop fails, write it to the log file and keep serving.
+                fileLogging.log_exception(e);
+            }
+        }
+    }
+}
+
+
+class nioConnection
+{
+    // Steps of the conversation with the client, in the order they happen.
+    private static final int SEND_GREETING = 0;
+    private static final int READ_REQUEST = 1;
+    private static final int PREPARE_HEADER = 2;
+    private static final int SEND_HEADER = 3;
+    private static final int SEND_BODY = 4;
+    private static final int SEND_TRAILER = 5;
+
+    private SocketChannel client_channel;   // Non-blocking connection to the client.
+    private SelectionKey key;               // Our registration with the loop's selector.
+    private String client_ip;               // Client's ip address.
+    private int state = SEND_GREETING;      // Current step of the conversation.
+
+    private ByteBuffer out;                 // Messages waiting to be sent to the client.
+    private ByteBuffer request_in = ByteBuffer.allocate(256);   // Request from the client, as it arrives.
+
+    private fileCache cache;                // Popular files kept in memory.
+    private compressionCache compressed;    // Compressed files kept on disk.
+    private fileCatalog catalog;            // Every file clients can download.
+    private bandwidthShaper shaper;         // Bandwidth caps shared by every transfer.
+    private bandwidthShaper.transfer shaped;    // Caps of the file being sent, null when there are none.
+    public long resume_at = 0;              // When a transfer waiting for the caps goes on (System.nanoTime), 0 if not.
+    private fileRequest request;            // Request received from client.
+    private String filename;                // Variable to receive from client.
+    private boolean file_found = false;     // Determine if file request by client exists.
+    private adaptiveTransfer transfer;      // Picks the chunk size and socket options for each file.
+    private int served = 0;                 // Requests answered on this connection so far.
+    private long request_id;                // Number of the request being answered, for the console.
+    private CompletableFuture<Void> prepared;   // Header being prepared on the disk work threads.
+
+    private long accepted_at = System.nanoTime();   // When the client was accepted.
+    private long received_at;                       // When the current request was received.
+
+    private FileChannel file_channel;       // Read from a file, when sending with zero-copy.
+    private readAhead ahead;                // Reads the file ahead of the copy loop, when not.
+    private long end;                       // Position right after the last byte to send.
+    private long start;                     // Position of the first byte of the file to send.
+    private long position = 0;              // Position of the next byte of the file to send.
+    private ByteBuffer chunk;               // File data chunk read ahead, when not sending with zero-copy.
+    private ByteBuffer cached_body;         // Part of a cached file left to send.
+    private final ByteBuffer[] header_and_body = new ByteBuffer[2];     // Reused for the gathering write of both.
+    private framedBody framed_body;         // File data sent compressed or with checksums, in frames.
+    private ByteBuffer frame;               // Frame being sent.
+    private CompletableFuture<ByteBuffer> next_frame;   // Frame being made on the disk work threads.
+    private int integrity_chunk;            // Bytes covered by each checksum, for clients that ask for them.
+
+    private boolean zero_copy;              // Send the file with FileChannel.transferTo.
+    private long zero_copy_threshold;       // Files smaller than this are sent in chunks.
+
+    public nioConnection(SocketChannel client_channel, serverConfig config, fileCache cache, 
+        compressionCache compressed, fileCatalog catalog, bandwidthShaper shaper)
+    {
+        this.client_channel = client_channel;
+        this.cache = cache;
+        this.compressed = compressed;
+        this.catalog = catalog;
+        this.shaper = shaper;
+        zero_copy = config.zero_copy;
+        zero_copy_threshold = config.zero_copy_threshold;
+        integrity_chunk = config.integrity_chunk;
+        transfer = new adaptiveTransfer(config);
+    }
+
+    /**
+     * Register with the selector and queue the greeting, 
+     * which is sent as soon as the socket is writable.
+     */
+    public void start(Selector selector) throws IOException
+    {
+        serverStatistics.queue_time.record(System.nanoTime() - accepted_at);
+        client_ip = client_channel.socket().getInetAddress().toString();
+        client_channel.configureBlocking(false);
+        client_channel.socket().setTcpNoDelay(true);
+        key = client_channel.register(selector, SelectionKey.OP_WRITE, this);
+
+        // Notify the server when the client connects.
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("Client " + client_ip + " connected to server");
+        }
+        // Send message to client saying he is connected to server.
+        DataOutputStream message = new_message();
+        message.writeUTF(serverTime.current_time() + fileRequest.GREETING);
+        send(message);
+    }
+
+    /**
+     * Move the conversation forward as far as the socket allows. When a step 
+     * cannot finish without blocking, we return and wait for the selector.
+     */
+    public void handle(SelectionKey key)
+    {
+        try
+        {
+            while (true)
+            {
+                switch (state)
+                {
+                    case SEND_GREETING:
+                        if (!write_out()) return;
+                        transfer.greeting_sent();
+                        state = READ_REQUEST;
+                        key.interestOps(SelectionKey.OP_READ);
+                        break;
+
+                    case READ_REQUEST:
+                        if (!read_request()) return;
+                        if (reads_files())
+                        {   // Answered once the disk work threads are done with the files.
+                            prepared = off_loop(() -> 
+                            {
+                                prepare_header();
+                                return null;
+                            });
+                            state = PREPARE_HEADER;
+                            return;
+                        }
+                        prepare_header();
+                        state = SEND_HEADER;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        break;
+
+                    case PREPARE_HEADER:
+                        outcome(prepared);
+                        prepared = null;
+                        state = SEND_HEADER;
+                        break;
+
+                    case SEND_HEADER:
+                        if (!write_out()) return;
+                        if (file_found)
+                        {
+                            if (!request.catalog()) serverStatistics.first_byte_time.record(System.nanoTime() - received_at);
+                            state = SEND_BODY;
+                        }
+                        else if (request.keep_alive())
+                        {   // If the file is not found, move on to the client's next request.
+                            next_request();
+                        }
+                        else
+                        {   // If the file is not found, we can skip to closing the connection.
+                            DataOutputStream message = new_message();
+                            message.writeUTF(serverTime.current_time() + "Closing connection...");
+                            send(message);
+                            state = SEND_TRAILER;
+                        }
+                        break;
+
+                    case SEND_BODY:
+                        if (!write_body()) return;
+                        transfer.finish(client_channel.socket());
+                        long elapsed = System.nanoTime() - received_at;
+                        long sent = end - start;    // Bytes sent for the file data, frames included.
+                        String sent_as = null;      // How the frames were made, if the file was sent in frames.
+                        String body = null;         // What was sent in frames.
+                        if (shaped != null) shaped.finish();
+                        shaped = null;
+                        if (framed_body != null)
+                        {
+                            sent = framed_body.sent();
+                            sent_as = framed_body.name();
+                            body = framed_body.toString();
+                            framed_body.close();
+                            framed_body = null;
+                        }
+                        DataOutputStream message = new_message();
+                        if (request.catalog())
+                        {
+                            if ("archive".equals(sent_as)) serverStatistics.transfer_complete(sent, elapsed);
+                            message.writeUTF(serverTime.current_time() + request.catalog_complete());
+                            if (fileLogging.enabled(fileLogging.INFO))
+                            {
+                                fileLogging.info("REQ " + request_id + ": Sent " + body + ", " + sent
+                                    + " bytes in " + elapsed / 1000000 + " ms");
+                            }
+                        }
+                        else
+                        {
+                            serverStatistics.transfer_complete(sent, elapsed);
+                            message.writeUTF(serverTime.current_time() + "Download complete");
+                            if (fileLogging.enabled(fileLogging.INFO))
+                            {
+                                fileLogging.info("REQ " + request_id + ": File transfer complete, " + (end - start)
+                                    + " bytes" + (sent_as != null ? " (" + sent + " sent with " + sent_as + ")" : "") 
+                                    + " in " + elapsed / 1000000 + " ms");
+                            }
+                        }
+                        if (!request.keep_alive())
+                            message.writeUTF(serverTime.current_time() + "Closing connection...");
+                        send(message);
+                        state = SEND_TRAILER;
+                        break;
+
+                    case SEND_TRAILER:
+                        if (!write_out()) return;
+                        if (request.keep_alive())
+                        {   // The client has more requests for us on this connection.
+                            next_request();
+                            break;
+                        }
+                        close();
+                        return;
+                }
+            }
+        }
+        catch (Exception e)
+        {   // If the conversation fails, write it to the log file and drop the client.
+            serverStatistics.errors.increment();
+            fileLogging.log_exception(e);
+            close();
+        }
+    }
+
+    /**
+     * Read the request, a filename sent with writeUTF() or the extended request of newer clients.
+     * The bytes are gathered until fileRequest.read() finds a whole request in them.
+     * Returns false while the request has not fully arrived.
+     */
+    private boolean read_request() throws IOException
+    {
+        // A client keeping the connection open may have sent this request along with the last one.
+        if (parse_request()) return true;
+        if (client_channel.read(request_in) < 0)
+        {
+            if (served == 0) throw new EOFException("Client closed the connection");
+            close();    // The client is done with its kept open connection.
+            return false;
+        }
+        if (parse_request()) return true;
+
+        if (!request_in.hasRemaining())
+        {   // Not all there yet, make room for the rest.
+            if (request_in.capacity() >= 1 << 20) throw new IOException("Request too large");
+            ByteBuffer larger = ByteBuffer.allocate(request_in.capacity() * 2);
+            larger.put(request_in.flip());
+            request_in = larger;
+        }
+        return false;
+    }
+
+    /**
+     * Take one whole request from the bytes received so far, if there is one. 
+     * Bytes after it are kept, they are the start of the client's next request.
+     */
+    private boolean parse_request() throws IOException
+    {
+        ByteArrayInputStream received = new ByteArrayInputStream(request_in.array(), 0, request_in.position());
+        try
+        {
+            request = fileRequest.read(new DataInputStream(received));
+        }
+        catch (EOFException e)
+        {   // Not all there yet.
+            return false;
+        }
+        request_in.flip().position(request_in.limit() - received.available());
+        request_in.compact();
+        received_at = System.nanoTime();
+        transfer.request_received();
+        filename = request.filename;
+        return true;
+    }
+
+    /**
+     * Get ready for the next request of a client keeping its connection open.
+     */
+    private void next_request() throws IOException
+    {
+        if (file_channel != null) file_channel.close();
+        if (ahead != null) ahead.close();
+        if (framed_body != null) framed_body.close();
+        if (shaped != null) shaped.finish();
+        file_channel = null;
+        ahead = null;
+        chunk = null;
+        shaped = null;
+        cached_body = null;
+        framed_body = null;
+        frame = null;
+        next_frame = null;
+        file_found = false;
+        served++;
+        state = READ_REQUEST;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Look up the requested file and queue the same messages ClientWorkerThread 
+     * sends before the file data.
+     */
+    private void prepare_header() throws IOException
+    {
+        DataOutputStream message = new_message();
+
+        // Updating server statistics for file request.
+        request_id = serverStatistics.tReq.incrementAndGet();
+        if (request.catalog())
+        {   // Answered from the catalog, a listing is sent like a file in frames.
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ " + request_id + ": " + request.command + " \"" + filename
+                    + "\" requested from " + client_ip);
+            }
+            framed_body = catalog.answer(request, message, request_id);
+            file_found = (framed_body != null);
+            start = end = position = 0;
+            if (framed_body instanceof archiveBody)
+            {   // As much data as a big file, sent like one and within the same caps.
+                long length = ((archiveBody) framed_body).length();
+                transfer.start(client_channel.socket(), length, request.receive_buffer());
+                shaped = shaper.start(client_ip, length);
+            }
+            send(message);
+            return;
+        }
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id
+                + ": File " + filename + " requested from " + client_ip);
+        }
+
+        int status;                 // Status code for clients with an extended request.
+        long[] range = null;        // Part of the file to send, first byte and length.
+        long filesize = -1;         // Size of the file, -1 while not found.
+        File server_file = null;    // File on disk, when it is not in memory.
+        fileCache.entry cached = null;  // The file's data, if it is in memory.
+        if (request.sends_file())
+        {   // Look in memory first, then in the catalog.
+            cached = cache.get(filename);
+            if (cached == null)
+            {
+                fileCatalog.entry listed = catalog.get(filename);
+                if (listed != null)
+                {
+                    server_file = listed.file;
+                    filesize = listed.size;
+                    cached = cache.load(filename, server_file);
+                }
+            }
+            if (cached != null) filesize = cached.size;
+        }
+
+        if (!request.sends_file())
+        {   // Update the client, we do not know what it is asking for.
+            message.writeUTF(serverTime.current_time() + "Command " + request.command 
+                + " not supported by server");
+            status = fileRequest.BAD_REQUEST;
+        }
+        else if (filesize >= 0 && (range = request.range(filesize)) != null)
+        {   // Update the client, file found.
+            message.writeUTF(serverTime.current_time() +"File " + filename + " found at server");
+            status = request.headers.containsKey("Range") ? fileRequest.PARTIAL : fileRequest.OK;
+            // Updating server statistics for file lookup request.
+            serverStatistics.sReq.increment();
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ " + request_id
+                    + ": Successful");
+            }
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("REQ " + request_id
+                    + ": Total Successful requests so far = " + serverStatistics.sReq.sum());
+            }
+        }
+        else if (filesize >= 0)
+        {   // Update the client, the file is there but smaller than the range asked for.
+            message.writeUTF(serverTime.current_time() + "Requested range of file " + filename 
+                + " not satisfiable");
+            status = fileRequest.RANGE_NOT_SATISFIABLE;
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ "
+                    + request_id + ": Not Successful, range not satisfiable");
+            }
+        }
+        else
+        {   // Update the client, file not found.
+            message.writeUTF(serverTime.current_time() + "File " + filename 
+                + " not found at server");
+            status = fileRequest.NOT_FOUND;
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("REQ "
+                    + request_id + ": Not Successful");
+            }
+        }
+        file_found = (range != null);
+
+        // Clients with a copy of the file get what changed. Clients that accept compressed data 
+        // get it, when the file is worth compressing. Otherwise clients asking for checksums 
+        // get the file in checked frames.
+        if (file_found && request.signatures != null)
+        {
+            framed_body = new deltaBody(cached, server_file, filesize, request.signatures);
+        }
+        else if (file_found && request.extended())
+        {
+            framed_body = compressed.open(filename, server_file != null ? server_file : cached.file, range, 
+                contentCodecs.negotiate(request.headers.get("Accept-Encoding")));
+            if (framed_body == null && request.integrity())
+                framed_body = new checkedBody(cached, server_file, range[0], range[1], integrity_chunk);
+        }
+
+        // Send out the request statistics to the client
+        message.writeUTF(serverTime.current_time() + "Server handled " + serverStatistics.tReq.get()
+            + " requests, " + serverStatistics.sReq.sum() + " requests were successful");
+        message.writeBoolean(file_found);   // Tell the client if file exists.
+        if (request.extended())
+        {   // Newer clients also get a status code, and which part of the file is coming.
+            request.write_status(message, status, range, filesize, 
+                framed_body != null ? framed_body.headers() : null);
+        }
+
+        if (file_found)
+        {   // Telling the client we are starting the process of downloading the file.
+            message.writeUTF(serverTime.current_time() + "Downloading file " + filename);
+            if (framed_body != null)
+            {   // Send the file compressed or checked, in frames.
+                if (fileLogging.enabled(fileLogging.DEBUG))
+                {
+                    fileLogging.debug("REQ " + request_id + ": Sending with " + framed_body);
+                }
+            }
+            else if (cached != null)
+            {   // Send from memory, through our own view of the cached data.
+                if (fileLogging.enabled(fileLogging.DEBUG))
+                {
+                    fileLogging.debug("REQ " + request_id + ": Sending from memory");
+                }
+                cached_body = cached.data.duplicate();
+                cached_body.limit((int) (range[0] + range[1])).position((int) range[0]);
+            }
+            else if (zero_copy && range[1] >= zero_copy_threshold)
+            {
+                if (fileLogging.enabled(fileLogging.DEBUG))
+                {
+                    fileLogging.debug("REQ " + request_id + ": Sending from the disk with zero-copy");
+                }
+                file_channel = new FileInputStream(server_file).getChannel();
+            }
+            else
+            {
+                if (fileLogging.enabled(fileLogging.DEBUG))
+                {
+                    fileLogging.debug("REQ " + request_id + ": Sending from the disk");
+                }
+                ahead = new readAhead(server_file, range[0], range[1]);
+            }
+            start = position = range[0];
+            end = range[0] + range[1];
+            message.writeLong(range[1]);    // Send filesize to client, or the size of the part asked for.
+            // Send buffer size to client, the size of our first chunk.
+            message.writeInt(transfer.start(client_channel.socket(), range[1], request.receive_buffer()));
+            shaped = shaper.start(client_ip, range[1]);
+        }
+        send(message);
+    }
+
+    /**
+     * Send as much of the file as the socket takes. Returns false when 
+     * the socket is full and we need to wait until it is writable again.
+     */
+    private boolean write_body() throws IOException
+    {
+        if (framed_body != null)
+        {   // Compressed or checked frames, the next one is made once the last one is out.
+            while (true)
+            {
+                if (frame == null || !frame.hasRemaining())
+                {
+                    int size = (int) Math.min(transfer.chunk(), limit());
+                    if (next_frame == null && framed_body.blocks())
+                    {   // Made on the disk work threads, we are back once it is done.
+                        next_frame = off_loop(() -> framed_body.next(size));
+                        return false;
+                    }
+                    frame = (next_frame != null) ? outcome(next_frame) : framed_body.next(size);
+                    next_frame = null;
+                    if (frame == null) return true;
+                    transfer.sent(frame.remaining());
+                }
+                if (pause(client_channel.write(frame))) return false;
+                if (frame.hasRemaining()) return false;
+            }
+        }
+
+        if (cached_body != null)
+        {   // The file is in memory, write it straight to the socket.
+            while (cached_body.hasRemaining())
+            {
+                int limit = cached_body.limit();
+                cached_body.limit(cached_body.position() + (int) Math.min(cached_body.remaining(), limit()));
+                int sent = client_channel.write(cached_body);
+                cached_body.limit(limit);
+                if (pause(sent) || sent == 0) return false;
+            }
+            return true;
+        }
+
+        if (file_channel != null)
+        {   // Let the kernel copy the file to the socket.
+            while (position < end)
+            {
+                long sent = file_channel.transferTo(position, Math.min(end - position, limit()), client_channel);
+                if (sent == 0)
+                {   // Either the socket is full, or the file shrunk while sending.
+                    if (position >= file_channel.size()) throw new EOFException("File shrunk while sending");
+                    return false;
+                }
+                position += sent;
+                if (pause(sent)) return false;
+            }
+            return true;
+        }
+
+        while (true)
+        {
+            if (chunk == null || !chunk.hasRemaining())
+            {   // Last chunk is out, take the next one the disk read ahead.
+                if (position >= end) return true;
+                if (!ahead.ready())
+                {   // Carry on once it is read, instead of waiting for the disk on the loop.
+                    key.interestOps(0);
+                    ahead.when_ready(this::rearm);
+                    return false;
+                }
+                chunk = ahead.next((int) Math.min(Math.min(transfer.chunk(), limit()), end - position));
+                if (chunk == null) throw new EOFException("File shrunk while sending");
+                position += chunk.remaining();
+                transfer.sent(chunk.remaining());
+            }
+            if (pause(client_channel.write(chunk))) return false;
+            if (chunk.hasRemaining()) return false;
+        }
+    }
+
+    // Largest chunk to send at once within the bandwidth caps.
+    private long limit()
+    {
+        return (shaped == null) ? Long.MAX_VALUE : shaped.chunk_limit();
+    }
+
+    /**
+     * Count bytes just sent against the bandwidth caps. When we are ahead of them, stop 
+     * watching the socket until resume_at, the selector loop wakes us up then. 
+     * Returns whether the transfer is paused.
+     */
+    private boolean pause(long sent)
+    {
+        if (shaped == null) return false;
+        long wait = shaped.sent(sent);
+        if (wait < bandwidthShaper.MIN_WAIT) return false;
+        resume_at = System.nanoTime() + wait;
+        key.interestOps(0);
+        return true;
+    }
+
+    /**
+     * Whether answering the request may read files: loading one into memory, sampling or 
+     * compressing it, hashing it, or scanning directories. One cold file would hold up every 
+     * connection of the loop, so that is done on the disk work threads. Files already in 
+     * memory, and what the catalog keeps in memory, are answered right here.
+     */
+    private boolean reads_files()
+    {
+        if (request.catalog())
+        {
+            if (request.command.equals(fileRequest.ARCHIVE) || !catalog.watched()) return true;
+            if (!request.command.equals(fileRequest.STAT) || !"md5".equalsIgnoreCase(request.headers.get("Hash")))
+                return false;
+            fileCatalog.entry file = catalog.get(filename);
+            return file != null && file.md5 == null;
+        }
+        if (!request.sends_file()) return false;
+        fileCache.entry cached = cache.peek(filename);
+        if (cached == null || request.signatures != null) return true;
+        return request.extended() 
+            && compressed.applies(cached.size, contentCodecs.negotiate(request.headers.get("Accept-Encoding")));
+    }
+
+    /**
+     * Do work that may block on the disk on readAhead's disk work threads. The socket is not 
+     * watched meanwhile, and is watched for writing again once the work is done, so the 
+     * next handle() always finds it finished.
+     */
+    private <T> CompletableFuture<T> off_loop(Callable<T> work)
+    {
+        CompletableFuture<T> done = new CompletableFuture<T>();
+        key.interestOps(0);
+        readAhead.submit(() ->
+        {
+            try
+            {
+                done.complete(work.call());
+            }
+            catch (Throwable e)
+            {
+                done.completeExceptionally(e);
+            }
+            rearm();
+        });
+        return done;
+    }
+
+    /**
+     * What work done off the loop gave, or the exception it threw.
+     */
+    private static <T> T outcome(CompletableFuture<T> done) throws IOException
+    {
+        try
+        {
+            return done.join();
+        }
+        catch (CompletionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Watch the socket for writing again, from any thread.
+     */
+    private void rearm()
+    {
+        try
+        {
+            key.interestOps(SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+        catch (CancelledKeyException e)
+        {   // The connection was closed meanwhile.
+        }
+    }
+
+    /**
+     * The wait for the bandwidth caps is over, carry on sending once the socket is writable.
+     */
+    public void resume()
+    {
+        resume_at = 0;
+        if (key.isValid()) key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Write the queued messages. Returns false when the socket is full.
+     */
+    private boolean write_out() throws IOException
+    {
+        if (state == SEND_HEADER && cached_body != null)
+        {   // The messages and a file in memory go out in the same write, small files all at once.
+            int limit = cached_body.limit();
+            int position = cached_body.position();
+            cached_body.limit(position + (int) Math.min(cached_body.remaining(), limit()));
+            header_and_body[0] = out;
+            header_and_body[1] = cached_body;
+            client_channel.write(header_and_body);
+            header_and_body[1] = null;      // An evicted file is not kept alive by an idle connection.
+            cached_body.limit(limit);
+            if (pause(cached_body.position() - position)) return false;
+            return !out.hasRemaining();
+        }
+        client_channel.write(out);
+        return !out.hasRemaining();
+    }
+
+    // Messages are written into a byte array, then queued with send().
+    private ByteArrayOutputStream message_bytes;
+    private DataOutputStream new_message()
+    {
+        message_bytes = new ByteArrayOutputStream();
+        return new DataOutputStream(message_bytes);
+    }
+    private void send(DataOutputStream message) throws IOException
+    {
+        message.flush();
+        out = ByteBuffer.wrap(message_bytes.toByteArray());
+    }
+
+    /**
+     * Close the file and the connection, and stop watching the socket.
+     */
+    private void close()
+    {
+        try
+        {
+            if (key != null) key.cancel();
+            if (file_channel != null) file_channel.close();
+            if (ahead != null) ahead.close();
+            if (framed_body != null) framed_body.close();
+            if (shaped != null) shaped.finish();
+            client_channel.close();
+            // Notify the server when the client disconnects.
+            if (fileLogging.enabled(fileLogging.INFO))
+            {
+                fileLogging.info("Client " + client_ip + " disconnected");
+            }
+        }
+        catch (Exception e)
+        {   // If an error occured while trying to close the connection, write it to the log file.
+            fileLogging.log_exception(e);
+        }
+    }
+}
+
+
+class adaptiveTransfer
+{
+    public static final int MIN_CHUNK = 4096;       // Smallest chunk, the size every transfer used to have.
+    private static final int MIN_SEND_BUFFER = 65536;   // Never ask for a send buffer smaller than this.
+
+    private long small_file;            // Files up to this size are sent for latency, bigger ones for throughput.
+    private int max_chunk;              // Largest chunk read from the file and sent at once.
+    private int max_send_buffer;        // Largest socket send buffer asked for.
+
+    private long greeting_sent;         // When the greeting went out, in System.nanoTime().
+    private long rtt = 0;               // Round trip to the client measured over the handshake, in ns, 0 while unknown.
+    private double rate = 0;            // Send rate of the last full window on this connection, in bytes per ns.
+
+    private int chunk;                  // Size of the next chunk.
+    private int largest;                // Largest chunk of this transfer, what the buffers are sized for.
+    private int direction;              // Whether the last change made the chunks bigger (1) or smaller (-1).
+    private long window_start;          // When the current measuring window started.
+    private long window_bytes;          // Bytes sent during the current window.
+    private double window_rate;         // Send rate of the window before, at the chunk size before.
+    private boolean small;              // The file being sent is small.
+
+    public adaptiveTransfer(serverConfig config)
+    {
+        small_file = config.small_file;
+        max_chunk = config.max_chunk;
+        max_send_buffer = config.max_send_buffer;
+    }
+
+    /**
+     * The greeting is on its way. When the request comes back, the time in between 
+     * is about one round trip to the client.
+     */
+    public void greeting_sent()
+    {
+        greeting_sent = System.nanoTime();
+    }
+
+    public void request_received()
+    {
+        if (rtt == 0 && greeting_sent != 0) rtt = Math.max(1, System.nanoTime() - greeting_sent);
+    }
+
+    /**
+     * Get the socket ready for a transfer of length bytes, to a client that told us the size of 
+     * its receive buffer (0 if it did not). Small files go out right away without waiting for 
+     * more data (TCP_NODELAY). Big files are left for the kernel to pack into full segments, and 
+     * get a send buffer big enough to keep the data flowing for a round trip at the rate seen 
+     * so far, or as big as the file before anything was measured.
+     * 
+     * Returns the size of the first chunk, as large as the file, the client's receive buffer 
+     * and --max-chunk allow. Chunks only get smaller from there, when it makes the transfer faster.
+     */
+    public int start(Socket socket, long length, int receive_buffer) throws IOException
+    {
+        small = length <= small_file;
+        socket.setTcpNoDelay(small);
+        if (!small)
+        {
+            long send_buffer = (rate > 0 && rtt > 0) ? (long) (2 * rate * rtt) : length;
+            send_buffer = Math.max(MIN_SEND_BUFFER, Math.min(send_buffer, max_send_buffer));
+            // Only ever grow the buffer, the system may well have picked a bigger one already.
+            if (send_buffer > socket.getSendBufferSize()) socket.setSendBufferSize((int) send_buffer);
+        }
+
+        long first = Math.min(max_chunk, length);
+        if (receive_buffer > 0) first = Math.min(first, receive_buffer);
+        // Whole pages, the disk and the socket both like those.
+        chunk = largest = (int) Math.max(MIN_CHUNK, (first + MIN_CHUNK - 1) / MIN_CHUNK * MIN_CHUNK);
+        direction = -1;
+        window_start = System.nanoTime();
+        window_bytes = 0;
+        window_rate = 0;
+        return chunk;
+    }
+
+    /**
+     * Size of the next chunk to send.
+     */
+    public int chunk()
+    {
+        return chunk;
+    }
+
+    /**
+     * A chunk was sent. Every window of a few round trips (20 ms at least), compare the send rate 
+     * with the window before: if it got better keep changing the chunk size the same way, if it 
+     * got worse go back the other way. The chunk size ends up going back and forth around the 
+     * best one, and follows it when the network or the disk changes speed.
+     */
+    public void sent(int bytes)
+    {
+        window_bytes += bytes;
+        long now = System.nanoTime();
+        long elapsed = now - window_start;
+        if (elapsed < Math.max(4 * rtt, 20000000L)) return;
+
+        double current = (double) window_bytes / elapsed;
+        rate = current;
+        if (current < window_rate * 0.95) direction = -direction;  // Worse, and not just noise.
+        window_rate = current;
+        chunk = (direction > 0) ? Math.min(chunk * 2, largest) : Math.max(chunk / 2, MIN_CHUNK);
+        window_start = now;
+        window_bytes = 0;
+    }
+
+    /**
+     * The file data is all written. Turning TCP_NODELAY back on sends out whatever the kernel 
+     * was holding back, so the end of a big file and the message after it do not wait.
+     */
+    public void finish(Socket socket) throws IOException
+    {
+        if (!small) socket.setTcpNoDelay(true);
+    }
+}
+
+
+class bandwidthShaper
+{
+    // Every bucket lets this much time worth of data go at once before making anyone wait.
+    private static final long BURST = 50000000L;
+    // Waits shorter than this are not worth stopping for, the burst allowance covers them.
+    public static final long MIN_WAIT = 1000000L;
+
+    private long egress_rate;           // Bytes per second sent to all clients together, 0 for no cap.
+    private long client_rate;           // Bytes per second sent to each client IP, 0 for no cap.
+    private long connection_rate;       // Bytes per second of each transfer, 0 for no cap.
+    private long small_file;            // Files up to this size never wait, they are only counted.
+    private long priority_size;         // Files up to this size get priority_weight shares of the egress cap.
+    private int priority_weight;
+
+    private tokenBucket egress;         // Everything sent, when there is a cap.
+    // Buckets of the client IPs with a transfer going, dropped when their last transfer ends.
+    private ConcurrentHashMap<String, tokenBucket> clients = new ConcurrentHashMap<String, tokenBucket>();
+    private AtomicLong active_weight = new AtomicLong();    // Shares of the transfers going on.
+
+    public bandwidthShaper(serverConfig config)
+    {
+        egress_rate = config.max_egress;
+        client_rate = config.client_rate;
+        connection_rate = config.connection_rate;
+        small_file = config.small_file;
+        priority_size = config.priority_size;
+        priority_weight = config.priority_weight;
+        if (egress_rate > 0) egress = new tokenBucket(egress_rate, BURST);
+    }
+
+    /**
+     * A transfer of length bytes to client_ip is starting. Returns what it goes through before 
+     * each chunk, or null when no cap is set and the transfer can go as fast as it likes.
+     */
+    public transfer start(String client_ip, long length)
+    {
+        if (egress_rate <= 0 && client_rate <= 0 && connection_rate <= 0) return null;
+        return new transfer(client_ip, length);
+    }
+
+    /**
+     * The caps a transfer goes through. With an egress cap each transfer gets its weighted share of it, 
+     * recomputed as transfers come and go: the transfers of small files have priority_weight shares, 
+     * the others one. The transfer's own bucket does not need to be shared with anyone, the client 
+     * and egress buckets are shared without locks.
+     */
+    class transfer
+    {
+        private String client_ip;
+        private tokenBucket client;         // Shared by the transfers of the same client IP.
+        private tokenBucket own;            // This transfer's share, or its --connection-rate.
+        private boolean small;              // Counted, but never made to wait.
+        private int weight;                 // Shares of the egress cap.
+        private boolean finished = false;
+
+        transfer(String client_ip, long length)
+        {
+            this.client_ip = client_ip;
+            small = length <= small_file;
+            weight = small ? 0 : (length <= priority_size ? priority_weight : 1);
+            active_weight.addAndGet(weight);
+            if (client_rate > 0)
+            {
+                client = clients.compute(client_ip, (ip, bucket) -> {
+                    if (bucket == null) bucket = new tokenBucket(client_rate, BURST);
+                    bucket.users++;
+                    return bucket;
+                });
+            }
+            if (egress_rate > 0 || connection_rate > 0) own = new tokenBucket(rate(), BURST);
+        }
+
+        /**
+         * Largest chunk worth sending at once, about a burst's worth at the slowest cap.
+         */
+        public int chunk_limit()
+        {
+            long slowest = rate();
+            if (client_rate > 0) slowest = Math.min(slowest, client_rate);
+            if (slowest >= Long.MAX_VALUE / BURST) return 1 << 20;     // Uncapped, small files with only an egress cap.
+            return (int) Math.max(adaptiveTransfer.MIN_CHUNK, Math.min(slowest * BURST / 1000000000L, 1 << 20));
+        }
+
+        /**
+         * Count bytes just sent, and return how long to wait before sending more, in ns. 
+         * Small files never wait, what they took is made up by the other transfers.
+         */
+        public long sent(long bytes)
+        {
+            long wait = 0;
+            if (egress != null) wait = egress.take(bytes);
+            if (client != null) wait = Math.max(wait, client.take(bytes));
+            if (own != null)
+            {
+                own.rate = rate();
+                wait = Math.max(wait, own.take(bytes));
+            }
+            if (small) return 0;
+            if (wait >= MIN_WAIT)
+            {
+                serverStatistics.shaped_waits.increment();
+                serverStatistics.shaped_time.add(wait);
+            }
+            return wait;
+        }
+
+        public void finish()
+        {
+            if (finished) return;
+            finished = true;
+            active_weight.addAndGet(-weight);
+            if (client != null) clients.computeIfPresent(client_ip, (ip, bucket) -> --bucket.users == 0 ? null : bucket);
+        }
+
+        // Bytes per second this transfer may send on its own.
+        private long rate()
+        {
+            long rate = Long.MAX_VALUE;
+            if (egress_rate > 0 && weight > 0) 
+                rate = Math.max(1, egress_rate * weight / Math.max(weight, active_weight.get()));
+            if (connection_rate > 0) rate = Math.min(rate, connection_rate);
+            return rate;
+        }
+    }
+}
+
+
+class tokenBucket
+{
+    // The bucket is kept as the time when everything taken so far is paid for (GCRA), one 
+    // compareAndSet takes from it. Being behind that time by up to burst ns means the bucket 
+    // has tokens left.
+    private final AtomicLong paid_until;
+    private final long burst;           // Time worth of data that can go at once, in ns.
+    volatile long rate;                 // Bytes per second.
+    int users = 0;                      // Transfers sharing the bucket, changed under the map's lock.
+
+    tokenBucket(long rate, long burst)
+    {
+        this.rate = rate;
+        this.burst = burst;
+        paid_until = new AtomicLong(System.nanoTime() - burst);
+    }
+
+    /**
+     * Take bytes out of the bucket, going into debt if there are not enough. Returns how long 
+     * to wait, in ns, until the debt is paid back and sending may go on.
+     */
+    long take(long bytes)
+    {
+        long cost = (long) (bytes * 1e9 / rate);
+        while (true)
+        {
+            long now = System.nanoTime();
+            long paid = paid_until.get();
+            long updated = Math.max(paid, now - burst) + cost;
+            if (paid_until.compareAndSet(paid, updated)) return Math.max(0, updated - now);
+        }
+    }
+}
+
+
+class fileCache
+{
+    /**
+     * A file held in memory. The data buffer is shared by every client sending 
+     * the file, each one sends from its own duplicate() of it.
+     */
+    static class entry
+    {
+        final String name;              // Name the file was requested with.
+        final File file;                // File on disk the data was read from.
+        final ByteBuffer data;          // File content, outside of the Java heap.
+        final long size;                // Size of the file in bytes.
+        final long modified;            // Last modification time when the file was read.
+        volatile long last_access;      // When the file was last sent, for eviction.
+
+        entry(String name, File file, ByteBuffer data, long modified)
+        {
+            this.name = name;
+            this.file = file;
+            this.data = data;
+            this.size = data.capacity();
+            this.modified = modified;
+            last_access = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentHashMap<String, entry> entries = new ConcurrentHashMap<String, entry>();
+    private final AtomicLong used_bytes = new AtomicLong();     // Bytes held by all the entries.
+    private final AtomicLong generation = new AtomicLong();     // Goes up every time files change.
+
+    private long max_bytes;             // Total memory the cache may use.
+    private long max_entry;             // Files bigger than this are never cached.
+
+    final LongAdder hits = new LongAdder();         // Files sent from memory.
+    final LongAdder misses = new LongAdder();       // Files read from the disk.
+    final LongAdder evictions = new LongAdder();    // Files dropped to make room.
+
+    /**
+     * Without options (null) the cache is disabled and never holds anything.
+     */
+    public fileCache(serverConfig config)
+    {
+        max_bytes = (config == null) ? 0 : config.cache_size;
+        max_entry = (config == null) ? 0 : Math.min(config.cache_max_entry, Integer.MAX_VALUE);
+    }
+
+    public boolean enabled()
+    {
+        return max_bytes > 0 && max_entry > 0;
+    }
+
+    /**
+     * The file's data if it is in memory, or null if it has to be read from the disk.
+     * Hits only touch the entry's timestamp, so clients never wait on each other here.
+     */
+    public entry get(String filename)
+    {
+        if (!enabled()) return null;
+        String key = key(filename);
+        entry cached = (key == null) ? null : entries.get(key);
+        if (cached == null)
+        {
+            misses.increment();
+            return null;
+        }
+        cached.last_access = System.nanoTime();
+        hits.increment();
+        return cached;
+    }
+
+    /**
+     * The file if it is in memory, without counting a hit or a miss.
+     */
+    public entry peek(String filename)
+    {
+        String key = enabled() ? key(filename) : null;
+        return (key == null) ? null : entries.get(key);
+    }
+
+    /**
+     * Read a file into memory, if it is small enough to be worth keeping. 
+     * Returns null when the file is not cached, it is then sent from the disk.
+     */
+    public entry load(String filename, File file)
+    {
+        String key = key(filename);
+        long size = file.length();
+        if (!enabled() || key == null || size > max_entry || size > max_bytes) return null;
+
+        long seen = generation.get();   // Files changing while we read are not kept.
+        long modified = file.lastModified();
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel file_channel = new FileInputStream(file).getChannel())
+        {
+            while (data.hasRemaining())
+            {
+                if (file_channel.read(data) < 0) return null;   // File shrunk while reading.
+            }
+        }
+        catch (IOException e)
+        {   // If the file cannot be read now, it will be sent from the disk.
+            return null;
+        }
+        if (file.length() != size || file.lastModified() != modified) return null;
+        data.flip();
+
+        entry loaded = new entry(key, file, data.asReadOnlyBuffer(), modified);
+        entry previous = entries.putIfAbsent(key, loaded);
+        if (previous != null) return previous;      // Another client loaded it first.
+        used_bytes.addAndGet(size);
+        if (generation.get() != seen)
+        {   // A file changed while we were reading, it might have been this one.
+            remove(key, loaded);
+            return null;
+        }
+        if (used_bytes.get() > max_bytes) evict();
+        return loaded;
+    }
+
+    /**
+     * Drop a file that changed on disk, along with everything under it if it is a directory. 
+     * A null name means we lost track of the changes, and everything is dropped.
+     */
+    public void invalidate(String filename)
+    {
+        generation.incrementAndGet();
+        String key = (filename == null) ? null : key(filename);
+        for (entry cached : entries.values())
+        {
+            if (key == null || cached.name.equals(key) || cached.name.startsWith(key + File.separator))
+                remove(cached.name, cached);
+        }
+    }
+
+    public int count()
+    {
+        return entries.size();
+    }
+
+    public long used_bytes()
+    {
+        return used_bytes.get();
+    }
+
+    /**
+     * Drop the least recently sent files until the cache fits in its budget again.
+     * Only one thread evicts at a time, the others keep serving hits meanwhile.
+     */
+    private synchronized void evict()
+    {
+        if (used_bytes.get() <= max_bytes) return;
+        List<entry> oldest_first = new ArrayList<entry>(entries.values());
+        oldest_first.sort((a, b) -> Long.compare(a.last_access, b.last_access));
+        for (entry cached : oldest_first)
+        {
+            if (used_bytes.get() <= max_bytes) break;
+            if (remove(cached.name, cached)) evictions.increment();
+        }
+    }
+
+    private boolean remove(String key, entry cached)
+    {
+        if (!entries.remove(key, cached)) return false;
+        used_bytes.addAndGet(-cached.size);
+        return true;
+    }
+
+    // Files are cached by their path inside the files directory, anything outside is not cached.
+    static String key(String filename)
+    {
+        try
+        {
+            Path path = Paths.get(filename).normalize();
+            if (path.isAbsolute() || path.startsWith("..") || path.toString().isEmpty()) return null;
+            return path.toString();
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+    }
+}
+
+
+class fileCatalog
+{
+    /**
+     * What we know of a file in the files directory, from its attributes. An entry is 
+     * replaced, never changed, when the file changes.
+     */
+    static class entry
+    {
+        final String name;              // Path of the file inside the files directory.
+        final File file;                // The file on disk.
+        final long size;                // Size of the file in bytes.
+        final long modified;            // Last modification time, in ms.
+        volatile byte[] md5;            // MD5 of the content, once a client asked for it.
+
+        entry(String name, File file, long size, long modified)
+        {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    // Files by their path inside the files directory.
+    private volatile ConcurrentHashMap<String, entry> entries = new ConcurrentHashMap<String, entry>();
+    private Path root;                  // Directory of the files clients can download.
+    private volatile boolean current = false;   // Changes are watched, entries can be trusted.
+    private Set<String> changed_while_building; // Changes to replay on the entries being built, null between builds.
+    private final Object entries_lock = new Object();    // Guards changed_while_building and the swap of entries.
+
+    public fileCatalog(serverConfig config)
+    {
+        root = Paths.get(config.files_path);
+    }
+
+    /**
+     * Read the whole files directory into the catalog, every directory scanned in parallel. 
+     * Changes reported while the scan runs are read again into the new entries before they 
+     * replace the old ones. Once changes are watched, lookups are answered from memory alone. 
+     * Until then (or without a watcher) every lookup goes to the disk.
+     */
+    public synchronized void build(boolean watched)
+    {   // Lookups keep using the old entries until the new ones are all there.
+        synchronized (entries_lock)
+        {
+            changed_while_building = new LinkedHashSet<String>();
+        }
+        ConcurrentHashMap<String, entry> scanned = new ConcurrentHashMap<String, entry>();
+        if (Files.isDirectory(root)) ForkJoinPool.commonPool().invoke(new directoryScan(root, scanned));
+        while (true)
+        {   // The scan may have read a file before it changed, its change is applied again.
+            List<String> replay;
+            synchronized (entries_lock)
+            {
+                if (changed_while_building.isEmpty())
+                {
+                    entries = scanned;
+                    current = watched;
+                    changed_while_building = null;
+                    return;
+                }
+                replay = new ArrayList<String>(changed_while_building);
+                changed_while_building.clear();
+            }
+            for (String changed : replay) apply(scanned, changed);
+        }
+    }
+
+    /**
+     * The file, or null if there is no such file. Names leading outside 
+     * of the files directory are never found.
+     */
+    public entry get(String filename)
+    {
+        String key = fileCache.key(filename);
+        if (key == null) return null;
+        if (current) return entries.get(key);
+        return read(key, root.resolve(key));
+    }
+
+    /**
+     * A file or directory changed on disk. Files are read again, directories scanned, and 
+     * whatever is gone is removed, along with everything under it if it was a directory. 
+     * A null name means we lost track of the changes, and everything is read again.
+     */
+    public void refresh(String changed)
+    {
+        if (changed == null)
+        {
+            build(current);
+            return;
+        }
+        synchronized (entries_lock)
+        {   // A build running now replays it on what it scanned, before using it.
+            if (changed_while_building != null) changed_while_building.add(changed);
+        }
+        apply(entries, changed);
+    }
+
+    // Read a changed file or directory again into the given entries.
+    private void apply(ConcurrentHashMap<String, entry> map, String changed)
+    {
+        Path path = root.resolve(changed);
+        if (Files.isDirectory(path))
+        {
+            ForkJoinPool.commonPool().invoke(new directoryScan(path, map));
+            return;
+        }
+        entry updated = read(changed, path);
+        if (updated != null) map.put(changed, updated);
+        else if (map.remove(changed) == null)
+        {   // Not a file we knew, it may have been a directory.
+            map.keySet().removeIf(name -> name.startsWith(changed + File.separator));
+        }
+    }
+
+    /**
+     * The files whose name starts with prefix, in no particular order. 
+     * Entries are not copied, the catalog can change while they are read.
+     */
+    public Iterator<entry> list(String prefix)
+    {
+        Iterator<entry> all = entries.values().iterator();
+        if (current && prefix.isEmpty()) return all;
+        if (!current)
+        {   // Without a watcher the catalog is not kept. Read only the directory the prefix is in, 
+            // for this listing alone, and leave the entries other requests are reading alone.
+            int slash = prefix.lastIndexOf(File.separatorChar);
+            Path directory = root.resolve(slash < 0 ? "" : prefix.substring(0, slash)).normalize();
+            ConcurrentHashMap<String, entry> scanned = new ConcurrentHashMap<String, entry>();
+            if (directory.startsWith(root.normalize()) && Files.isDirectory(directory))
+                ForkJoinPool.commonPool().invoke(new directoryScan(directory, scanned));
+            all = scanned.values().iterator();
+        }
+        Iterator<entry> matching = all;
+        return new Iterator<entry>()
+        {
+            private entry next = advance();
+
+            private entry advance()
+            {
+                while (matching.hasNext())
+                {
+                    entry candidate = matching.next();
+                    if (candidate.name.startsWith(prefix)) return candidate;
+                }
+                return null;
+            }
+
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            public entry next()
+            {
+                if (next == null) throw new NoSuchElementException();
+                entry current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * The files an archive request is for, sorted by name. A pattern with glob characters 
+     * (*, ?, [ or {) is matched against the whole name, "*.txt" only matching at the top and 
+     * "**" crossing directories. Anything else is a directory, and everything under it 
+     * matches, the whole catalog for an empty one.
+     */
+    public List<entry> match(String pattern)
+    {
+        List<entry> matching = new ArrayList<entry>();
+        if (pattern.matches(".*[*?\\[{].*"))
+        {
+            PathMatcher glob;
+            try
+            {
+                glob = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            }
+            catch (IllegalArgumentException e)
+            {   // Not a pattern we can read, it matches nothing.
+                return matching;
+            }
+            for (Iterator<entry> files = list(""); files.hasNext(); )
+            {
+                entry file = files.next();
+                if (glob.matches(Paths.get(file.name))) matching.add(file);
+            }
+        }
+        else
+        {
+            String directory = pattern;
+            while (directory.endsWith(File.separator)) directory = directory.substring(0, directory.length() - 1);
+            String prefix = directory.isEmpty() ? "" : directory + File.separator;
+            for (Iterator<entry> files = list(prefix); files.hasNext(); ) matching.add(files.next());
+        }
+        matching.sort((a, b) -> a.name.compareTo(b.name));
+        return matching;
+    }
+
+    /**
+     * Answer a LIST, STAT or ARCHIVE request, with the same messages and status as a file request. 
+     * STAT sends the file's size, modification time, and MD5 if the client asked for it with a 
+     * "Hash: md5" header, as response headers. LIST returns the listing of the files under the 
+     * prefix given as the filename, and ARCHIVE the files matching it as an archiveBody, to be 
+     * sent after the headers. STAT returns null.
+     */
+    public framedBody answer(fileRequest request, DataOutputStream out, long request_id) throws IOException
+    {
+        framedBody listing = null;
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        entry file = null;
+        if (request.command.equals(fileRequest.LIST))
+        {
+            out.writeUTF(serverTime.current_time() + "Listing files under \"" + request.filename + "\"");
+            listing = new catalogListing(list(request.filename));
+        }
+        else if (request.command.equals(fileRequest.ARCHIVE))
+        {
+            List<entry> files = match(request.filename);
+            if (!files.isEmpty())
+            {
+                archiveBody archive = new archiveBody(files);
+                out.writeUTF(serverTime.current_time() + "Archiving " + files.size() + " files matching \"" 
+                    + request.filename + "\"");
+                headers.put("Archive-Files", Integer.toString(files.size()));
+                headers.put("Archive-Length", Long.toString(archive.length()));
+                listing = archive;
+            }
+            else
+            {
+                out.writeUTF(serverTime.current_time() + "No file matching \"" + request.filename + "\" at server");
+            }
+        }
+        else if ((file = get(request.filename)) != null)
+        {
+            out.writeUTF(serverTime.current_time() + "File " + request.filename + " found at server");
+            headers.put("Content-Length", Long.toString(file.size));
+            headers.put("Last-Modified", Long.toString(file.modified));
+            if ("md5".equalsIgnoreCase(request.headers.get("Hash")))
+            {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : md5(file)) hex.append(String.format("%02x", b));
+                headers.put("MD5", hex.toString());
+            }
+        }
+        else
+        {
+            out.writeUTF(serverTime.current_time() + "File " + request.filename + " not found at server");
+        }
+        boolean found = (listing != null || file != null);
+        if (found) serverStatistics.sReq.increment();
+        if (fileLogging.enabled(fileLogging.INFO))
+        {
+            fileLogging.info("REQ " + request_id + (found ? ": Successful" : ": Not Successful"));
+        }
+
+        // Send out the request statistics to the client
+        out.writeUTF(serverTime.current_time() + "Server handled " + serverStatistics.tReq.get()
+            + " requests, " + serverStatistics.sReq.sum() + " requests were successful");
+        out.writeBoolean(found);
+        request.write_status(out, found ? fileRequest.OK : fileRequest.NOT_FOUND, null, -1, headers);
+        return listing;
+    }
+
+    /**
+     * MD5 of the file's content, read once and kept with the entry until the file changes.
+     */
+    public byte[] md5(entry file) throws IOException
+    {
+        if (file.md5 != null) return file.md5;
+        MessageDigest md5;
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {   // Every Java platform has MD5.
+            throw new IOException(e);
+        }
+        byte[] buffer_data_array = new byte[65536];
+        try (FileInputStream f_in = new FileInputStream(file.file))
+        {
+            int bytes;
+            while ((bytes = f_in.read(buffer_data_array)) != -1) md5.update(buffer_data_array, 0, bytes);
+        }
+        file.md5 = md5.digest();
+        return file.md5;
+    }
+
+    public int count()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Whether changes are watched, so lookups and listings are answered from memory.
+     */
+    public boolean watched()
+    {
+        return current;
+    }
+
+    // Entry for a file, from one read of its attributes, or null if it is not a file.
+    private entry read(String name, Path path)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return new entry(name, path.toFile(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+        catch (IOException e)
+        {   // Gone, or never was.
+            return null;
+        }
+    }
+
+    /**
+     * Add the files of a directory to the catalog, and scan its subdirectories at the same time.
+     */
+    private class directoryScan extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;    // Never serialized, ForkJoinTask is Serializable.
+
+        private Path directory;
+        private Map<String, entry> found;   // Where the files are added.
+
+        directoryScan(Path directory, Map<String, entry> found)
+        {
+            this.directory = directory;
+            this.found = found;
+        }
+
+        protected void compute()
+        {
+            List<directoryScan> subdirectories = new ArrayList<directoryScan>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory))
+            {
+                for (Path child : children)
+                {
+                    BasicFileAttributes attributes = 
+                        Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) subdirectories.add(new directoryScan(child, found));
+                    else
+                    {   // Links are followed for files, like the lookups do.
+                        String name = root.relativize(child).toString();
+                        entry file = attributes.isRegularFile() ? new entry(name, child.toFile(), 
+                            attributes.size(), attributes.lastModifiedTime().toMillis()) : read(name, child);
+                        if (file != null) found.put(name, file);
+                    }
+                }
+            }
+            catch (IOException e)
+            {   // The directory went away while we were scanning it.
+                if (fileLogging.enabled(fileLogging.DEBUG))
+                {
+                    fileLogging.debug("Cannot scan " + directory + ": " + e.getMessage());
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
+
+
+class catalogListing implements framedBody
+{
+    private static final int FRAME_SIZE = 65536;    // Entries are sent about this many bytes at a time.
+
+    private Iterator<fileCatalog.entry> files;      // Entries still to send.
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_SIZE + 1024);
+    private DataOutputStream frame_out = new DataOutputStream(frame);
+    private boolean finished = false;   // The end mark was handed out.
+    private long sent = 0;              // Bytes handed out.
+    private long count = 0;             // Entries handed out.
+
+    public catalogListing(Iterator<fileCatalog.entry> files)
+    {
+        this.files = files;
+    }
+
+    public String name()
+    {
+        return "listing";
+    }
+
+    public Map<String, String> headers()
+    {
+        return null;
+    }
+
+    public String toString()
+    {
+        return "listing of " + count + " files";
+    }
+
+    public long sent()
+    {
+        return sent;
+    }
+
+    /**
+     * The next entries, each one the file's name, size and last modification time (ms), 
+     * written with writeUTF() and writeLong(). An empty name marks the end.
+     */
+    public ByteBuffer next(int chunk) throws IOException
+    {
+        if (finished) return null;
+        frame.reset();
+        while (frame.size() < FRAME_SIZE && files.hasNext())
+        {
+            fileCatalog.entry file = files.next();
+            frame_out.writeUTF(file.name);
+            frame_out.writeLong(file.size);
+            frame_out.writeLong(file.modified);
+            count++;
+        }
+        if (!files.hasNext())
+        {
+            frame_out.writeUTF("");
+            finished = true;
+        }
+        sent += frame.size();
+        return ByteBuffer.wrap(frame.toByteArray());
+    }
+
+    public void close() {}
+}
+
+
+/**
+ * Files sent one after the other as a single archive. Each entry is the file's name (writeUTF), 
+ * size and last modification time (writeLong), its data, then the CRC32C of the data (writeInt), 
+ * and an empty name ends the archive. Files are sent in order, but the next FILES_AHEAD of them 
+ * are already being read by their own readAhead while the current one is sent, so a tree of 
+ * small files does not wait on the disk once per file. Small files go out with the headers 
+ * around them, in frames of about FRAME_SIZE bytes, big ones straight from their chunks.
+ */
+class archiveBody implements framedBody
+{
+    public static final int FILES_AHEAD = 8;        // Files read ahead of the one being sent.
+    private static final int FRAME_SIZE = 65536;    // Headers and small files are gathered up to this.
+
+    private List<fileCatalog.entry> files;          // Files of the archive, in the order they are sent.
+    private int sending = 0;            // Number of the file being sent, or the next one.
+    private int opened = 0;             // Files opened for reading so far.
+    private ArrayDeque<readAhead> reading = new ArrayDeque<readAhead>();    // Files opened, not sent yet.
+    private readAhead source;           // File being sent, null between files.
+    private long left = 0;              // Bytes of it not sent yet.
+    private CRC32C checksum = new CRC32C();         // Of the file being sent.
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_SIZE + 1024);
+    private DataOutputStream frame_out = new DataOutputStream(frame);
+    private byte[] copy = new byte[FRAME_SIZE];     // Small files on their way into the frame.
+    private boolean finished = false;   // The end mark was handed out.
+    private long length = 0;            // Bytes of file data in the archive.
+    private long sent = 0;              // Bytes handed out, headers included.
+    private int skipped = 0;            // Files gone before they could be opened.
+
+    public archiveBody(List<fileCatalog.entry> files)
+    {
+        this.files = files;
+        for (fileCatalog.entry file : files) length += file.size;
+    }
+
+    /**
+     * Bytes of file data in the archive, without the headers.
+     */
+    public long length()
+    {
+        return length;
+    }
+
+    public String name()
+    {
+        return "archive";
+    }
+
+    public Map<String, String> headers()
+    {
+        return null;
+    }
+
+    public String toString()
+    {
+        return "archive of " + (files.size() - skipped) + " files";
+    }
+
+    public boolean blocks()
+    {   // Opens the next files, and waits for the disk when it is behind.
+        return true;
+    }
+
+    public long sent()
+    {
+        return sent;
+    }
+
+    /**
+     * The next part of the archive: data of the big file being sent, or else headers and small 
+     * files up to about FRAME_SIZE bytes, or up to the next big file. Good until the next call.
+     */
+    public ByteBuffer next(int chunk) throws IOException
+    {
+        if (finished) return null;
+        if (left > 0)
+        {   // A big file, straight from the chunks read ahead.
+            ByteBuffer piece = source.next((int) Math.min(chunk, left));
+            if (piece == null) throw new EOFException("File shrunk while sending");
+            checksum.update(piece.duplicate());
+            left -= piece.remaining();
+            sent += piece.remaining();
+            return piece;
+        }
+        frame.reset();
+        if (source != null) end_file();
+        while (frame.size() < FRAME_SIZE && sending < files.size())
+        {
+            if (!start_file()) continue;
+            // Too big to go with the headers, sent from its chunks by the next calls.
+            if (left > FRAME_SIZE - frame.size()) break;
+            while (left > 0)
+            {
+                int bytes = source.read(copy, 0, (int) Math.min(copy.length, left));
+                if (bytes < 0) throw new EOFException("File shrunk while sending");
+                checksum.update(copy, 0, bytes);
+                frame_out.write(copy, 0, bytes);
+                left -= bytes;
+            }
+            end_file();
+        }
+        if (source == null && sending == files.size())
+        {   // End of the archive.
+            frame_out.writeUTF("");
+            finished = true;
+        }
+        sent += frame.size();
+        return ByteBuffer.wrap(frame.toByteArray());
+    }
+
+    /**
+     * Write the header of the next file and get ready to send its data, opening the files after 
+     * it so they are read meanwhile. Returns false, skipping it, if the file is gone.
+     */
+    private boolean start_file() throws IOException
+    {
+        while (opened < files.size() && opened - sending <= FILES_AHEAD)
+        {
+            fileCatalog.entry file = files.get(opened++);
+            try
+            {
+                reading.add(new readAhead(file.file, 0, file.size));
+            }
+            catch (IOException e)
+            {   // Removed since the catalog saw it, there is nothing to send.
+                reading.add(null);
+            }
+        }
+        fileCatalog.entry file = files.get(sending);
+        source = reading.poll();
+        if (source == null)
+        {
+            sending++;
+            skipped++;
+            if (fileLogging.enabled(fileLogging.DEBUG))
+            {
+                fileLogging.debug("Archive skips " + file.name + ", it is gone");
+            }
+            return false;
+        }
+        frame_out.writeUTF(file.name);
+        frame_out.writeLong(file.size);
+        frame_out.writeLong(file.modified);
+        checksum.reset();
+        left = file.size;
+        return true;
+    }
+
+    // The file is all out, its checksum goes at the front of the next frame.
+    private void end_file() throws IOException
+    {
+        frame_out.writeInt((int) checksum.getValue());
+        source.close();
+        source = null;
+        sending++;
+    }
+
+    public void close() throws IOException
+    {
+        if (source != null) source.close();
+        source = null;
+        for (readAhead file : reading) 
+            if (file != null) file.close();
+        reading.clear();
+    }
+}
+
+interface contentCodec
+{
+    /**
+     * Name of the codec, as clients write it in their Accept-Encoding header.
+     */
+    String name();
+
+    /**
+     * A stream compressing everything written to it into out. 
+     * Closing it writes the end of the compressed data.
+     */
+    OutputStream encoder(OutputStream out) throws IOException;
+}
+
+
+class contentCodecs
+{
+    // Codecs offered to clients, by name. Register a codec to offer it too.
+    private static final Map<String, contentCodec> codecs = new ConcurrentHashMap<String, contentCodec>();
+
+    static
+    {
+        register(new gzip());
+        register(new deflate());
+    }
+
+    public static void register(contentCodec codec)
+    {
+        codecs.put(codec.name(), codec);
+    }
+
+    /**
+     * The first codec of the client's Accept-Encoding header we know, 
+     * or null if there is none and the file is sent as is.
+     */
+    public static contentCodec negotiate(String accept_encoding)
+    {
+        if (accept_encoding == null) return null;
+        for (String name : accept_encoding.split(","))
+        {
+            contentCodec codec = codecs.get(name.trim().toLowerCase());
+            if (codec != null) return codec;
+        }
+        return null;
+    }
+
+    // The gzip format (RFC 1952), deflate with a header and a CRC32 of the data.
+    static class gzip implements contentCodec
+    {
+        public String name()
+        {
+            return "gzip";
+        }
+
+        public OutputStream encoder(OutputStream out) throws IOException
+        {
+            return new GZIPOutputStream(out, 65536);
+        }
+    }
+
+    // The zlib format (RFC 1950), what HTTP calls deflate.
+    static class deflate implements contentCodec
+    {
+        public String name()
+        {
+            return "deflate";
+        }
+
+        public OutputStream encoder(OutputStream out) throws IOException
+        {
+            return new DeflaterOutputStream(out, new Deflater(), 65536)
+            {   // The Deflater is ours, it has to be ended with the stream.
+                public void close() throws IOException
+                {
+                    super.close();
+                    def.end();
+                }
+            };
+        }
+    }
+}
+
+
+interface framedBody extends Closeable
+{
+    /**
+     * The next frame to send, null once the end mark went out. 
+     * The frame is only good until the next call.
+     */
+    ByteBuffer next(int chunk) throws IOException;
+
+    /**
+     * Bytes handed out so far, frame lengths and checksums included.
+     */
+    long sent();
+
+    /**
+     * Name of how the frames are made, for the log.
+     */
+    String name();
+
+    /**
+     * Response headers telling the client how to read the frames.
+     */
+    Map<String, String> headers();
+
+    /**
+     * Whether next() may read the disk or work long on a frame, so the nio engine 
+     * makes the frames on the disk work threads instead of its selector loop.
+     */
+    default boolean blocks()
+    {
+        return false;
+    }
+}
+
+
+class encodedBody implements framedBody
+{
+    private String codec;               // Name of the codec the data is encoded with.
+    private readAhead source;           // The file, or a compressed variant of it, read ahead of the codec.
+    private long position;              // Position of the next byte of the source to read.
+    private long end;                   // Position right after the last byte of the source to send.
+    private OutputStream encoder;       // Compresses into the frame, null when the source already is.
+    private frameBuffer frame = new frameBuffer(65536);     // Encoded data waiting to be sent.
+    private byte[] buffer_data_array;   // Chunks read from the source.
+    private boolean finished = false;   // All the data and the end mark were handed out.
+    private boolean from_variant;       // The source is a compressed variant.
+    private long sent = 0;              // Bytes handed out, frame lengths included.
+
+    private compressionCache cache;     // Keeps the data we compress as a new variant, if not null.
+    private compressionCache.variant pending;   // Variant being written.
+    private OutputStream variant_out;   // Writes the variant's temporary file.
+
+    /**
+     * Send length bytes of the source from start, compressing them with codec, 
+     * or as they are if the source is a variant already compressed with it.
+     */
+    public encodedBody(File source, long start, long length, contentCodec codec, boolean compressed) 
+        throws IOException
+    {
+        this.codec = codec.name();
+        this.source = new readAhead(source, start, length);
+        position = start;
+        end = start + length;
+        from_variant = compressed;
+        if (!compressed) encoder = codec.encoder(frame);
+    }
+
+    /**
+     * Also write what we compress to the variant's temporary file, the cache keeps it 
+     * once the whole file went through.
+     */
+    public void keep(compressionCache cache, compressionCache.variant pending) throws IOException
+    {
+        this.cache = cache;
+        this.pending = pending;
+        variant_out = new BufferedOutputStream(new FileOutputStream(pending.file), 65536);
+    }
+
+    public String name()
+    {
+        return codec;
+    }
+
+    public boolean blocks()
+    {   // Reads the file, and compresses a whole frame of it.
+        return true;
+    }
+
+    public Map<String, String> headers()
+    {
+        return Collections.singletonMap("Content-Encoding", codec);
+    }
+
+    public String toString()
+    {
+        return codec + (from_variant ? " from the compressed files" : ", compressing");
+    }
+
+    public long sent()
+    {
+        return sent;
+    }
+
+    /**
+     * The next frame to send: its length as an int, then that many bytes of encoded data. 
+     * The last frame is followed by an empty one, the end mark. Returns null once everything 
+     * was handed out. The frame is only good until the next call.
+     * 
+     * Source chunks of the given size are read until there is at least half a chunk of 
+     * encoded data, compressed data comes out of the codec in bursts.
+     */
+    public ByteBuffer next(int chunk) throws IOException
+    {
+        if (finished) return null;
+        if (buffer_data_array == null || buffer_data_array.length < chunk) buffer_data_array = new byte[chunk];
+        // Start a new frame once the last one was handed out. Before the first one, the 
+        // frame may already hold what the codec writes when it starts, like the gzip header.
+        if (sent > 0) frame.reset();
+        while (!finished && frame.length() < chunk / 2)
+        {
+            int bytes = (position < end) ? source.read(
+                buffer_data_array, 0, (int) Math.min(chunk, end - position)) : -1;
+            if (bytes < 0)
+            {   // End of the data, the codec writes what it still holds.
+                if (position < end) throw new EOFException("File shrunk while sending");
+                if (encoder != null) encoder.close();
+                finished = true;
+                break;
+            }
+            position += bytes;
+            if (encoder != null) encoder.write(buffer_data_array, 0, bytes);
+            else frame.write(buffer_data_array, 0, bytes);
+        }
+        if (variant_out != null) frame.write_data(variant_out);
+        ByteBuffer next = frame.frame(finished);
+        sent += next.remaining();
+        return next;
+    }
+
+    /**
+     * Close the source. A variant that received the whole file is handed to the cache, 
+     * one that did not is thrown away.
+     */
+    public void close() throws IOException
+    {
+        source.close();
+        if (variant_out == null) return;
+        variant_out.close();
+        variant_out = null;
+        if (finished) cache.commit(pending);
+        else cache.discard(pending);
+    }
+}
+
+
+class frameBuffer extends ByteArrayOutputStream
+{
+    // Encoded data is gathered after 4 bytes left for its length, 
+    // so the frame goes out in one write without being copied.
+    public frameBuffer(int size)
+    {
+        super(size);
+        reset();
+    }
+
+    public void reset()
+    {
+        count = 4;
+    }
+
+    /**
+     * Bytes of encoded data in the frame.
+     */
+    public int length()
+    {
+        return count - 4;
+    }
+
+    // Copy the encoded data, without the length, to out.
+    public void write_data(OutputStream out) throws IOException
+    {
+        out.write(buf, 4, count - 4);
+    }
+
+    /**
+     * The frame ready to send, followed by the end mark if it is the last one.
+     * An empty last frame is the end mark itself.
+     */
+    public ByteBuffer frame(boolean last)
+    {
+        int length = count - 4;
+        buf[0] = (byte) (length >>> 24);
+        buf[1] = (byte) (length >>> 16);
+        buf[2] = (byte) (length >>> 8);
+        buf[3] = (byte) length;
+        if (last && length > 0) write(new byte[4], 0, 4);
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
+
+
+class checkedBody implements framedBody
+{
+    private ByteBuffer cached;          // The file kept in memory, null when read from the disk.
+    private readAhead source;           // The file on disk, read ahead of the frames, when not in memory.
+    private long position;              // Position of the next byte of the file to send.
+    private long end;                   // Position right after the last byte of the file to send.
+    private int frame_size;             // Bytes of file data in each frame, the last one may have less.
+    private ByteBuffer frame;           // Frame being made, outside of the Java heap.
+    private CRC32C checksum = new CRC32C();     // Checksum of the frame's data.
+    private CRC32C digest = new CRC32C();       // Checksum of all the frames' checksums.
+    private boolean finished = false;   // The end mark and digest were handed out.
+    private long sent = 0;              // Bytes handed out, lengths and checksums included.
+
+    /**
+     * Send length bytes of the file from start, in frames of frame_size bytes each followed 
+     * by its CRC32C, from memory when the cache has the file or else from file.
+     */
+    public checkedBody(fileCache.entry cached, File file, long start, long length, int frame_size) 
+        throws IOException
+    {
+        if (cached != null) this.cached = cached.data.duplicate();
+        else source = new readAhead(file, start, length);
+        position = start;
+        end = start + length;
+        this.frame_size = frame_size;
+        frame = ByteBuffer.allocateDirect((int) Math.min(frame_size, length) + 8);
+    }
+
+    public boolean blocks()
+    {   // Files in memory are checked right away.
+        return source != null;
+    }
+
+    public String name()
+    {
+        return "crc32c";
+    }
+
+    public Map<String, String> headers()
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Integrity", "crc32c");
+        headers.put("Integrity-Chunk", String.valueOf(frame_size));
+        return headers;
+    }
+
+    public String toString()
+    {
+        return "crc32c every " + frame_size + " bytes" + (cached != null ? " from memory" : "");
+    }
+
+    public long sent()
+    {
+        return sent;
+    }
+
+    /**
+     * The next frame, its length as an int, the data, then the CRC32C of the data as an int. 
+     * The data is read straight into the frame and the checksum computed where it sits. 
+     * After the last frame comes an empty one and the digest, the CRC32C of every frame's 
+     * checksum in order, so the client also knows no frame went missing. Frames always hold 
+     * frame_size bytes, whatever the chunk size, the client repairs the file by them.
+     */
+    public ByteBuffer next(int chunk) throws IOException
+    {
+        if (finished) return null;
+        frame.clear();
+        int length = (int) Math.min(frame_size, end - position);
+        if (length == 0)
+        {   // End mark, followed by the digest.
+            frame.putInt(0).putInt((int) digest.getValue()).flip();
+            finished = true;
+            sent += frame.remaining();
+            return frame;
+        }
+        frame.putInt(length);
+        if (cached != null)
+        {
+            ByteBuffer data = cached.duplicate();
+            data.limit((int) (position + length)).position((int) position);
+            frame.put(data);
+        }
+        else
+        {   // Copied from the chunks read ahead, the disk is already reading the next frames.
+            frame.limit(4 + length);
+            source.read_fully(frame);
+        }
+        position += length;
+
+        // Checksum the data where it is, then add the checksum to the digest.
+        ByteBuffer data = frame.duplicate();
+        data.flip().position(4);
+        checksum.reset();
+        checksum.update(data);
+        int crc = (int) checksum.getValue();
+        digest.update(crc >>> 24);
+        digest.update(crc >>> 16);
+        digest.update(crc >>> 8);
+        digest.update(crc);
+
+        frame.limit(frame.capacity());
+        frame.putInt(crc).flip();
+        sent += frame.remaining();
+        return frame;
+    }
+
+    public void close() throws IOException
+    {
+        if (source != null) source.close();
+    }
+}
+
+
+/**
+ * Reads part of a file ahead of the thread sending it, so the disk and the network work at the 
+ * same time. Chunks are read with an AsynchronousFileChannel on a few I/O threads, into direct 
+ * buffers shared by every transfer, up to depth chunks ahead of what the sender took. The depth 
+ * grows each time the sender has to wait for the disk, and shrinks back while everything ahead 
+ * is already read, so transfers to slow clients do not hold buffers they have no use for.
+ */
+class readAhead extends InputStream
+{
+    public static final int MIN_DEPTH = 2;      // Chunks read ahead once the sender is going.
+
+    private static int max_depth = 8;           // Chunks read ahead of the sender at most, 0 reads when asked.
+    private static int chunk_size = 256 << 10;  // Bytes read from the disk at once.
+    private static int max_buffers = 64;        // Direct buffers shared by every transfer.
+    private static ExecutorService io = io_threads(4, "read-ahead-");     // Threads the reads run on.
+    // Threads other blocking disk work runs on. Apart from the reads, so work waiting for them never holds them up.
+    private static ExecutorService work = io_threads(4, "disk-work-");
+
+    // Direct buffers not reading or being sent, and how many were allocated so far.
+    private static final Queue<ByteBuffer> free_buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * A chunk asked for, read into its buffer.
+     */
+    private static class chunk
+    {
+        final ByteBuffer buffer;
+        final long position;            // Position of its first byte in the file.
+        final CompletableFuture<Integer> read;
+
+        chunk(ByteBuffer buffer, long position, CompletableFuture<Integer> read)
+        {
+            this.buffer = buffer;
+            this.position = position;
+            this.read = read;
+        }
+    }
+
+    private AsynchronousFileChannel channel;
+    private long read_position;         // Position of the next chunk to ask the disk for.
+    private long end;                   // Position right after the last byte to read.
+    private ArrayDeque<chunk> in_flight = new ArrayDeque<chunk>();  // Chunks asked for, in file order.
+    private ByteBuffer current;         // Chunk the sender is taking bytes from.
+    private int depth = MIN_DEPTH;      // Chunks to keep reading ahead.
+    private long waited_from = 0;       // When ready() found the disk behind (System.nanoTime), 0 if not.
+
+    // Completes the future given with the read, on the I/O thread that did it.
+    private static final CompletionHandler<Integer, CompletableFuture<Integer>> READ_DONE = 
+        new CompletionHandler<Integer, CompletableFuture<Integer>>()
+    {
+        public void completed(Integer bytes, CompletableFuture<Integer> read)
+        {
+            read.complete(bytes);
+        }
+
+        public void failed(Throwable e, CompletableFuture<Integer> read)
+        {
+            read.completeExceptionally(e);
+        }
+    };
+
+    /**
+     * Take the read-ahead depth, chunk size, buffers and I/O threads from the server options.
+     */
+    public static void configure(serverConfig config)
+    {
+        max_depth = config.read_ahead;
+        chunk_size = config.read_ahead_chunk;
+        max_buffers = config.read_ahead_buffers;
+        io.shutdown();
+        io = io_threads(config.read_ahead_threads, "read-ahead-");
+        work.shutdown();
+        work = io_threads(config.read_ahead_threads, "disk-work-");
+    }
+
+    /**
+     * Run other blocking disk work, like hashing a whole file or making frames that read ahead, 
+     * on threads of its own. They may wait for reads, so they never run on the threads doing them.
+     */
+    public static void submit(Runnable task)
+    {
+        work.execute(task);
+    }
+
+    private static ExecutorService io_threads(int count, String name)
+    {
+        AtomicInteger created = new AtomicInteger();
+        return Executors.newFixedThreadPool(count, task -> 
+        {
+            Thread thread = new Thread(task, name + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start reading length bytes of file from start.
+     */
+    public readAhead(File file, long start, long length) throws IOException
+    {
+        channel = AsynchronousFileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.READ), io);
+        read_position = start;
+        end = start + length;
+        depth = Math.min(MIN_DEPTH, max_depth);
+        if (depth > 0) fill();
+    }
+
+    /**
+     * Ask the disk for chunks until depth of them are in flight, or there are no free buffers 
+     * left. A transfer always gets a buffer for the chunk it waits on, from the heap if need be.
+     */
+    private void fill()
+    {
+        while (read_position < end && (in_flight.size() < depth || in_flight.isEmpty()))
+        {
+            ByteBuffer buffer = free_buffers.poll();
+            if (buffer == null && allocated.get() < max_buffers && allocated.incrementAndGet() <= max_buffers)
+                buffer = ByteBuffer.allocateDirect(chunk_size);
+            if (buffer == null && !in_flight.isEmpty()) return;     // Go on with what we have.
+            if (buffer == null) buffer = ByteBuffer.allocate((int) Math.min(chunk_size, end - read_position));
+            buffer.clear().limit((int) Math.min(chunk_size, end - read_position));
+            CompletableFuture<Integer> read = new CompletableFuture<Integer>();
+            channel.read(buffer, read_position, read, READ_DONE);
+            in_flight.add(new chunk(buffer, read_position, read));
+            read_position += buffer.limit();
+        }
+    }
+
+    /**
+     * Up to max of the next bytes, null once everything was taken. The bytes are a view of 
+     * the chunk they were read into, good until the next call.
+     */
+    public ByteBuffer next(int max) throws IOException
+    {
+        if (current != null && !current.hasRemaining())
+        {
+            release(current);
+            current = null;
+        }
+        if (current == null)
+        {
+            fill();
+            chunk head = in_flight.poll();
+            if (head == null) return null;
+            if (!head.read.isDone())
+            {   // The sender caught up with the disk, read further ahead.
+                if (depth < max_depth) depth++;
+                long waited_from = System.nanoTime();
+                current = complete(head);
+                serverStatistics.read_ahead_waits.increment();
+                serverStatistics.read_ahead_time.add(System.nanoTime() - waited_from);
+            }
+            else if (waited_from != 0)
+            {   // ready() found the disk behind, and the sender came back once it caught up.
+                serverStatistics.read_ahead_time.add(System.nanoTime() - waited_from);
+                waited_from = 0;
+                current = complete(head);
+            }
+            else
+            {   // Everything ahead already read, the client is slower than the disk.
+                if (depth > MIN_DEPTH && (in_flight.isEmpty() || in_flight.peekLast().read.isDone())) depth--;
+                current = complete(head);
+            }
+            fill();
+        }
+        ByteBuffer piece = current.slice();
+        piece.limit(Math.min(piece.limit(), max));
+        current.position(current.position() + piece.limit());
+        return piece;
+    }
+
+    /**
+     * Whether next() has bytes without waiting for the disk. Like next(), it gives back the 
+     * chunk the last bytes were taken from. When the disk is behind, the wait is counted and 
+     * we read further ahead, as when next() waits.
+     */
+    public boolean ready()
+    {
+        if (current != null && current.hasRemaining()) return true;
+        if (current != null) release(current);
+        current = null;
+        fill();
+        chunk head = in_flight.peek();
+        if (head == null || head.read.isDone()) return true;
+        if (waited_from == 0)
+        {
+            waited_from = System.nanoTime();
+            serverStatistics.read_ahead_waits.increment();
+            if (depth < max_depth) depth++;
+        }
+        return false;
+    }
+
+    /**
+     * Run action once the chunk next() would wait for is read, on the I/O thread that read it, 
+     * or right away when it already is. Event loops use it instead of waiting.
+     */
+    public void when_ready(Runnable action)
+    {
+        chunk head = in_flight.peek();
+        if (head == null) action.run();
+        else head.read.whenComplete((bytes, e) -> action.run());
+    }
+
+    /**
+     * Wait for the chunk's read to end, reading what a short read left out, and give back its data.
+     */
+    private ByteBuffer complete(chunk c) throws IOException
+    {
+        try
+        {
+            int bytes = c.read.get();
+            while (bytes >= 0 && c.buffer.hasRemaining()) 
+                bytes = channel.read(c.buffer, c.position + c.buffer.position()).get();
+        }
+        catch (ExecutionException e)
+        {
+            release(c.buffer);
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            release(c.buffer);
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+        if (c.buffer.hasRemaining())
+        {
+            release(c.buffer);
+            throw new EOFException("File shrunk while sending");
+        }
+        c.buffer.flip();
+        return c.buffer;
+    }
+
+    private static void release(ByteBuffer buffer)
+    {
+        if (buffer.isDirect()) free_buffers.add(buffer);
+    }
+
+    /**
+     * Fill dst with the next bytes, there must be enough of them left.
+     */
+    public void read_fully(ByteBuffer dst) throws IOException
+    {
+        while (dst.hasRemaining())
+        {
+            ByteBuffer piece = next(dst.remaining());
+            if (piece == null) throw new EOFException("File shrunk while sending");
+            dst.put(piece);
+        }
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        ByteBuffer piece = next(len);
+        if (piece == null) return -1;
+        int bytes = piece.remaining();
+        piece.get(b, off, bytes);
+        return bytes;
+    }
+
+    public int read() throws IOException
+    {
+        ByteBuffer piece = next(1);
+        return (piece == null) ? -1 : piece.get() & 0xff;
+    }
+
+    /**
+     * Give back the buffers, once the reads still running into them are over.
+     */
+    public void close() throws IOException
+    {
+        if (current != null) release(current);
+        current = null;
+        for (chunk c : in_flight)
+        {
+            try
+            {
+                c.read.get();
+            }
+            catch (InterruptedException | ExecutionException e)
+            {   // Nothing more to do with it, the buffer can be used again.
+            }
+            release(c.buffer);
+        }
+        in_flight.clear();
+        channel.close();
+    }
+}
+
+class blockSignatures
+{
+    // Blocks a client may send signatures for, which keeps a DELTA request under 1MB.
+    public static final int MAX_BLOCKS = 1 << 16;
+    public static final int MAX_BLOCK_SIZE = 64 << 20;
+
+    public int block_size;              // Bytes in each block of the client's copy, the last one may have less.
+    public long basis_size;             // Size of the client's copy.
+    public int[] weak;                  // Rolling checksum of each block.
+    public long[] strong;               // First 8 bytes of the MD5 of each block.
+
+    /**
+     * Read the signatures sent after a DELTA request: the block size, the size of the client's 
+     * copy, the number of blocks, then each block's rolling checksum (int) and MD5 (long).
+     */
+    public static blockSignatures read(DataInput in) throws IOException
+    {
+        blockSignatures signatures = new blockSignatures();
+        signatures.block_size = in.readInt();
+        signatures.basis_size = in.readLong();
+        int count = in.readInt();
+        if (signatures.block_size <= 0 || signatures.block_size > MAX_BLOCK_SIZE || count < 0 
+            || count > MAX_BLOCKS || signatures.basis_size < 0
+            || count != (signatures.basis_size + signatures.block_size - 1) / signatures.block_size)
+            throw new IOException("Invalid block signatures");
+        signatures.weak = new int[count];
+        signatures.strong = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            signatures.weak[i] = in.readInt();
+            signatures.strong[i] = in.readLong();
+        }
+        return signatures;
+    }
+
+    public int count()
+    {
+        return weak.length;
+    }
+
+    // Bytes in block i, only the last block can be shorter.
+    public int length(int i)
+    {
+        return (int) Math.min(block_size, basis_size - (long) i * block_size);
+    }
+
+    /**
+     * The weak checksum from a and b, as rsync computes them: a is the sum of the bytes 
+     * and b the sum of a after each byte, both kept to 16 bits. Both can be rolled along 
+     * the file a byte at a time.
+     */
+    public static int weak(int a, int b)
+    {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * The strong checksum of length bytes of data from offset, the first 8 bytes of their MD5.
+     */
+    public static long strong(MessageDigest md5, byte[] data, int offset, int length)
+    {
+        md5.update(data, offset, length);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+}
+
+
+class deltaBody implements framedBody
+{
+    private static final int MAX_LITERAL = 65536;   // Bytes of new data sent in one piece at most.
+
+    private ByteBuffer cached;          // The file kept in memory, null when read from the disk.
+    private FileChannel source;         // The file on disk, when not in memory.
+    private long length;                // Size of the file.
+    private blockSignatures signatures; // Blocks of the client's copy.
+    private int block_size;             // Bytes in the client's blocks.
+    private int[] heads;                // First block with each weak checksum's low bits, plus one.
+    private int[] chain;                // Next block with the same low bits, plus one.
+
+    private byte[] buffer;              // Part of the file being scanned.
+    private long buffer_position;       // Position in the file of the buffer's first byte.
+    private int buffer_length = 0;      // Bytes of the file in the buffer.
+    private long position = 0;          // Position in the file of the window being checked.
+    private long literal_start = 0;     // Position of the first byte not sent yet.
+    private boolean rolling = false;    // a and b hold the checksum of the window.
+    private int a, b;                   // Rolling checksum of the window.
+
+    private MessageDigest block_md5;    // Strong checksums of the windows that may match a block.
+    private MessageDigest file_md5;     // Checksum of the whole file, sent at the end.
+    private ByteBuffer frame;           // Instructions being made.
+    private boolean finished = false;   // The end mark and the file's checksum were handed out.
+    private long sent = 0;              // Bytes handed out.
+    private long matched = 0;           // Bytes of the file found in the client's copy.
+
+    /**
+     * Send the file (length bytes, from memory when the cache has it or else from file) as 
+     * what changed since the client's copy described by signatures.
+     */
+    public deltaBody(fileCache.entry cached, File file, long length, blockSignatures signatures) 
+        throws IOException
+    {
+        if (cached != null) this.cached = cached.data.duplicate();
+        else source = new FileInputStream(file).getChannel();
+        this.length = length;
+        this.signatures = signatures;
+        block_size = signatures.block_size;
+        buffer = new byte[Math.max(1 << 20, MAX_LITERAL + 2 * block_size)];
+        try
+        {
+            block_md5 = MessageDigest.getInstance("MD5");
+            file_md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {   // Every Java platform has MD5.
+            throw new IOException(e);
+        }
+
+        // Find blocks by their weak checksum, through a table of chains.
+        heads = new int[Integer.highestOneBit(Math.max(signatures.count(), 1) * 2)];
+        chain = new int[signatures.count()];
+        for (int i = signatures.count() - 1; i >= 0; i--)
+        {
+            int slot = signatures.weak[i] & (heads.length - 1);
+            chain[i] = heads[slot];
+            heads[slot] = i + 1;
+        }
+    }
+
+    public String name()
+    {
+        return "delta";
+    }
+
+    public boolean blocks()
+    {   // Every frame can hash and look up a lot of blocks, and read the file.
+        return true;
+    }
+
+    public Map<String, String> headers()
+    {
+        return Collections.singletonMap("Delta", String.valueOf(block_size));
+    }
+
+    public String toString()
+    {
+        return "delta against " + signatures.count() + " blocks of " + block_size + " bytes"
+            + (cached != null ? " from memory" : "");
+    }
+
+    public long sent()
+    {
+        return sent;
+    }
+
+    /**
+     * The next instructions for rebuilding the file from the client's copy, about chunk bytes 
+     * of them. Each one starts with an int: n > 0 is followed by n bytes of new data, n < 0 
+     * copies block -n - 1 of the client's copy. The last one is 0, followed by the MD5 of the 
+     * whole file so the client knows it rebuilt it right.
+     */
+    public ByteBuffer next(int chunk) throws IOException
+    {
+        if (finished) return null;
+        if (frame == null || frame.capacity() < chunk + MAX_LITERAL + 32)
+            frame = ByteBuffer.allocate(chunk + MAX_LITERAL + 32);
+        frame.clear();
+        while (frame.position() < chunk && !finished) step();
+        frame.flip();
+        sent += frame.remaining();
+        return frame;
+    }
+
+    /**
+     * Check the window at position against the client's blocks. If a block matches, the new 
+     * data before it and the block are added to the instructions, and the window moves past 
+     * it. Otherwise the window moves on by one byte, rolling its checksum along.
+     */
+    private void step() throws IOException
+    {
+        long remaining = length - position;
+        int window = (int) Math.min(block_size, remaining);
+        if (window == 0)
+        {   // End of the file.
+            send_literal();
+            frame.putInt(0).put(file_md5.digest());
+            finished = true;
+            serverStatistics.deltas.increment();
+            serverStatistics.delta_matched.add(matched);
+            return;
+        }
+        boolean rolls_on = remaining > window;      // There is a byte after the window.
+        fill(position + window + (rolls_on ? 1 : 0));
+        int at = (int) (position - buffer_position);
+        if (!rolling)
+        {
+            a = 0;
+            b = 0;
+            for (int i = 0; i < window; i++)
+            {
+                a += buffer[at + i] & 0xff;
+                b += a;
+            }
+            rolling = true;
+        }
+
+        int block = find_block(at, window);
+        if (block >= 0)
+        {   // The client has these bytes already.
+            send_literal();
+            frame.putInt(-(block + 1));
+            file_md5.update(buffer, at, window);
+            position += window;
+            literal_start = position;
+            matched += window;
+            rolling = false;
+            return;
+        }
+
+        // The first byte of the window is new data, move the window past it.
+        int out = buffer[at] & 0xff;
+        if (rolls_on)
+        {
+            a += (buffer[at + window] & 0xff) - out;
+            b += a - window * out;
+        }
+        else
+        {   // Close to the end, the window shrinks. Only the client's last block can still match.
+            a -= out;
+            b -= window * out;
+        }
+        position++;
+        if (position - literal_start >= MAX_LITERAL) send_literal();
+    }
+
+    // Block of the client's copy with the same bytes as the window, or -1.
+    private int find_block(int at, int window)
+    {
+        int weak = blockSignatures.weak(a, b);
+        long strong = 0;
+        boolean strong_known = false;
+        for (int i = heads[weak & (heads.length - 1)]; i != 0; i = chain[i - 1])
+        {
+            int block = i - 1;
+            if (signatures.weak[block] != weak || signatures.length(block) != window) continue;
+            if (!strong_known)
+            {
+                strong = blockSignatures.strong(block_md5, buffer, at, window);
+                strong_known = true;
+            }
+            if (signatures.strong[block] == strong) return block;
+        }
+        return -1;
+    }
+
+    // Add the new data from literal_start up to the window to the instructions.
+    private void send_literal()
+    {
+        int literal = (int) (position - literal_start);
+        if (literal == 0) return;
+        int at = (int) (literal_start - buffer_position);
+        frame.putInt(literal).put(buffer, at, literal);
+        file_md5.update(buffer, at, literal);
+        literal_start = position;
+    }
+
+    // Make sure the buffer holds the file from literal_start up to end, reading more as needed.
+    private void fill(long end) throws IOException
+    {
+        if (end <= buffer_position + buffer_length) return;
+        int keep = (int) (literal_start - buffer_position);
+        System.arraycopy(buffer, keep, buffer, 0, buffer_length - keep);
+        buffer_position = literal_start;
+        buffer_length -= keep;
+        while (buffer_length < buffer.length && buffer_position + buffer_length < length)
+        {
+            long from = buffer_position + buffer_length;
+            int bytes = (int) Math.min(buffer.length - buffer_length, length - from);
+            if (cached != null)
+            {
+                ByteBuffer data = cached.duplicate();
+                data.limit((int) (from + bytes)).position((int) from);
+                data.get(buffer, buffer_length, bytes);
+            }
+            else
+            {
+                bytes = source.read(ByteBuffer.wrap(buffer, buffer_length, bytes), from);
+                if (bytes < 0) throw new EOFException("File shrunk while sending");
+            }
+            buffer_length += bytes;
+        }
+    }
+
+    public void close() throws IOException
+    {
+        if (source != null) source.close();
+    }
+}
+
+class compressionCache
+{
+    /**
+     * A file compressed with one codec, kept on disk. Variants are only good for the 
+     * version of the file they were made from, so they are looked up by the file's name 
+     * and codec, then checked against its modification time and size.
+     */
+    static class variant
+    {
+        final String key;               // Codec and name of the file, as codec:name.
+        final File source;              // The file it was made from.
+        final long modified;            // Last modification time of the file it was made from.
+        final long length;              // Size of the file it was made from.
+        final File file;                // Compressed data, null when the file does not compress.
+        volatile long size;             // Size of the compressed data.
+        volatile long last_access;      // When the variant was last sent, for eviction.
+
+        variant(String key, File source, long modified, long length, File file)
+        {
+            this.key = key;
+            this.source = source;
+            this.modified = modified;
+            this.length = length;
+            this.file = file;
+            last_access = System.nanoTime();
+        }
+    }
+
+    private static final int SAMPLE_SIZE = 16384;       // Bytes of each sample compressed to test a file.
+    private static final double WORTH_IT = 0.9;         // Files must compress to less than 90% of their size.
+    private static final String PREFIX = "variant-";    // Start of the name of every file we write.
+
+    private final ConcurrentHashMap<String, variant> variants = new ConcurrentHashMap<String, variant>();
+    private final AtomicLong used_bytes = new AtomicLong();     // Bytes held by the variants on disk.
+    private final AtomicLong names = new AtomicLong();          // Numbers the variant files.
+
+    private boolean enabled;            // Compress files for the clients that accept it.
+    private File directory;             // Where the variants are written.
+    private long max_bytes;             // Disk space the variants may use, 0 to keep none.
+    private long min_size;              // Files smaller than this are always sent as they are.
+
+    public compressionCache(serverConfig config)
+    {
+        enabled = config.compression;
+        directory = new File(config.compression_cache);
+        max_bytes = config.compression_cache_size;
+        min_size = config.compression_min_size;
+        if (!enabled || max_bytes == 0) return;
+
+        directory.mkdirs();
+        File[] leftovers = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        if (leftovers == null)
+        {   // We cannot write there, compress every time instead.
+            System.out.println(serverTime.current_time() + "Cannot use " + directory 
+                + " for compressed files, they will not be kept");
+            max_bytes = 0;
+            return;
+        }
+        // The variants of an earlier run are not known to us anymore.
+        for (File leftover : leftovers) leftover.delete();
+    }
+
+    /**
+     * Whether open() may compress a file of this size for a client accepting codec, 
+     * which can mean sampling the file or compressing all of it.
+     */
+    public boolean applies(long length, contentCodec codec)
+    {
+        return enabled && codec != null && length >= min_size;
+    }
+
+    /**
+     * The file's data encoded with the codec, or null if it is sent as it is: the file is too 
+     * small, or samples of it did not compress well. Whole files are sent from their variant 
+     * when there is one, otherwise compressed while sending, and kept as a variant for next time. 
+     * Ranges are always compressed while sending.
+     */
+    public encodedBody open(String filename, File file, long[] range, contentCodec codec)
+    {
+        if (!enabled || codec == null) return null;
+        long length = file.length();
+        long modified = file.lastModified();
+        if (length < min_size || range[1] < min_size) return null;
+
+        String name = fileCache.key(filename);
+        String key = (name == null) ? null : codec.name() + ":" + name;
+        variant known = (key == null) ? null : variants.get(key);
+        if (known != null && (known.modified != modified || known.length != length))
+        {   // Made from an older version of the file.
+            remove(known);
+            known = null;
+        }
+        boolean whole = (range[0] == 0 && range[1] == length);
+        try
+        {
+            if (known != null && known.file == null)
+            {   // Sampled before, it does not compress.
+                serverStatistics.not_compressed.increment();
+                return null;
+            }
+            if (known != null && whole)
+            {
+                try
+                {
+                    encodedBody body = new encodedBody(known.file, 0, known.size, codec, true);
+                    known.last_access = System.nanoTime();
+                    serverStatistics.compressed.increment();
+                    serverStatistics.compressed_hits.increment();
+                    return body;
+                }
+                catch (FileNotFoundException | NoSuchFileException e)
+                {   // Evicted while we were opening it (readAhead opens it as a path), compress again.
+                    remove(known);
+                    known = null;
+                }
+            }
+            if (known == null && !compresses(file, length))
+            {   // Remember it, so the file is not sampled again until it changes.
+                if (key != null) variants.put(key, new variant(key, file, modified, length, null));
+                serverStatistics.not_compressed.increment();
+                return null;
+            }
+
+            encodedBody body = new encodedBody(file, range[0], range[1], codec, false);
+            if (whole && key != null && max_bytes > 0 && length <= max_bytes)
+            {   // Keep what we compress, under a name no other client is writing to.
+                body.keep(this, new variant(key, file, modified, length, 
+                    new File(directory, PREFIX + names.incrementAndGet() + "." + codec.name())));
+            }
+            serverStatistics.compressed.increment();
+            return body;
+        }
+        catch (IOException e)
+        {   // If the file cannot be compressed now, it is sent as it is.
+            fileLogging.log_exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * A variant was written completely. It is kept if the file did not change meanwhile.
+     */
+    public void commit(variant pending)
+    {
+        if (pending.source.lastModified() != pending.modified || pending.source.length() != pending.length)
+        {
+            discard(pending);
+            return;
+        }
+        pending.size = pending.file.length();
+        variant previous = variants.put(pending.key, pending);
+        if (previous != null) remove_file(previous);
+        used_bytes.addAndGet(pending.size);
+        if (used_bytes.get() > max_bytes) evict();
+    }
+
+    public void discard(variant pending)
+    {
+        pending.file.delete();
+    }
+
+    /**
+     * Drop the variants of a file that changed on disk, along with those of everything under it 
+     * if it is a directory. A null name means we lost track of the changes, and all are dropped.
+     */
+    public void invalidate(String filename)
+    {
+        String name = (filename == null) ? null : fileCache.key(filename);
+        for (variant known : variants.values())
+        {
+            String known_name = known.key.substring(known.key.indexOf(':') + 1);
+            if (name == null || known_name.equals(name) || known_name.startsWith(name + File.separator))
+                remove(known);
+        }
+    }
+
+    public int count()
+    {
+        return variants.size();
+    }
+
+    public long used_bytes()
+    {
+        return used_bytes.get();
+    }
+
+    /**
+     * Compress a few samples of the file (its start, middle and end) as fast as possible. 
+     * Files already compressed, like images or archives, hardly shrink and are sent as they are.
+     */
+    private static boolean compresses(File file, long length) throws IOException
+    {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        byte[] output = new byte[SAMPLE_SIZE];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long sampled = 0;
+        long compressed = 0;
+        try (FileChannel file_channel = new FileInputStream(file).getChannel())
+        {
+            long[] offsets = (length <= 3 * SAMPLE_SIZE) ? new long[] {0} 
+                : new long[] {0, length / 2, length - SAMPLE_SIZE};
+            for (long offset : offsets)
+            {
+                int bytes = file_channel.read(ByteBuffer.wrap(sample), offset);
+                if (bytes <= 0) continue;
+                deflater.reset();
+                deflater.setInput(sample, 0, bytes);
+                deflater.finish();
+                while (!deflater.finished()) compressed += deflater.deflate(output);
+                sampled += bytes;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        return compressed < sampled * WORTH_IT;
+    }
+
+    /**
+     * Drop the least recently sent variants until they fit in their budget again.
+     */
+    private synchronized void evict()
+    {
+        if (used_bytes.get() <= max_bytes) return;
+        List<variant> oldest_first = new ArrayList<variant>(variants.values());
+        oldest_first.sort((a, b) -> Long.compare(a.last_access, b.last_access));
+        for (variant known : oldest_first)
+        {
+            if (used_bytes.get() <= max_bytes) break;
+            if (known.file != null) remove(known);
+        }
+    }
+
+    private void remove(variant known)
+    {
+        if (variants.remove(known.key, known)) remove_file(known);
+    }
+
+    private void remove_file(variant known)
+    {
+        if (known.file == null) return;
+        known.file.delete();
+        used_bytes.addAndGet(-known.size);
+    }
+}
+
+
+class filesWatcher extends Thread
+{
+    private WatchService watch_service;     // Tells us when something changes in a directory.
+    private Path root;                      // Directory of the files clients can download.
+    private Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>(); // Directory of each key.
+
+    // Called with the path of each changed file, relative to root, or null if changes were lost.
+    private List<Consumer<String>> listeners = new CopyOnWriteArrayList<Consumer<String>>();
+
+    public filesWatcher(Path root) throws IOException
+    {
+        this.root = root;
+        watch_service = root.getFileSystem().newWatchService();
+        register_all(root);
+        setName("files-watcher");
+        setDaemon(true);
+    }
+
+    public void add_listener(Consumer<String> listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Wait for changes in the files directory and report them to the listeners. 
+     * New directories are watched too, so changes deeper in the tree are not missed.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                WatchKey key = watch_service.take();
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null)
+                    {   // Too many changes at once, we cannot tell which files they were.
+                        notify_listeners(null);
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed))
+                        register_all(changed);
+                    notify_listeners(root.relativize(changed).toString());
+                }
+                if (!key.reset()) directories.remove(key);  // The directory is gone.
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Exception e)
+            {   // If something fails, write it to the log file and keep watching.
+                fileLogging.log_exception(e);
+            }
+        }
+    }
+
+    private void notify_listeners(String changed)
+    {
+        for (Consumer<String> listener : listeners) listener.accept(changed);
+    }
+
+    // Watch a directory and everything under it.
+    private void register_all(Path start) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) 
+                throws IOException
+            {
+                WatchKey key = directory.register(watch_service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
+
+
+class serverConsole extends Thread
+{
+    private fileCache cache;    // Popular files kept in memory.
+    private fileCatalog catalog;    // Every file clients can download.
+
+    Scanner sc = new Scanner(System.in);    // Enable server to listen to keyboard inputs.
+
+    public serverConsole(fileCache cache, fileCatalog catalog)
+    {
+        this.cache = cache;
+        this.catalog = catalog;
+        setName("server-console");
+        setDaemon(true);
+    }
+
+    /**
+     * Read commands typed in the server's console. Typing "stats" prints 
+     * the request and file cache counters.
+     */
+    public void run()
+    {
+        while (sc.hasNextLine())
+        {
+            String command = sc.nextLine().trim();
+            if (command.equals("stats"))
+            {
+                System.out.println(serverTime.current_time() + "Requests: " + serverStatistics.tReq.get() 
+                    + " total, " + serverStatistics.sReq.sum() + " successful, " + serverStatistics.bReq.sum() 
+                    + " busy, " + serverStatistics.errors.sum() + " errors, " + serverStatistics.bytes_sent.sum() 
+                    + " bytes sent");
+                System.out.println(serverTime.current_time() + "Latency p50/p99 (ms): queue " 
+                    + millis(serverStatistics.queue_time) + ", first byte " 
+                    + millis(serverStatistics.first_byte_time) + ", transfer " 
+                    + millis(serverStatistics.transfer_time));
+                System.out.println(serverTime.current_time() + "Catalog: " + catalog.count() + " files");
+                System.out.println(serverTime.current_time() + "File cache: " + cache.count() + " files, " 
+                    + cache.used_bytes() + " bytes, " + cache.hits.sum() + " hits, " + cache.misses.sum() 
+                    + " misses, " + cache.evictions.sum() + " evictions");
+                System.out.println(serverTime.current_time() + "Compression: " + serverStatistics.compressed.sum() 
+                    + " files compressed, " + serverStatistics.compressed_hits.sum() + " from compressed variants, " 
+                    + serverStatistics.not_compressed.sum() + " not worth it");
+                System.out.println(serverTime.current_time() + "Delta sync: " + serverStatistics.deltas.sum() 
+                    + " files, " + serverStatistics.delta_matched.sum() + " bytes already at the clients");
+                System.out.println(serverTime.current_time() + "Bandwidth caps: " + serverStatistics.shaped_waits.sum() 
+                    + " waits, " + serverStatistics.shaped_time.sum() / 1000000 + " ms waited");
+                System.out.println(serverTime.current_time() + "Read-ahead: " + serverStatistics.read_ahead_waits.sum() 
+                    + " waits for the disk, " + serverStatistics.read_ahead_time.sum() / 1000000 + " ms waited");
+            }
+            else if (!command.isEmpty())
+            {
+                System.out.println(serverTime.current_time() + "Unknown command " + command + ", try stats");
+            }
+        }
+    }
+
+    private static String millis(latencyHistogram histogram)
+    {
+        return String.format("%.2f/%.2f", histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6);
+    }
+}
+
+
+class serverConfig
+{
+    // Shown when the server is started with an invalid option.
+    public static final String USAGE = 
+        "Usage: java myfileserver.java [--port=n] [--files=path]\n"
+        + "                               [--zero-copy=on|off] [--zero-copy-threshold=bytes]\n"
+        + "                               [--engine=pool|nio|virtual] [--event-loops=n] [--max-concurrent=n]\n"
+        + "                               [--queue-depth=n] [--queue-timeout=ms] [--retry-after=ms]\n"
+        + "                               [--keep-alive-timeout=ms]\n"
+        + "                               [--small-file=bytes] [--max-chunk=bytes] [--max-send-buffer=bytes]\n"
+        + "                               [--compression=on|off] [--compression-min-size=bytes]\n"
+        + "                               [--compression-cache=path] [--compression-cache-size=bytes]\n"
+        + "                               [--integrity-chunk=bytes]\n"
+        + "                               [--read-ahead=n] [--read-ahead-chunk=bytes] [--read-ahead-buffers=n]\n"
+        + "                               [--read-ahead-threads=n]\n"
+        + "                               [--max-egress=bytes/s] [--client-rate=bytes/s] [--connection-rate=bytes/s]\n"
+        + "                               [--priority-size=bytes] [--priority-weight=n]\n"
+        + "                               [--cache-size=bytes] [--cache-max-entry=bytes]\n"
+        + "                               [--metrics-file=path] [--metrics-interval=ms] [--metrics-port=n]\n"
+        + "                               [--log-level=error|info|debug] [--log-file=path] [--log-max-size=bytes]";
+
+    public boolean zero_copy = true;            // Send files with FileChannel.transferTo (sendfile).
+    public long zero_copy_threshold = 65536;    // Files smaller than 64KB are sent with the copy loop.
+
+    public long small_file = 65536;             // Files up to 64KB are sent for latency, bigger ones for throughput.
+    public int max_chunk = 1 << 20;             // Chunks of the copy loop start at 1MB at most.
+    public int max_send_buffer = 4 << 20;       // Socket send buffers asked for big files are 4MB at most.
+
+    public boolean compression = true;          // Compress files for the clients that accept it.
+    public long compression_min_size = 1024;    // Files smaller than 1KB are never compressed.
+    public String compression_cache = "compressed";     // Directory the compressed files are kept in.
+    public long compression_cache_size = 256 << 20;     // Disk space for compressed files, 0 keeps none.
+
+    public int integrity_chunk = 1 << 20;       // Bytes covered by each CRC32C, for clients that ask for them.
+
+    public int read_ahead = 8;                  // Chunks read ahead of sends that copy the file, 0 for none.
+    public int read_ahead_chunk = 256 << 10;    // Bytes read from the disk at once, 256KB.
+    public int read_ahead_buffers = 64;         // Direct buffers shared by every read-ahead, 16MB.
+    public int read_ahead_threads = 4;          // Threads reading ahead for all the transfers.
+
+    public long max_egress = 0;                 // Bytes per second sent to all clients together, 0 for no cap.
+    public long client_rate = 0;                // Bytes per second sent to each client IP, 0 for no cap.
+    public long connection_rate = 0;            // Bytes per second of each transfer, 0 for no cap.
+    public long priority_size = 1 << 20;        // Files up to 1MB get a bigger share of the egress cap.
+    public int priority_weight = 4;             // How many shares they get, bigger files get one.
+
+    public String engine = "pool";              // Serve clients from the thread pool, selector loops or virtual threads.
+    public int event_loops =                    // Number of selector loops, one per core.
+        Runtime.getRuntime().availableProcessors();
+    public int max_concurrent = 10000;          // Number of clients served at once by virtual threads.
+
+    public int queue_depth = 100;               // Number of clients that can wait for a worker.
+    public long queue_timeout = 10000;          // How long a client may wait for a worker, in ms.
+    public long retry_after = 1000;             // Delay suggested to clients turned away, in ms.
+    public long keep_alive_timeout = 15000;     // How long a kept open connection may go without a request, in ms.
+
+    public long cache_size = 64 << 20;          // Memory used to keep popular files, 0 turns the cache off.
+    public long cache_max_entry = 1 << 20;      // Files bigger than 1MB are always read from the disk.
+
+    public int port = 8000;                     // Set the port number of the server.
+    public String files_path = files_path();    // Directory of the files clients can download.
+
+    public String metrics_file = null;          // File the metrics are written to, none by default.
+    public long metrics_interval = 10000;       // How often the metrics file is written, in ms.
+    public int metrics_port = 0;                // Port serving the metrics over HTTP, 0 for none.
+
+    public int log_level = fileLogging.INFO;    // Log clients and their requests, but not the details.
+    public String log_file = "server.log";      // File the log is appended to.
+    public long log_max_size = 10 << 20;        // Size at which the log file is rotated.
+
+    /**
+     * Build the server options from the arguments given when executing the program.
+     * Options are written as --name=value, anything not given keeps its default value.
+     */
+    public static serverConfig parse(String[] args)
+    {
+        serverConfig config = new serverConfig();
+        for (String arg : args)
+        {   // Split the option into its name and value.
+            int split = arg.indexOf('=');
+            String name = (split < 0) ? arg : arg.substring(0, split);
+            String value = (split < 0) ? "" : arg.substring(split + 1);
+
+            switch (name)
+            {
+                case "--port":
+                    config.port = (int) Math.min(parse_number(name, value), 65535);
+                    break;
+                case "--files":
+                    if (value.isEmpty()) throw new IllegalArgumentException("Option " + name + " needs a path");
+                    config.files_path = value.endsWith("/") ? value : value + "/";
+                    break;
+                case "--zero-copy":
+                    config.zero_copy = parse_switch(name, value);
+                    break;
+                case "--zero-copy-threshold":
+                    config.zero_copy_threshold = parse_number(name, value);
+                    break;
+                case "--small-file":
+                    config.small_file = parse_number(name, value);
+                    break;
+                case "--max-chunk":
+                    config.max_chunk = (int) Math.max(adaptiveTransfer.MIN_CHUNK, 
+                        Math.min(parse_number(name, value), 64 << 20));
+                    break;
+                case "--max-send-buffer":
+                    config.max_send_buffer = (int) Math.min(parse_number(name, value), 64 << 20);
+                    break;
+                case "--compression":
+                    config.compression = parse_switch(name, value);
+                    break;
+                case "--compression-min-size":
+                    config.compression_min_size = parse_number(name, value);
+                    break;
+                case "--compression-cache":
+                    if (value.isEmpty()) throw new IllegalArgumentException("Option " + name + " needs a path");
+                    config.compression_cache = value;
+                    break;
+                case "--compression-cache-size":
+                    config.compression_cache_size = parse_number(name, value);
+                    break;
+                case "--integrity-chunk":
+                    config.integrity_chunk = (int) Math.max(adaptiveTransfer.MIN_CHUNK, 
+                        Math.min(parse_number(name, value), 64 << 20));
+                    break;
+                case "--read-ahead":
+                    config.read_ahead = (int) Math.min(parse_number(name, value), 256);
+                    break;
+                case "--read-ahead-chunk":
+                    config.read_ahead_chunk = (int) Math.max(4096, Math.min(parse_number(name, value), 64 << 20));
+                    break;
+                case "--read-ahead-buffers":
+                    config.read_ahead_buffers = (int) Math.max(1, Math.min(parse_number(name, value), 65536));
+                    break;
+                case "--read-ahead-threads":
+                    config.read_ahead_threads = (int) Math.max(1, Math.min(parse_number(name, value), 256));
+                    break;
+                case "--max-egress":
+                    config.max_egress = parse_number(name, value);
+                    break;
+                case "--client-rate":
+                    config.client_rate = parse_number(name, value);
+                    break;
+                case "--connection-rate":
+                    config.connection_rate = parse_number(name, value);
+                    break;
+                case "--priority-size":
+                    config.priority_size = parse_number(name, value);
+                    break;
+                case "--priority-weight":
+                    config.priority_weight = (int) Math.max(1, Math.min(parse_number(name, value), 1000));
+                    break;
+                case "--engine":
+                    if (!value.equals("pool") && !value.equals("nio") && !value.equals("virtual"))
+                        throw new IllegalArgumentException("Option " + name + " must be pool, nio or virtual");
+                    config.engine = value;
+                    break;
+                case "--event-loops":
+                    config.event_loops = (int) Math.max(1, parse_number(name, value));
+                    break;
+                case "--max-concurrent":
+                    config.max_concurrent = (int) Math.max(1, parse_number(name, value));
+                    break;
+                case "--queue-depth":
+                    config.queue_depth = (int) Math.max(1, parse_number(name, value));
+                    break;
+                case "--queue-timeout":
+                    config.queue_timeout = parse_number(name, value);
+                    break;
+                case "--retry-after":
+                    config.retry_after = parse_number(name, value);
+                    break;
+                case "--keep-alive-timeout":
+                    config.keep_alive_timeout = parse_number(name, value);
+                    break;
+                case "--cache-size":
+                    config.cache_size = parse_number(name, value);
+                    break;
+                case "--cache-max-entry":
+                    config.cache_max_entry = parse_number(name, value);
+                    break;
+                case "--metrics-file":
+                    if (value.isEmpty()) throw new IllegalArgumentException("Option " + name + " needs a path");
+                    config.metrics_file = value;
+                    break;
+                case "--metrics-interval":
+                    config.metrics_interval = Math.max(100, parse_number(name, value));
+                    break;
+                case "--metrics-port":
+                    config.metrics_port = (int) Math.min(parse_number(name, value), 65535);
+                    break;
+                case "--log-level":
+                    switch (value)
+                    {
+                        case "error":   config.log_level = fileLogging.ERROR; break;
+                        case "info":    config.log_level = fileLogging.INFO; break;
+                        case "debug":   config.log_level = fileLogging.DEBUG; break;
+                        default:
+                            throw new IllegalArgumentException("Option " + name + " must be error, info or debug");
+                    }
+                    break;
+                case "--log-file":
+                    if (value.isEmpty()) throw new IllegalArgumentException("Option " + name + " needs a path");
+                    config.log_file = value;
+                    break;
+                case "--log-max-size":
+                    config.log_max_size = Math.max(4096, parse_number(name, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return config;
+    }
+
+    // The files directory sits next to the server's .java file.
+    static String files_path()
+    {
+        try
+        {
+            String java_file_path =     // Set the .java file's directory to the variable.
+                myfileserver.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+            // Remove the filename from the path.
+            return java_file_path.substring(0, java_file_path.lastIndexOf("/") + 1) + "files/";
+        }
+        catch (URISyntaxException e)
+        {   // Fall back to the directory the server was started from.
+            return "files/";
+        }
+    }
+
+    // Read an on/off option, the option alone (--zero-copy) also turns it on.
+    static boolean parse_switch(String name, String value)
+    {
+        switch (value.toLowerCase())
+        {
+            case "": case "on": case "true": case "yes":
+                return true;
+            case "off": case "false": case "no":
+                return false;
+            default:
+                throw new IllegalArgumentException("Option " + name + " must be on or off");
+        }
+    }
+
+    // Read a positive number option.
+    static long parse_number(String name, String value)
+    {
+        try
+        {
+            long number = Long.parseLong(value);
+            if (number >= 0) return number;
+        }
+        catch (NumberFormatException e) {}
+        throw new IllegalArgumentException("Option " + name + " must be a positive number");
+    }
+}
+
+
+class serverStatistics
+{
+    // Counters are updated by every worker at once. LongAdder spreads the updates over several 
+    // cells so the workers do not fight over one value, tReq also numbers the requests so it 
+    // has to be a single AtomicLong.
+    public static final AtomicLong tReq = new AtomicLong();         // Maintains count of total requests.
+    public static final LongAdder sReq = new LongAdder();           // Maintains count of successful requests.
+    public static final LongAdder bReq = new LongAdder();           // Maintains count of clients turned away while busy.
+    public static final LongAdder bytes_sent = new LongAdder();     // File data sent to clients.
+    public static final LongAdder errors = new LongAdder();         // Conversations that ended with an exception.
+    public static final LongAdder compressed = new LongAdder();     // Files sent compressed.
+    public static final LongAdder compressed_hits = new LongAdder();    // Of those, sent from a compressed variant.
+    public static final LongAdder not_compressed = new LongAdder(); // Files sent as they are after sampling.
+    public static final LongAdder deltas = new LongAdder();         // Files sent as what changed since the client's copy.
+    public static final LongAdder delta_matched = new LongAdder();  // Bytes of those the clients already had.
+    public static final LongAdder shaped_waits = new LongAdder();   // Times a transfer waited for the bandwidth caps.
+    public static final LongAdder shaped_time = new LongAdder();    // Time spent waiting for them, in ns.
+    public static final LongAdder read_ahead_waits = new LongAdder();   // Times a send waited for the disk.
+    public static final LongAdder read_ahead_time = new LongAdder();    // Time spent waiting for it, in ns.
+
+    // Times in nanoseconds, and throughput in bytes per second.
+    public static final latencyHistogram queue_time = new latencyHistogram();       // From accept to a worker.
+    public static final latencyHistogram first_byte_time = new latencyHistogram();  // From request to the file's first byte.
+    public static final latencyHistogram transfer_time = new latencyHistogram();    // From request to the file's last byte.
+    public static final latencyHistogram throughput = new latencyHistogram();       // Of each file transfer.
+
+    /**
+     * Record a file sent to a client, elapsed is the time since its request was received.
+     */
+    public static void transfer_complete(long bytes, long elapsed)
+    {
+        bytes_sent.add(bytes);
+        transfer_time.record(elapsed);
+        if (elapsed > 0) throughput.record((long) (bytes * 1e9 / elapsed));
+    }
+
+    /**
+     * All the metrics in the Prometheus text format, 
+     * see https://prometheus.io/docs/instrumenting/exposition_formats/
+     */
+    public static String prometheus(fileCache cache)
+    {
+        StringBuilder text = new StringBuilder();
+        counter(text, "fds_requests_total", "Requests received.", tReq.get());
+        counter(text, "fds_requests_successful_total", "Requests answered with the file.", sReq.sum());
+        counter(text, "fds_requests_busy_total", "Clients turned away while busy.", bReq.sum());
+        counter(text, "fds_sent_bytes_total", "File data sent to clients.", bytes_sent.sum());
+        counter(text, "fds_errors_total", "Conversations that ended with an error.", errors.sum());
+        counter(text, "fds_cache_hits_total", "Files sent from memory.", cache.hits.sum());
+        counter(text, "fds_cache_misses_total", "Files read from the disk.", cache.misses.sum());
+        counter(text, "fds_cache_evictions_total", "Files dropped from memory to make room.", cache.evictions.sum());
+        counter(text, "fds_compressed_total", "Files sent compressed.", compressed.sum());
+        counter(text, "fds_compressed_hits_total", "Files sent from a compressed variant kept on disk.", 
+            compressed_hits.sum());
+        counter(text, "fds_not_compressed_total", "Files sent as they are, samples did not compress.", 
+            not_compressed.sum());
+        counter(text, "fds_deltas_total", "Files sent as what changed since the client's copy.", deltas.sum());
+        counter(text, "fds_delta_matched_bytes_total", "Bytes of those files the clients already had.", 
+            delta_matched.sum());
+        counter(text, "fds_shaped_waits_total", "Times a transfer waited for the bandwidth caps.", shaped_waits.sum());
+        counter(text, "fds_shaped_wait_seconds_total", "Time transfers waited for the bandwidth caps.", 
+            shaped_time.sum() / 1e9);
+        counter(text, "fds_read_ahead_waits_total", "Times a send waited for the disk, nothing read ahead.", 
+            read_ahead_waits.sum());
+        counter(text, "fds_read_ahead_wait_seconds_total", "Time sends waited for the disk.", 
+            read_ahead_time.sum() / 1e9);
+        text.append("# TYPE fds_cache_bytes gauge\nfds_cache_bytes ").append(cache.used_bytes()).append('\n');
+        queue_time.summary(text, "fds_queue_seconds", "Time from accept to a worker.", 1e9);
+        first_byte_time.summary(text, "fds_first_byte_seconds", "Time from request to the file's first byte.", 1e9);
+        transfer_time.summary(text, "fds_transfer_seconds", "Time from request to the file's last byte.", 1e9);
+        throughput.summary(text, "fds_transfer_bytes_per_second", "Throughput of each file transfer.", 1);
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Counters of time, in seconds with their fraction.
+    private static void counter(StringBuilder text, String name, String help, double value)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
+
+
+class latencyHistogram
+{
+    // Values below SUB_BUCKETS each have their own bucket. Above that, every power of two is split 
+    // into SUB_BUCKETS buckets, so a bucket is never wider than 1/8 of its values (like HdrHistogram).
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Recording only adds to these, so workers never wait on each other, or allocate anything.
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {}
+    }
+
+    /**
+     * Value under which the given fraction of the recorded values fall, 
+     * accurate to the width of its bucket. Returns 0 when nothing was recorded.
+     */
+    public long percentile(double fraction)
+    {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) total += (snapshot[i] = counts.get(i));
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) return Math.min(bucket_top(i), max.get());
+        }
+        return 0;
+    }
+
+    public long count()
+    {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Write the histogram as a Prometheus summary, values divided by unit (1e9 for seconds).
+     */
+    public void summary(StringBuilder text, String name, String help, double unit)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999})
+        {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                .append(percentile(quantile) / unit).append('\n');
+        }
+        text.append(name).append("_sum ").append(sum.sum() / unit).append('\n');
+        text.append(name).append("_count ").append(count()).append('\n');
+    }
+
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub_bucket;
+    }
+
+    // Largest value that falls in the bucket.
+    private static long bucket_top(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub_bucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + sub_bucket * width + width - 1;
+    }
+}
+
+
+class metricsExporter extends Thread
+{
+    private serverConfig config;    // Options the server was started with.
+    private fileCache cache;        // Popular files kept in memory, its counters are exported too.
+
+    public metricsExporter(serverConfig config, fileCache cache)
+    {
+        this.config = config;
+        this.cache = cache;
+        setName("metrics-exporter");
+        setDaemon(true);
+    }
+
+    /**
+     * Serve the metrics at http://host:port/metrics, for Prometheus or curl.
+     */
+    public void start_endpoint() throws IOException
+    {
+        HttpServer endpoint = HttpServer.create(new InetSocketAddress(config.metrics_port), 0);
+        endpoint.createContext("/metrics", exchange -> 
+        {
+            byte[] body = serverStatistics.prometheus(cache).getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        endpoint.start();
+        System.out.println(serverTime.current_time() + "Metrics served at http://127.0.0.1:" 
+            + config.metrics_port + "/metrics");
+    }
+
+    /**
+     * Write a snapshot of the metrics to the metrics file every --metrics-interval ms. 
+     * The file is replaced in one move, so readers never see half of it.
+     */
+    public void run()
+    {
+        Path metrics_file = Paths.get(config.metrics_file);
+        Path temporary_file = Paths.get(config.metrics_file + ".tmp");
+        while (true)
+        {
+            try
+            {
+                Files.write(temporary_file, serverStatistics.prometheus(cache).getBytes("UTF-8"));
+                Files.move(temporary_file, metrics_file, StandardCopyOption.REPLACE_EXISTING, 
+                    StandardCopyOption.ATOMIC_MOVE);
+                Thread.sleep(config.metrics_interval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Exception e)
+            {   // If the file cannot be written, write it to the log file and try again later.
+                fileLogging.log_exception(e);
+                try
+                {
+                    Thread.sleep(config.metrics_interval);
+                }
+                catch (InterruptedException ie)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
+
+
+class serverTime
+{   // Setting up variables to show time of ouputs.
+    private static final DateTimeFormatter time_format = 
+        DateTimeFormatter.ofPattern("'['HH:mm:ss.SSS'] '").withZone(ZoneId.systemDefault());
+
+    // The last timestamp made. Workers asking within the same millisecond share it.
+    private static volatile timestamp last = new timestamp(0, "");
+
+    private static final class timestamp
+    {
+        final long millis;
+        final String text;
+
+        timestamp(long millis, String text)
+        {
+            this.millis = millis;
+            this.text = text;
+        }
+    }
+
+    public static String current_time()
+    {
+        return format(System.currentTimeMillis());
+    }
+
+    /**
+     * Time of day of the given time in ms, as "[HH:mm:ss.SSS] ". DateTimeFormatter can be 
+     * shared by all threads, unlike the SimpleDateFormat used before.
+     */
+    public static String format(long millis)
+    {
+        timestamp cached = last;
+        if (cached.millis == millis) return cached.text;
+        String text = time_format.format(Instant.ofEpochMilli(millis));
+        last = new timestamp(millis, text);
+        return text;
+    }
+}
+
+
+
+class fileLogging
+{
+    // Levels of the log, each one shows everything from the levels before it.
+    public static final int ERROR = 0;      // Exceptions only, written to the log file.
+    public static final int INFO = 1;       // Clients connecting, and their requests.
+    public static final int DEBUG = 2;      // Details of how each request is answered.
+
+    private static volatile int level = INFO;                   // Events above this level are skipped.
+    private static final logRing events = new logRing(8192);    // Events waiting for the writer thread.
+    private static final AtomicLong dropped = new AtomicLong(); // Events lost because the ring was full.
+
+    private static String log_path = "server.log";     // File storing the log.
+    private static long max_size = 10 << 20;            // Size at which the log file is rotated.
+    private static final int KEPT_FILES = 3;            // Rotated files kept, server.log.1 being the newest.
+
+    private static Thread writer;           // Writes the events, so workers never wait on the disk or console.
+    private static Writer log_out;          // Appends to the log file.
+    private static long log_size;           // Bytes in the log file so far.
+
+    /**
+     * Apply the log options and start the writer thread. Events logged
+     * before this wait in the ring until the writer starts.
+     */
+    public static synchronized void start(serverConfig config)
+    {
+        level = config.log_level;
+        log_path = config.log_file;
+        max_size = config.log_max_size;
+        if (writer != null) return;
+
+        writer = new Thread(fileLogging::write_events);
+        writer.setName("log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Write what is left in the ring when the server stops.
+        Runtime.getRuntime().addShutdownHook(new Thread(fileLogging::drain));
+    }
+
+    /**
+     * Whether events of this level are logged, to skip building messages nobody will see.
+     */
+    public static boolean enabled(int event_level)
+    {
+        return event_level <= level;
+    }
+
+    public static void info(String message)
+    {
+        if (INFO <= level) log(INFO, message, null);
+    }
+
+    public static void debug(String message)
+    {
+        if (DEBUG <= level) log(DEBUG, message, null);
+    }
+
+    /*
+     * Function to print the stack trace from exceptions into a log file,
+     * instead of printing it to the screen.
+     */
+    public static void log_exception(Exception ex)
+    {
+        log(ERROR, null, ex);
+    }
+
+    // Hand the event to the writer thread. Never blocks, if the ring is full the event is dropped.
+    private static void log(int event_level, String message, Throwable error)
+    {
+        if (!events.offer(System.currentTimeMillis(), event_level, message, error)) dropped.incrementAndGet();
+    }
+
+    /**
+     * Body of the writer thread. Takes every event waiting in the ring at once, and writes
+     * them with one call to the console and one to the log file.
+     */
+    private static void write_events()
+    {
+        while (true)
+        {
+            if (drain() == 0) LockSupport.parkNanos(1000000);  // Nothing to write, check again in 1 ms.
+        }
+    }
+
+    // Write the events waiting in the ring, returns how many there were.
+    private static synchronized int drain()
+    {
+        StringBuilder console = new StringBuilder();
+        StringBuilder file = new StringBuilder();
+        int count = 0;
+        logRing.event event;
+        while ((event = events.peek()) != null)
+        {
+            String line = serverTime.format(event.time) + (event.message != null ? event.message : "");
+            if (event.error != null)
+            {   // Turn the exception stack trace into a string, only the log file gets it.
+                StringWriter sw = new StringWriter();
+                event.error.printStackTrace(new PrintWriter(sw));
+                file.append(line).append(sw).append(System.lineSeparator());
+            }
+            else
+            {
+                console.append(line).append(System.lineSeparator());
+                file.append(line).append(System.lineSeparator());
+            }
+            events.release();
+            count++;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+        {
+            String line = serverTime.current_time() + lost + " log events dropped, the log could not keep up";
+            console.append(line).append(System.lineSeparator());
+            file.append(line).append(System.lineSeparator());
+        }
+        if (count == 0 && lost == 0) return 0;
+
+        if (console.length() > 0)
+        {
+            System.out.print(console);
+            System.out.flush();
+        }
+        write_file(file);
+        return count;
+    }
+
+    // Append to the log file, starting a new one when it gets too big.
+    private static void write_file(StringBuilder text)
+    {
+        try
+        {
+            if (log_out == null)
+            {   // Append to what earlier runs of the server wrote.
+                File log_file = new File(log_path);
+                log_size = log_file.length();
+                log_out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(log_file, true), "UTF-8"));
+            }
+            log_out.append(text);
+            log_out.flush();
+            log_size += text.length();
+            if (log_size >= max_size) rotate();
+        }
+        catch (IOException e)
+        {   // Nowhere left to log it, show it on the screen instead.
+            e.printStackTrace();
+            log_out = null;
+        }
+    }
+
+    // Move server.log to server.log.1, server.log.1 to server.log.2, and so on.
+    private static void rotate() throws IOException
+    {
+        log_out.close();
+        log_out = null;
+        for (int i = KEPT_FILES - 1; i >= 0; i--)
+        {
+            Path from = Paths.get(i == 0 ? log_path : log_path + "." + i);
+            if (Files.exists(from)) Files.move(from, Paths.get(log_path + "." + (i + 1)),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
+
+
+class logRing
+{
+    /**
+     * A slot of the ring. Slots are made once and reused,
+     * so logging an event does not allocate one.
+     */
+    static final class event
+    {
+        long time;          // When the event happened, in ms.
+        int level;          // fileLogging level of the event.
+        String message;     // Line to write.
+        Throwable error;    // Exception to write, with its stack trace.
+    }
+
+    // Bounded queue for many producers and one consumer (Dmitry Vyukov's design). Each slot
+    // has a sequence number telling whether it is free for a given producer turn, or filled
+    // and ready for the consumer. Producers claim a turn with a CAS on tail, nobody ever locks.
+    private final event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();   // Next turn for producers.
+    private long head = 0;                              // Next turn for the consumer, only it uses this.
+
+    public logRing(int capacity)
+    {   // Capacity must be a power of two.
+        slots = new event[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+        {
+            slots[i] = new event();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an event, returns false without waiting if the ring is full.
+     */
+    public boolean offer(long time, int level, String message, Throwable error)
+    {
+        while (true)
+        {
+            long turn = tail.get();
+            int index = (int) turn & mask;
+            long sequence = sequences.get(index);
+            if (sequence == turn)
+            {   // The slot is free, try to claim it.
+                if (!tail.compareAndSet(turn, turn + 1)) continue;
+                event slot = slots[index];
+                slot.time = time;
+                slot.level = level;
+                slot.message = message;
+                slot.error = error;
+                sequences.lazySet(index, turn + 1);     // Hand the slot to the consumer.
+                return true;
+            }
+            if (sequence < turn) return false;          // The consumer has not freed this slot yet.
+        }
+    }
+
+    /**
+     * The oldest event, or null if there is none. It stays in the ring until release().
+     */
+    public event peek()
+    {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) return null;
+        return slots[index];
+    }
+
+    /**
+     * Free the slot of the event returned by peek() for the producers.
+     */
+    public void release()
+    {
+        int index = (int) head & mask;
+        event slot = slots[index];
+        slot.message = null;
+        slot.error = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
     }
 }
\ No newline at end of file
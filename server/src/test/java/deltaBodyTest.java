@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Delta instructions made against signatures of the client's copy, rebuilt the way the
+ * client's deltaPatch rebuilds them.
+ */
+class deltaBodyTest
+{
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    // Signatures of data, as the client sends them.
+    private static blockSignatures signatures(byte[] data) throws NoSuchAlgorithmException
+    {
+        blockSignatures signatures = new blockSignatures();
+        signatures.block_size = BLOCK_SIZE;
+        signatures.basis_size = data.length;
+        int count = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        signatures.weak = new int[count];
+        signatures.strong = new long[count];
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < count; i++)
+        {
+            int length = signatures.length(i);
+            int a = 0, b = 0;
+            for (int j = 0; j < length; j++)
+            {
+                a += data[i * BLOCK_SIZE + j] & 0xff;
+                b += a;
+            }
+            signatures.weak[i] = blockSignatures.weak(a, b);
+            signatures.strong[i] = blockSignatures.strong(md5, data, i * BLOCK_SIZE, length);
+        }
+        return signatures;
+    }
+
+    // Every frame of the body, one after the other.
+    private static ByteBuffer instructions(framedBody body) throws IOException
+    {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteBuffer frame;
+        while ((frame = body.next(4096)) != null)
+        {
+            assertTrue(frame.remaining() > 0, "Frames are never empty");
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            frames.write(bytes);
+        }
+        body.close();
+        return ByteBuffer.wrap(frames.toByteArray());
+    }
+
+    // The file rebuilt from the instructions and basis, checked against the MD5 at the end.
+    private static byte[] rebuild(ByteBuffer instructions, byte[] basis) throws NoSuchAlgorithmException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int instruction;
+        while ((instruction = instructions.getInt()) != 0)
+        {
+            if (instruction > 0)
+            {   // New data.
+                byte[] literal = new byte[instruction];
+                instructions.get(literal);
+                out.write(literal, 0, literal.length);
+            }
+            else
+            {   // A block of the basis.
+                int block = -(instruction + 1);
+                int length = Math.min(BLOCK_SIZE, basis.length - block * BLOCK_SIZE);
+                out.write(basis, block * BLOCK_SIZE, length);
+            }
+        }
+        byte[] expected = new byte[16];
+        instructions.get(expected);
+        assertFalse(instructions.hasRemaining());
+        byte[] rebuilt = out.toByteArray();
+        assertArrayEquals(expected, MessageDigest.getInstance("MD5").digest(rebuilt));
+        return rebuilt;
+    }
+
+    private static byte[] random(int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private deltaBody from_file(byte[] data, byte[] basis) throws Exception
+    {
+        File file = Files.write(directory.resolve("file.bin"), data).toFile();
+        return new deltaBody(null, file, data.length, signatures(basis));
+    }
+
+    private static deltaBody from_memory(byte[] data, byte[] basis) throws Exception
+    {
+        fileCache.entry cached = new fileCache.entry("file.bin", null, ByteBuffer.wrap(data), 0);
+        return new deltaBody(cached, null, data.length, signatures(basis));
+    }
+
+    @Test
+    void sends_only_blocks_for_an_unchanged_file() throws Exception
+    {
+        byte[] basis = random(10 * BLOCK_SIZE + 300, 1);
+        ByteBuffer instructions = instructions(from_file(basis, basis));
+        // 11 block copies, the end mark and the MD5.
+        assertEquals(11 * 4 + 4 + 16, instructions.remaining());
+        assertArrayEquals(basis, rebuild(instructions, basis));
+    }
+
+    @Test
+    void rebuilds_a_file_with_inserted_and_removed_data() throws Exception
+    {
+        byte[] basis = random(64 * BLOCK_SIZE + 17, 2);
+        byte[] data = concat(Arrays.copyOfRange(basis, 0, 20 * BLOCK_SIZE + 5), random(333, 3),
+            Arrays.copyOfRange(basis, 20 * BLOCK_SIZE + 5, 40 * BLOCK_SIZE),
+            Arrays.copyOfRange(basis, 41 * BLOCK_SIZE + 100, basis.length), random(5000, 4));
+        for (deltaBody body : new deltaBody[] {from_file(data, basis), from_memory(data, basis)})
+        {
+            ByteBuffer instructions = instructions(body);
+            assertTrue(instructions.remaining() < data.length / 4, "Most of the file is found in the basis");
+            assertArrayEquals(data, rebuild(instructions, basis));
+        }
+    }
+
+    @Test
+    void sends_new_files_as_data() throws Exception
+    {
+        byte[] data = random(200000, 5);
+        assertArrayEquals(data, rebuild(instructions(from_memory(data, new byte[0])), new byte[0]));
+        byte[] other = random(3 * BLOCK_SIZE, 6);
+        assertArrayEquals(data, rebuild(instructions(from_memory(data, other)), other));
+    }
+
+    @Test
+    void rebuilds_empty_and_shrunk_files() throws Exception
+    {
+        byte[] basis = random(5 * BLOCK_SIZE, 7);
+        assertArrayEquals(new byte[0], rebuild(instructions(from_memory(new byte[0], basis)), basis));
+        byte[] head = Arrays.copyOf(basis, 2 * BLOCK_SIZE + 10);
+        assertArrayEquals(head, rebuild(instructions(from_memory(head, basis)), basis));
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The requests the server reads and the status it writes back, byte for byte as the
+ * clients send and read them.
+ */
+class fileRequestTest
+{
+    // An extended request, written the way newer clients write it.
+    private static DataInputStream extended(int version, String command, String filename, String... headers)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(fileRequest.REQUEST_MAGIC);
+        out.writeInt(version);
+        out.writeUTF(command);
+        out.writeUTF(filename);
+        out.writeInt(headers.length / 2);
+        for (String header : headers) out.writeUTF(header);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static fileRequest with_range(String range) throws IOException
+    {
+        return fileRequest.read(extended(2, fileRequest.GET, "file.txt", "Range", range));
+    }
+
+    @Test
+    void reads_a_plain_filename() throws IOException
+    {   // Older clients only send the filename.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF("ascii.txt");
+        fileRequest request = fileRequest.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(1, request.version);
+        assertEquals(fileRequest.GET, request.command);
+        assertEquals("ascii.txt", request.filename);
+        assertFalse(request.extended());
+        assertFalse(request.keep_alive());
+        assertArrayEquals(new long[] {0, 100}, request.range(100));
+    }
+
+    @Test
+    void reads_an_extended_request() throws IOException
+    {
+        fileRequest request = fileRequest.read(extended(3, fileRequest.GET, "dir/file.bin",
+            "Connection", "Keep-Alive", "Integrity", "crc32c", "Receive-Buffer", "131072"));
+        assertEquals(3, request.version);
+        assertEquals("dir/file.bin", request.filename);
+        assertTrue(request.extended());
+        assertTrue(request.keep_alive());
+        assertTrue(request.integrity());
+        assertEquals(131072, request.receive_buffer());
+        assertTrue(request.sends_file());
+        assertFalse(request.catalog());
+    }
+
+    @Test
+    void reads_catalog_commands() throws IOException
+    {
+        fileRequest list = fileRequest.read(extended(3, fileRequest.LIST, "dir/"));
+        assertTrue(list.catalog());
+        assertFalse(list.sends_file());
+        assertEquals("Listing complete", list.catalog_complete());
+        assertEquals("Archive complete", fileRequest.read(extended(3, fileRequest.ARCHIVE, "*.txt")).catalog_complete());
+    }
+
+    @Test
+    void ignores_a_badly_written_receive_buffer() throws IOException
+    {
+        assertEquals(0, fileRequest.read(extended(2, fileRequest.GET, "f", "Receive-Buffer", "lots")).receive_buffer());
+        assertEquals(0, fileRequest.read(extended(2, fileRequest.GET, "f", "Receive-Buffer", "-5")).receive_buffer());
+    }
+
+    @Test
+    void refuses_too_many_headers() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(fileRequest.REQUEST_MAGIC);
+        out.writeInt(2);
+        out.writeUTF(fileRequest.GET);
+        out.writeUTF("f");
+        out.writeInt(65);
+        assertThrows(IOException.class, () ->
+            fileRequest.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    void reads_the_signatures_of_a_delta() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(fileRequest.REQUEST_MAGIC);
+        out.writeInt(3);
+        out.writeUTF(fileRequest.DELTA);
+        out.writeUTF("f");
+        out.writeInt(0);
+        out.writeInt(1024);         // Block size.
+        out.writeLong(2500);        // Size of the client's copy, in 3 blocks.
+        out.writeInt(3);
+        for (int i = 0; i < 3; i++)
+        {
+            out.writeInt(i + 1);
+            out.writeLong(-(i + 1));
+        }
+        fileRequest request = fileRequest.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(request.sends_file());
+        assertEquals(3, request.signatures.count());
+        assertEquals(1024, request.signatures.length(1));
+        assertEquals(452, request.signatures.length(2));
+        assertArrayEquals(new int[] {1, 2, 3}, request.signatures.weak);
+        assertArrayEquals(new long[] {-1, -2, -3}, request.signatures.strong);
+    }
+
+    @Test
+    void refuses_signatures_that_do_not_cover_the_copy() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1024);
+        out.writeLong(2500);
+        out.writeInt(2);            // 2500 bytes take 3 blocks.
+        assertThrows(IOException.class, () ->
+            blockSignatures.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    void works_out_the_range() throws IOException
+    {
+        assertArrayEquals(new long[] {10, 10}, with_range("bytes=10-19").range(100));
+        assertArrayEquals(new long[] {10, 90}, with_range("bytes=10-").range(100));
+        // The last byte is kept within the file.
+        assertArrayEquals(new long[] {90, 10}, with_range("bytes=90-500").range(100));
+        // Starting right at the end is an empty range, what a finished download resumes with.
+        assertArrayEquals(new long[] {100, 0}, with_range("bytes=100-").range(100));
+        assertArrayEquals(new long[] {0, 0}, with_range("bytes=0-").range(0));
+    }
+
+    @Test
+    void refuses_ranges_outside_of_the_file() throws IOException
+    {   // Each of these gets a 416.
+        assertNull(with_range("bytes=101-").range(100));
+        assertNull(with_range("bytes=50-10").range(100));
+        assertNull(with_range("bytes=-10").range(100));
+        assertNull(with_range("bytes=a-b").range(100));
+        assertNull(with_range("bytes=10").range(100));
+        assertNull(with_range("items=0-10").range(100));
+    }
+
+    @Test
+    void writes_the_status_of_a_partial_file() throws IOException
+    {
+        fileRequest request = fileRequest.read(extended(2, fileRequest.GET, "f",
+            "Connection", "keep-alive", "Range", "bytes=10-19"));
+        long[] range = request.range(100);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.write_status(new DataOutputStream(bytes), fileRequest.PARTIAL, range, 100,
+            Collections.singletonMap("Integrity", "crc32c"));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(fileRequest.PARTIAL, in.readInt());
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--) headers.put(in.readUTF(), in.readUTF());
+        assertEquals(0, in.available());
+        assertEquals("keep-alive", headers.get("Connection"));
+        assertEquals("10", headers.get("Content-Length"));
+        assertEquals("bytes 10-19/100", headers.get("Content-Range"));
+        assertEquals("crc32c", headers.get("Integrity"));
+    }
+
+    @Test
+    void writes_the_status_of_a_range_not_satisfiable() throws IOException
+    {
+        fileRequest request = with_range("bytes=200-");
+        long[] range = request.range(100);
+        assertNull(range);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.write_status(new DataOutputStream(bytes), fileRequest.RANGE_NOT_SATISFIABLE, range, 100, null);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(fileRequest.RANGE_NOT_SATISFIABLE, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals("Content-Range", in.readUTF());
+        assertEquals("bytes */100", in.readUTF());
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The GCRA bucket behind the bandwidth caps: a burst goes at once, past it every byte is
+ * paid for at the rate, however many threads take from it.
+ */
+class tokenBucketTest
+{
+    private static final long MS = 1000000;
+
+    @Test
+    void lets_a_burst_go_without_waiting()
+    {   // 1MB/s with 100ms of burst, 100KB go at once.
+        tokenBucket bucket = new tokenBucket(1000000, 100 * MS);
+        for (int i = 0; i < 9; i++) assertEquals(0, bucket.take(10000));
+    }
+
+    @Test
+    void waits_for_what_goes_past_the_burst()
+    {
+        tokenBucket bucket = new tokenBucket(1000000, 100 * MS);
+        bucket.take(100000);
+        // 50KB more is 50ms of debt, less whatever time went by since.
+        long wait = bucket.take(50000);
+        assertTrue(wait > 40 * MS && wait <= 50 * MS, "Waits " + wait + " ns");
+        long next = bucket.take(50000);
+        assertTrue(next > wait + 40 * MS && next <= wait + 50 * MS, "Waits " + next + " ns");
+    }
+
+    @Test
+    void refills_while_idle() throws InterruptedException
+    {
+        tokenBucket bucket = new tokenBucket(1000000, 20 * MS);
+        bucket.take(40000);
+        Thread.sleep(60);
+        // The debt is paid back and the burst is there again, but no more than that.
+        assertEquals(0, bucket.take(20000));
+        assertTrue(bucket.take(20000) > 0);
+    }
+
+    @Test
+    void follows_a_new_rate()
+    {
+        tokenBucket bucket = new tokenBucket(1000000, 0);
+        bucket.rate = 10000000;
+        long wait = bucket.take(100000);
+        assertTrue(wait > 5 * MS && wait <= 10 * MS, "Waits " + wait + " ns");
+    }
+
+    @Test
+    void counts_every_take_from_many_threads() throws Exception
+    {   // Takes that raced each other must all be paid for, none is lost.
+        tokenBucket bucket = new tokenBucket(1000000, 0);
+        int threads = 8, takes = 10000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong longest = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long started = System.nanoTime();
+        for (int t = 0; t < threads; t++)
+        {
+            pool.submit(() ->
+            {
+                start.await();
+                for (int i = 0; i < takes; i++) longest.accumulateAndGet(bucket.take(1000), Math::max);
+                return null;
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        // 80MB at 1MB/s is 80s of debt, the last take waits for what the others left.
+        long debt = threads * takes * MS;
+        long elapsed = System.nanoTime() - started;
+        assertTrue(longest.get() >= debt - elapsed && longest.get() <= debt, "Waits " + longest.get() + " ns");
+    }
+}